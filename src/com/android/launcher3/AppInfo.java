@@ -25,6 +25,7 @@ import android.util.Log;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.model.AppNameComparator;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.PackageManagerHelper;
 
@@ -54,6 +55,11 @@ public class AppInfo extends ItemInfo {
 
     public ComponentName componentName;
 
+    /**
+     * Cached sort key of the {@link ItemInfo#title}, see {@link AppNameComparator}.
+     */
+    public AppNameComparator.TitleSortKey titleSortKey;
+
     static final int DOWNLOADED_FLAG = 1;
     static final int UPDATED_SYSTEM_APP_FLAG = 2;
 
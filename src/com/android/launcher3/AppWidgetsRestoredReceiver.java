@@ -10,6 +10,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.android.launcher3.LauncherSettings.Favorites;
@@ -22,12 +24,21 @@ public class AppWidgetsRestoredReceiver extends BroadcastReceiver {
     private static final String TAG = "AppWidgetsRestoredReceiver";
 
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, Intent intent) {
         if (AppWidgetManager.ACTION_APPWIDGET_HOST_RESTORED.equals(intent.getAction())) {
-            int[] oldIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_OLD_IDS);
-            int[] newIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            final int[] oldIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_OLD_IDS);
+            final int[] newIds = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
             if (oldIds.length == newIds.length) {
-                restoreAppWidgetIds(context, oldIds, newIds);
+                // A pending write of the model could overwrite the restored ids, so the ids are
+                // only updated once the pending writes are applied.
+                final PendingResult result = goAsync();
+                LauncherModel.runAfterDatabaseWrites(new Runnable() {
+                    @Override
+                    public void run() {
+                        restoreAppWidgetIds(context, oldIds, newIds);
+                        result.finish();
+                    }
+                });
             } else {
                 Log.e(TAG, "Invalid host restored received");
             }
@@ -35,47 +46,56 @@ public class AppWidgetsRestoredReceiver extends BroadcastReceiver {
     }
 
     /**
-     * Updates the app widgets whose id has changed during the restore process.
+     * Updates the app widgets whose id has changed during the restore process. Called on the
+     * worker thread.
      */
     static void restoreAppWidgetIds(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
         final ContentResolver cr = context.getContentResolver();
         final List<Integer> idsToRemove = new ArrayList<Integer>();
         final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
 
-        for (int i = 0; i < oldWidgetIds.length; i++) {
-            Log.i(TAG, "Widget state restore id " + oldWidgetIds[i] + " => " + newWidgetIds[i]);
+        // Only notify the restored widgets once.
+        final LauncherProvider launcherProvider = LauncherAppState.getLauncherProvider();
+        launcherProvider.beginBatch();
+        try {
+            for (int i = 0; i < oldWidgetIds.length; i++) {
+                Log.i(TAG, "Widget state restore id " + oldWidgetIds[i] + " => " + newWidgetIds[i]);
 
-            final AppWidgetProviderInfo provider = widgets.getAppWidgetInfo(newWidgetIds[i]);
-            final int state;
-            if (LauncherModel.isValidProvider(provider)) {
-                // This will ensure that we show 'Click to setup' UI if required.
-                state = LauncherAppWidgetInfo.FLAG_UI_NOT_READY;
-            } else {
-                state = LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY;
-            }
+                final AppWidgetProviderInfo provider = widgets.getAppWidgetInfo(newWidgetIds[i]);
+                final int state;
+                if (LauncherModel.isValidProvider(provider)) {
+                    // This will ensure that we show 'Click to setup' UI if required.
+                    state = LauncherAppWidgetInfo.FLAG_UI_NOT_READY;
+                } else {
+                    state = LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY;
+                }
 
-            ContentValues values = new ContentValues();
-            values.put(LauncherSettings.Favorites.APPWIDGET_ID, newWidgetIds[i]);
-            values.put(LauncherSettings.Favorites.RESTORED, state);
+                ContentValues values = new ContentValues();
+                values.put(LauncherSettings.Favorites.APPWIDGET_ID, newWidgetIds[i]);
+                values.put(LauncherSettings.Favorites.RESTORED, state);
 
-            String[] widgetIdParams = new String[] { Integer.toString(oldWidgetIds[i]) };
+                String[] widgetIdParams = new String[] { Integer.toString(oldWidgetIds[i]) };
 
-            int result = cr.update(Favorites.CONTENT_URI, values,
-                    "appWidgetId=? and (restored & 1) = 1", widgetIdParams);
-            if (result == 0) {
-                Cursor cursor = cr.query(Favorites.CONTENT_URI,
-                        new String[] {Favorites.APPWIDGET_ID},
-                        "appWidgetId=?", widgetIdParams, null);
-                try {
-                    if (!cursor.moveToFirst()) {
-                        // The widget no long exists.
-                        idsToRemove.add(newWidgetIds[i]);
+                int result = cr.update(Favorites.CONTENT_URI, values,
+                        "appWidgetId=? and (restored & 1) = 1", widgetIdParams);
+                if (result == 0) {
+                    Cursor cursor = cr.query(Favorites.CONTENT_URI,
+                            new String[] {Favorites.APPWIDGET_ID},
+                            "appWidgetId=?", widgetIdParams, null);
+                    try {
+                        if (!cursor.moveToFirst()) {
+                            // The widget no long exists.
+                            idsToRemove.add(newWidgetIds[i]);
+                        }
+                    } finally {
+                        cursor.close();
                     }
-                } finally {
-                    cursor.close();
                 }
             }
+        } finally {
+            launcherProvider.endBatch();
         }
+
         // Unregister the widget IDs which are not present on the workspace. This could happen
         // when a widget place holder is removed from workspace, before this method is called.
         if (!idsToRemove.isEmpty()) {
@@ -92,9 +112,14 @@ public class AppWidgetsRestoredReceiver extends BroadcastReceiver {
             }.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
         }
 
-        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
-        if (app != null) {
-            app.reloadWorkspace();
-        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+                if (app != null) {
+                    app.reloadWorkspace();
+                }
+            }
+        });
     }
 }
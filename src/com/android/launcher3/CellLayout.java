@@ -52,15 +52,14 @@ import com.android.launcher3.FolderIcon.FolderRingAnimator;
 import com.android.launcher3.accessibility.DragAndDropAccessibilityDelegate;
 import com.android.launcher3.accessibility.FolderAccessibilityHelper;
 import com.android.launcher3.accessibility.WorkspaceAccessibilityHelper;
+import com.android.launcher3.util.GridOccupancy;
 import com.android.launcher3.util.ParcelableSparseArray;
 import com.android.launcher3.util.Thunk;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Stack;
 
 public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     public static final int WORKSPACE_ACCESSIBILITY_DRAG = 2;
@@ -92,8 +91,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     @Thunk final int[] mTmpPoint = new int[2];
     @Thunk final int[] mTempLocation = new int[2];
 
-    boolean[][] mOccupied;
-    boolean[][] mTmpOccupied;
+    GridOccupancy mOccupied;
+    GridOccupancy mTmpOccupied;
 
     private OnTouchListener mInterceptTouchListener;
     private StylusEventHelper mStylusEventHelper;
@@ -163,6 +162,30 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     int[] mPreviousReorderDirection = new int[2];
     private static final int INVALID_DIRECTION = -100;
 
+    // Preallocated state of the reorder search, so that dragging over the layout does not
+    // allocate. Do NOT use them outside of the reorder search.
+    private final ItemConfiguration mSwapSolution = new ItemConfiguration();
+    private final ItemConfiguration mNoShuffleSolution = new ItemConfiguration();
+    private final ReorderSolutionCache mReorderCache = new ReorderSolutionCache();
+    private final ViewCluster mViewCluster = new ViewCluster();
+    private GridOccupancy mTmpBlockOccupied;
+    private Rect[] mTmpRegionRects = new Rect[0];
+    private final Rect mTmpBestRect = new Rect();
+    private final Rect mTmpBoundingRect = new Rect();
+    private final Rect mTmpRegionRect = new Rect();
+    private final Rect mTmpChildRect = new Rect();
+    private final int[] mTmpReorderCell = new int[2];
+    private final int[] mTmpReorderSpan = new int[2];
+    private final int[] mTmpReorderPoint = new int[2];
+
+    // Duration of the reorder searches, to check that they fit in a frame.
+    private static final long REORDER_FRAME_BUDGET_NS = 16 * 1000 * 1000;
+    private int mReorderCount;
+    private int mReorderCacheHits;
+    private int mReorderOverBudgetCount;
+    private long mLastReorderDurationNs;
+    private long mMaxReorderDurationNs;
+
     private final Rect mTempRect = new Rect();
 
     private final static Paint sPaint = new Paint();
@@ -197,8 +220,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         mMaxGap = Integer.MAX_VALUE;
         mCountX = (int) grid.inv.numColumns;
         mCountY = (int) grid.inv.numRows;
-        mOccupied = new boolean[mCountX][mCountY];
-        mTmpOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new GridOccupancy(mCountX, mCountY);
+        mTmpOccupied = new GridOccupancy(mCountX, mCountY);
+        mTmpBlockOccupied = new GridOccupancy(mCountX, mCountY);
         mPreviousReorderDirection[0] = INVALID_DIRECTION;
         mPreviousReorderDirection[1] = INVALID_DIRECTION;
 
@@ -362,9 +386,10 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     public void setGridSize(int x, int y) {
         mCountX = x;
         mCountY = y;
-        mOccupied = new boolean[mCountX][mCountY];
-        mTmpOccupied = new boolean[mCountX][mCountY];
-        mTempRectStack.clear();
+        mOccupied = new GridOccupancy(mCountX, mCountY);
+        mTmpOccupied = new GridOccupancy(mCountX, mCountY);
+        mTmpBlockOccupied = new GridOccupancy(mCountX, mCountY);
+        mReorderCache.invalidate();
         mShortcutsAndWidgets.setCellDimensions(mCellWidth, mCellHeight, mWidthGap, mHeightGap,
                 mCountX, mCountY);
         requestLayout();
@@ -484,7 +509,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             cd.setBounds(0, 0,  mCellWidth, mCellHeight);
             for (int i = 0; i < mCountX; i++) {
                 for (int j = 0; j < mCountY; j++) {
-                    if (mOccupied[i][j]) {
+                    if (mOccupied.isOccupied(i, j)) {
                         cellToPoint(i, j, pt);
                         canvas.save();
                         canvas.translate(pt[0], pt[1]);
@@ -974,7 +999,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     public boolean animateChildToPosition(final View child, int cellX, int cellY, int duration,
             int delay, boolean permanent, boolean adjustOccupied) {
         ShortcutAndWidgetContainer clc = getShortcutsAndWidgets();
-        boolean[][] occupied = mOccupied;
+        GridOccupancy occupied = mOccupied;
         if (!permanent) {
             occupied = mTmpOccupied;
         }
@@ -992,8 +1017,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             final int oldX = lp.x;
             final int oldY = lp.y;
             if (adjustOccupied) {
-                occupied[lp.cellX][lp.cellY] = false;
-                occupied[cellX][cellY] = true;
+                occupied.markCells(lp.cellX, lp.cellY, 1, 1, false);
+                occupied.markCells(cellX, cellY, 1, 1, true);
             }
             lp.isLockedToGrid = true;
             if (permanent) {
@@ -1178,21 +1203,16 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 result, resultSpan);
     }
 
-    private final Stack<Rect> mTempRectStack = new Stack<Rect>();
-    private void lazyInitTempRectStack() {
-        if (mTempRectStack.isEmpty()) {
-            for (int i = 0; i < mCountX * mCountY; i++) {
-                mTempRectStack.push(new Rect());
+    private void lazyInitTempRects() {
+        int count = mCountX * mCountY;
+        if (mTmpRegionRects.length < count) {
+            mTmpRegionRects = new Rect[count];
+            for (int i = 0; i < count; i++) {
+                mTmpRegionRects[i] = new Rect();
             }
         }
     }
 
-    private void recycleTempRects(Stack<Rect> used) {
-        while (!used.isEmpty()) {
-            mTempRectStack.push(used.pop());
-        }
-    }
-
     /**
      * Find a vacant area that will fit the given bounds nearest the requested
      * cell location. Uses Euclidean distance to score multiple vacant areas.
@@ -1211,7 +1231,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
      */
     private int[] findNearestArea(int pixelX, int pixelY, int minSpanX, int minSpanY, int spanX,
             int spanY, boolean ignoreOccupied, int[] result, int[] resultSpan) {
-        lazyInitTempRectStack();
+        lazyInitTempRects();
 
         // For items with a spanX / spanY > 1, the passed in point (pixelX, pixelY) corresponds
         // to the center of the item, but we are searching based on the top-left cell, so
@@ -1222,8 +1242,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         // Keep track of best-scoring drop area
         final int[] bestXY = result != null ? result : new int[2];
         double bestDistance = Double.MAX_VALUE;
-        final Rect bestRect = new Rect(-1, -1, -1, -1);
-        final Stack<Rect> validRegions = new Stack<Rect>();
+        final Rect bestRect = mTmpBestRect;
+        bestRect.set(-1, -1, -1, -1);
+        // The candidate regions are the first validRegionCount rects of mTmpRegionRects.
+        final Rect[] validRegions = mTmpRegionRects;
+        int validRegionCount = 0;
 
         final int countX = mCountX;
         final int countY = mCountY;
@@ -1240,12 +1263,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 int xSize = -1;
                 if (ignoreOccupied) {
                     // First, let's see if this thing fits anywhere
-                    for (int i = 0; i < minSpanX; i++) {
-                        for (int j = 0; j < minSpanY; j++) {
-                            if (mOccupied[x + i][y + j]) {
-                                continue inner;
-                            }
-                        }
+                    if (!mOccupied.isRegionVacant(x, y, minSpanX, minSpanY)) {
+                        continue inner;
                     }
                     xSize = minSpanX;
                     ySize = minSpanY;
@@ -1258,21 +1277,17 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                     boolean hitMaxY = ySize >= spanY;
                     while (!(hitMaxX && hitMaxY)) {
                         if (incX && !hitMaxX) {
-                            for (int j = 0; j < ySize; j++) {
-                                if (x + xSize > countX -1 || mOccupied[x + xSize][y + j]) {
-                                    // We can't move out horizontally
-                                    hitMaxX = true;
-                                }
+                            if (!mOccupied.isRegionVacant(x + xSize, y, 1, ySize)) {
+                                // We can't move out horizontally
+                                hitMaxX = true;
                             }
                             if (!hitMaxX) {
                                 xSize++;
                             }
                         } else if (!hitMaxY) {
-                            for (int i = 0; i < xSize; i++) {
-                                if (y + ySize > countY - 1 || mOccupied[x + i][y + ySize]) {
-                                    // We can't move out vertically
-                                    hitMaxY = true;
-                                }
+                            if (!mOccupied.isRegionVacant(x, y + ySize, xSize, 1)) {
+                                // We can't move out vertically
+                                hitMaxY = true;
                             }
                             if (!hitMaxY) {
                                 ySize++;
@@ -1292,16 +1307,16 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                 // We verify that the current rect is not a sub-rect of any of our previous
                 // candidates. In this case, the current rect is disqualified in favour of the
                 // containing rect.
-                Rect currentRect = mTempRectStack.pop();
+                Rect currentRect = validRegions[validRegionCount];
                 currentRect.set(x, y, x + xSize, y + ySize);
                 boolean contained = false;
-                for (Rect r : validRegions) {
-                    if (r.contains(currentRect)) {
+                for (int i = 0; i < validRegionCount; i++) {
+                    if (validRegions[i].contains(currentRect)) {
                         contained = true;
                         break;
                     }
                 }
-                validRegions.push(currentRect);
+                validRegionCount++;
                 double distance = Math.hypot(cellXY[0] - pixelX,  cellXY[1] - pixelY);
 
                 if ((distance <= bestDistance && !contained) ||
@@ -1323,7 +1338,6 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             bestXY[0] = -1;
             bestXY[1] = -1;
         }
-        recycleTempRects(validRegions);
         return bestXY;
     }
 
@@ -1341,15 +1355,16 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
      * @param exactDirectionOnly If this parameter is true, then only solutions where the direction
      *        matches exactly. Otherwise we find the best matching direction.
      * @param occoupied The array which represents which cells in the CellLayout are occupied
-     * @param blockOccupied The array which represents which cells in the specified block (cellX,
-     *        cellY, spanX, spanY) are occupied. This is used when try to move a group of views.
+     * @param blockOccupied The array whose top left spanX x spanY cells represent which cells in
+     *        the specified block (cellX, cellY, spanX, spanY) are occupied. This is used when try
+     *        to move a group of views.
      * @param result Array in which to place the result, or null (in which case a new array will
      *        be allocated)
      * @return The X, Y cell of a vacant area that can contain this object,
      *         nearest the requested location.
      */
     private int[] findNearestArea(int cellX, int cellY, int spanX, int spanY, int[] direction,
-            boolean[][] occupied, boolean blockOccupied[][], int[] result) {
+            GridOccupancy occupied, GridOccupancy blockOccupied, int[] result) {
         // Keep track of best-scoring drop area
         final int[] bestXY = result != null ? result : new int[2];
         float bestDistance = Float.MAX_VALUE;
@@ -1359,16 +1374,20 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         final int countY = mCountY;
 
         for (int y = 0; y < countY - (spanY - 1); y++) {
-            inner:
-            for (int x = 0; x < countX - (spanX - 1); x++) {
-                // First, let's see if this thing fits anywhere
-                for (int i = 0; i < spanX; i++) {
-                    for (int j = 0; j < spanY; j++) {
-                        if (occupied[x + i][y + j] && (blockOccupied == null || blockOccupied[i][j])) {
-                            continue inner;
-                        }
+            // The positions of the row where the span, or the whole block, is vacant.
+            long positions = 0;
+            if (blockOccupied == null) {
+                positions = occupied.getVacantPositions(y, spanX, spanY);
+            } else {
+                for (int x = 0; x < countX - (spanX - 1); x++) {
+                    if (occupied.isRegionVacant(x, y, spanX, spanY, blockOccupied)) {
+                        positions |= 1L << x;
                     }
                 }
+            }
+            while (positions != 0) {
+                int x = Long.numberOfTrailingZeros(positions);
+                positions &= positions - 1;
 
                 float distance = (float) Math.hypot(x - cellX, y - cellY);
                 int[] curDirection = mTmpPoint;
@@ -1401,7 +1420,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     private boolean addViewToTempLocation(View v, Rect rectOccupiedByPotentialDrop,
             int[] direction, ItemConfiguration currentState) {
-        CellAndSpan c = currentState.map.get(v);
+        CellAndSpan c = currentState.get(v);
         boolean success = false;
         markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, false);
         markCellsForRect(rectOccupiedByPotentialDrop, mTmpOccupied, true);
@@ -1421,7 +1440,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
      * This helper class defines a cluster of views. It helps with defining complex edges
      * of the cluster and determining how those edges interact with other views. The edges
      * essentially define a fine-grained boundary around the cluster of views -- like a more
-     * precise version of a bounding box.
+     * precise version of a bounding box. A single cluster is reused by all the pushes, see
+     * {@link #reset}.
      */
     private class ViewCluster {
         final static int LEFT = 0;
@@ -1429,20 +1449,31 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         final static int RIGHT = 2;
         final static int BOTTOM = 3;
 
-        ArrayList<View> views;
+        final ArrayList<View> views = new ArrayList<View>();
         ItemConfiguration config;
         Rect boundingRect = new Rect();
 
-        int[] leftEdge = new int[mCountY];
-        int[] rightEdge = new int[mCountY];
-        int[] topEdge = new int[mCountX];
-        int[] bottomEdge = new int[mCountX];
+        int[] leftEdge = new int[0];
+        int[] rightEdge = new int[0];
+        int[] topEdge = new int[0];
+        int[] bottomEdge = new int[0];
         boolean leftEdgeDirty, rightEdgeDirty, topEdgeDirty, bottomEdgeDirty, boundingRectDirty;
 
-        @SuppressWarnings("unchecked")
-        public ViewCluster(ArrayList<View> views, ItemConfiguration config) {
-            this.views = (ArrayList<View>) views.clone();
+        void reset(ArrayList<View> views, ItemConfiguration config) {
+            this.views.clear();
+            int count = views.size();
+            for (int i = 0; i < count; i++) {
+                this.views.add(views.get(i));
+            }
             this.config = config;
+            if (leftEdge.length != mCountY) {
+                leftEdge = new int[mCountY];
+                rightEdge = new int[mCountY];
+            }
+            if (topEdge.length != mCountX) {
+                topEdge = new int[mCountX];
+                bottomEdge = new int[mCountX];
+            }
             resetEdges();
         }
 
@@ -1465,7 +1496,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         void computeEdge(int which, int[] edge) {
             int count = views.size();
             for (int i = 0; i < count; i++) {
-                CellAndSpan cs = config.map.get(views.get(i));
+                CellAndSpan cs = config.get(views.get(i));
                 switch (which) {
                     case LEFT:
                         int left = cs.x;
@@ -1504,7 +1535,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         boolean isViewTouchingEdge(View v, int whichEdge) {
-            CellAndSpan cs = config.map.get(v);
+            CellAndSpan cs = config.get(v);
 
             int[] edge = getEdge(whichEdge);
 
@@ -1542,8 +1573,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         void shift(int whichEdge, int delta) {
-            for (View v: views) {
-                CellAndSpan c = config.map.get(v);
+            int count = views.size();
+            for (int i = 0; i < count; i++) {
+                CellAndSpan c = config.get(views.get(i));
                 switch (whichEdge) {
                     case LEFT:
                         c.x -= delta;
@@ -1571,8 +1603,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         public Rect getBoundingRect() {
             if (boundingRectDirty) {
                 boolean first = true;
-                for (View v: views) {
-                    CellAndSpan c = config.map.get(v);
+                int count = views.size();
+                for (int i = 0; i < count; i++) {
+                    CellAndSpan c = config.get(views.get(i));
                     if (first) {
                         boundingRect.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
                         first = false;
@@ -1630,8 +1663,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         class PositionComparator implements Comparator<View> {
             int whichEdge = 0;
             public int compare(View left, View right) {
-                CellAndSpan l = config.map.get(left);
-                CellAndSpan r = config.map.get(right);
+                CellAndSpan l = config.get(left);
+                CellAndSpan r = config.get(right);
                 switch (whichEdge) {
                     case LEFT:
                         return (r.x + r.spanX) - (l.x + l.spanX);
@@ -1648,14 +1681,27 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
         public void sortConfigurationForEdgePush(int edge) {
             comparator.whichEdge = edge;
-            Collections.sort(config.sortedViews, comparator);
+            // Insertion sort, which is stable like Collections.sort but does not allocate. There
+            // are only a few views, mostly sorted already by the previous push.
+            ArrayList<View> sortedViews = config.sortedViews;
+            int count = sortedViews.size();
+            for (int i = 1; i < count; i++) {
+                View v = sortedViews.get(i);
+                int j = i - 1;
+                while (j >= 0 && comparator.compare(sortedViews.get(j), v) > 0) {
+                    sortedViews.set(j + 1, sortedViews.get(j));
+                    j--;
+                }
+                sortedViews.set(j + 1, v);
+            }
         }
     }
 
     private boolean pushViewsToTempLocation(ArrayList<View> views, Rect rectOccupiedByPotentialDrop,
             int[] direction, View dragView, ItemConfiguration currentState) {
 
-        ViewCluster cluster = new ViewCluster(views, currentState);
+        ViewCluster cluster = mViewCluster;
+        cluster.reset(views, currentState);
         Rect clusterRect = cluster.getBoundingRect();
         int whichEdge;
         int pushDistance;
@@ -1683,8 +1729,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         // Mark the occupied state as false for the group of views we want to move.
-        for (View v: views) {
-            CellAndSpan c = currentState.map.get(v);
+        int count = views.size();
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.get(views.get(i));
             markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, false);
         }
 
@@ -1698,8 +1745,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         // left edge, we consider sort the views by their right edge, from right to left.
         cluster.sortConfigurationForEdgePush(whichEdge);
 
+        ArrayList<View> sortedViews = currentState.sortedViews;
+        int sortedCount = sortedViews.size();
         while (pushDistance > 0 && !fail) {
-            for (View v: currentState.sortedViews) {
+            for (int i = 0; i < sortedCount; i++) {
+                View v = sortedViews.get(i);
                 // For each view that isn't in the cluster, we see if the leading edge of the
                 // cluster is contacting the edge of that view. If so, we add that view to the
                 // cluster.
@@ -1712,7 +1762,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
                             break;
                         }
                         cluster.addView(v);
-                        CellAndSpan c = currentState.map.get(v);
+                        CellAndSpan c = currentState.get(v);
 
                         // Adding view to cluster, mark it as not occupied.
                         markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, false);
@@ -1739,8 +1789,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         // In either case, we set the occupied array as marked for the location of the views
-        for (View v: cluster.views) {
-            CellAndSpan c = currentState.map.get(v);
+        count = cluster.views.size();
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.get(cluster.views.get(i));
             markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, true);
         }
 
@@ -1752,30 +1803,33 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         if (views.size() == 0) return true;
 
         boolean success = false;
-        Rect boundingRect = null;
+        Rect boundingRect = mTmpBoundingRect;
+        int count = views.size();
         // We construct a rect which represents the entire group of views passed in
-        for (View v: views) {
-            CellAndSpan c = currentState.map.get(v);
-            if (boundingRect == null) {
-                boundingRect = new Rect(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.get(views.get(i));
+            if (i == 0) {
+                boundingRect.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
             } else {
                 boundingRect.union(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
             }
         }
 
         // Mark the occupied state as false for the group of views we want to move.
-        for (View v: views) {
-            CellAndSpan c = currentState.map.get(v);
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.get(views.get(i));
             markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, false);
         }
 
-        boolean[][] blockOccupied = new boolean[boundingRect.width()][boundingRect.height()];
+        // The top left part of the grid, of the size of the bounding rect, is used for the block.
+        GridOccupancy blockOccupied = mTmpBlockOccupied;
+        blockOccupied.clear();
         int top = boundingRect.top;
         int left = boundingRect.left;
         // We mark more precisely which parts of the bounding rect are truly occupied, allowing
         // for interlocking.
-        for (View v: views) {
-            CellAndSpan c = currentState.map.get(v);
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.get(views.get(i));
             markCellsForView(c.x - left, c.y - top, c.spanX, c.spanY, blockOccupied, true);
         }
 
@@ -1788,8 +1842,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         if (mTempLocation[0] >= 0 && mTempLocation[1] >= 0) {
             int deltaX = mTempLocation[0] - boundingRect.left;
             int deltaY = mTempLocation[1] - boundingRect.top;
-            for (View v: views) {
-                CellAndSpan c = currentState.map.get(v);
+            for (int i = 0; i < count; i++) {
+                CellAndSpan c = currentState.get(views.get(i));
                 c.x += deltaX;
                 c.y += deltaY;
             }
@@ -1797,14 +1851,14 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         // In either case, we set the occupied array as marked for the location of the views
-        for (View v: views) {
-            CellAndSpan c = currentState.map.get(v);
+        for (int i = 0; i < count; i++) {
+            CellAndSpan c = currentState.get(views.get(i));
             markCellsForView(c.x, c.y, c.spanX, c.spanY, mTmpOccupied, true);
         }
         return success;
     }
 
-    private void markCellsForRect(Rect r, boolean[][] occupied, boolean value) {
+    private void markCellsForRect(Rect r, GridOccupancy occupied, boolean value) {
         markCellsForView(r.left, r.top, r.width(), r.height(), occupied, value);
     }
 
@@ -1915,17 +1969,18 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
         // Mark the desired location of the view currently being dragged.
         if (ignoreView != null) {
-            CellAndSpan c = solution.map.get(ignoreView);
+            CellAndSpan c = solution.get(ignoreView);
             if (c != null) {
                 c.x = cellX;
                 c.y = cellY;
             }
         }
-        Rect r0 = new Rect(cellX, cellY, cellX + spanX, cellY + spanY);
-        Rect r1 = new Rect();
-        for (View child: solution.map.keySet()) {
+        Rect r0 = mOccupiedRect;
+        Rect r1 = mTmpChildRect;
+        for (int i = 0; i < solution.count; i++) {
+            View child = solution.views[i];
             if (child == ignoreView) continue;
-            CellAndSpan c = solution.map.get(child);
+            CellAndSpan c = solution.cells[i];
             LayoutParams lp = (LayoutParams) child.getLayoutParams();
             r1.set(c.x, c.y, c.x + c.spanX, c.y + c.spanY);
             if (Rect.intersects(r0, r1)) {
@@ -1936,7 +1991,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             }
         }
 
-        solution.intersectingViews = new ArrayList<View>(mIntersectingViews);
+        solution.setIntersectingViews(mIntersectingViews);
 
         // First we try to find a solution which respects the push mechanic. That is,
         // we try to find a solution such that no displaced item travels through another item
@@ -1953,8 +2008,10 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         // Ok, they couldn't move as a block, let's move them individually
-        for (View v : mIntersectingViews) {
-            if (!addViewToTempLocation(v, mOccupiedRect, direction, solution)) {
+        int count = mIntersectingViews.size();
+        for (int i = 0; i < count; i++) {
+            if (!addViewToTempLocation(mIntersectingViews.get(i), mOccupiedRect, direction,
+                    solution)) {
                 return false;
             }
         }
@@ -1978,14 +2035,6 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
     }
 
-    private void copyOccupiedArray(boolean[][] occupied) {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                occupied[i][j] = mOccupied[i][j];
-            }
-        }
-    }
-
     private ItemConfiguration findReorderSolution(int pixelX, int pixelY, int minSpanX, int minSpanY,
             int spanX, int spanY, int[] direction, View dragView, boolean decX,
             ItemConfiguration solution) {
@@ -1993,12 +2042,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         copyCurrentStateToSolution(solution, false);
         // Copy the current occupied array into the temporary occupied array. This array will be
         // manipulated as necessary to find a solution.
-        copyOccupiedArray(mTmpOccupied);
+        mTmpOccupied.copyFrom(mOccupied);
 
         // We find the nearest cell into which we would place the dragged item, assuming there's
         // nothing in its way.
-        int result[] = new int[2];
-        result = findNearestArea(pixelX, pixelY, spanX, spanY, result);
+        int result[] = findNearestArea(pixelX, pixelY, spanX, spanY, mTmpReorderCell);
 
         boolean success = false;
         // First we try the exact nearest position of the item being dragged,
@@ -2027,34 +2075,83 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         return solution;
     }
 
+    /**
+     * Same as {@link #findReorderSolution}, but returns the last solution again if the target
+     * cell, the spans, the direction and the layout did not change since it was found.
+     */
+    private ItemConfiguration findReorderSolutionCached(int pixelX, int pixelY, int minSpanX,
+            int minSpanY, int spanX, int spanY, int[] direction, View dragView) {
+        int[] cell = findNearestArea(pixelX, pixelY, spanX, spanY, mTmpReorderCell);
+        int cellX = cell[0];
+        int cellY = cell[1];
+        if (mReorderCache.matches(cellX, cellY, minSpanX, minSpanY, spanX, spanY, direction,
+                dragView)) {
+            mReorderCacheHits++;
+            mReorderCache.restoreDirection(direction);
+            return mSwapSolution;
+        }
+
+        // The search may leave the direction changed, the cache is keyed by the original one.
+        int directionX = direction[0];
+        int directionY = direction[1];
+        ItemConfiguration solution = findReorderSolution(pixelX, pixelY, minSpanX, minSpanY,
+                spanX, spanY, direction, dragView, true, mSwapSolution);
+
+        // Smaller spans are only tried if the full span fails, and their target cells depend on
+        // the exact pixel location rather than on the target cell of the full span.
+        if ((solution.isSolution && solution.dragViewSpanX == spanX
+                && solution.dragViewSpanY == spanY) || (spanX == minSpanX && spanY == minSpanY)) {
+            mReorderCache.save(cellX, cellY, minSpanX, minSpanY, spanX, spanY,
+                    directionX, directionY, direction, dragView);
+        } else {
+            mReorderCache.invalidate();
+        }
+        return solution;
+    }
+
+    private void onReorderSearchCompleted(long durationNs) {
+        mReorderCount++;
+        mLastReorderDurationNs = durationNs;
+        mMaxReorderDurationNs = Math.max(mMaxReorderDurationNs, durationNs);
+        if (durationNs > REORDER_FRAME_BUDGET_NS) {
+            mReorderOverBudgetCount++;
+            if (LOGD) {
+                Log.d(TAG, "Reorder search took " + (durationNs / 1000) + "us, over the budget "
+                        + "of a frame");
+            }
+        }
+    }
+
+    void dumpReorderStats() {
+        Log.d(TAG, "reorder searches=" + mReorderCount + " cacheHits=" + mReorderCacheHits
+                + " overFrameBudget=" + mReorderOverBudgetCount
+                + " lastUs=" + (mLastReorderDurationNs / 1000)
+                + " maxUs=" + (mMaxReorderDurationNs / 1000));
+    }
+
     private void copyCurrentStateToSolution(ItemConfiguration solution, boolean temp) {
+        solution.clear();
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
             LayoutParams lp = (LayoutParams) child.getLayoutParams();
-            CellAndSpan c;
             if (temp) {
-                c = new CellAndSpan(lp.tmpCellX, lp.tmpCellY, lp.cellHSpan, lp.cellVSpan);
+                solution.add(child, lp.tmpCellX, lp.tmpCellY, lp.cellHSpan, lp.cellVSpan);
             } else {
-                c = new CellAndSpan(lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan);
+                solution.add(child, lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan);
             }
-            solution.add(child, c);
         }
     }
 
     private void copySolutionToTempState(ItemConfiguration solution, View dragView) {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                mTmpOccupied[i][j] = false;
-            }
-        }
+        mTmpOccupied.clear();
 
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
             if (child == dragView) continue;
             LayoutParams lp = (LayoutParams) child.getLayoutParams();
-            CellAndSpan c = solution.map.get(child);
+            CellAndSpan c = solution.get(child);
             if (c != null) {
                 lp.tmpCellX = c.x;
                 lp.tmpCellY = c.y;
@@ -2070,18 +2167,14 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     private void animateItemsToSolution(ItemConfiguration solution, View dragView, boolean
             commitDragView) {
 
-        boolean[][] occupied = DESTRUCTIVE_REORDER ? mOccupied : mTmpOccupied;
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                occupied[i][j] = false;
-            }
-        }
+        GridOccupancy occupied = DESTRUCTIVE_REORDER ? mOccupied : mTmpOccupied;
+        occupied.clear();
 
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
             if (child == dragView) continue;
-            CellAndSpan c = solution.map.get(child);
+            CellAndSpan c = solution.get(child);
             if (c != null) {
                 animateChildToPosition(child, c.x, c.y, REORDER_ANIMATION_DURATION, 0,
                         DESTRUCTIVE_REORDER, false);
@@ -2102,7 +2195,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         for (int i = 0; i < childCount; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
             if (child == dragView) continue;
-            CellAndSpan c = solution.map.get(child);
+            CellAndSpan c = solution.get(child);
             boolean skip = mode == ReorderPreviewAnimation.MODE_HINT && solution.intersectingViews
                     != null && !solution.intersectingViews.contains(child);
 
@@ -2256,11 +2349,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     }
 
     private void commitTempPlacement() {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                mOccupied[i][j] = mTmpOccupied[i][j];
-            }
-        }
+        mOccupied.copyFrom(mTmpOccupied);
         int childCount = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < childCount; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
@@ -2292,8 +2381,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     private ItemConfiguration findConfigurationNoShuffle(int pixelX, int pixelY, int minSpanX, int minSpanY,
             int spanX, int spanY, View dragView, ItemConfiguration solution) {
-        int[] result = new int[2];
-        int[] resultSpan = new int[2];
+        int[] result = mTmpReorderCell;
+        int[] resultSpan = mTmpReorderSpan;
         findNearestVacantArea(pixelX, pixelY, minSpanX, minSpanY, spanX, spanY, result,
                 resultSpan);
         if (result[0] >= 0 && result[1] >= 0) {
@@ -2323,14 +2412,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     */
     private void getDirectionVectorForDrop(int dragViewCenterX, int dragViewCenterY, int spanX,
             int spanY, View dragView, int[] resultDirection) {
-        int[] targetDestination = new int[2];
+        int[] targetDestination = mTmpReorderCell;
 
         findNearestArea(dragViewCenterX, dragViewCenterY, spanX, spanY, targetDestination);
-        Rect dragRect = new Rect();
-        regionToRect(targetDestination[0], targetDestination[1], spanX, spanY, dragRect);
-        dragRect.offset(dragViewCenterX - dragRect.centerX(), dragViewCenterY - dragRect.centerY());
 
-        Rect dropRegionRect = new Rect();
+        Rect dropRegionRect = mTmpBoundingRect;
         getViewsIntersectingRegion(targetDestination[0], targetDestination[1], spanX, spanY,
                 dragView, dropRegionRect, mIntersectingViews);
 
@@ -2366,8 +2452,9 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             boundingRect.set(cellX, cellY, cellX + spanX, cellY + spanY);
         }
         intersectingViews.clear();
-        Rect r0 = new Rect(cellX, cellY, cellX + spanX, cellY + spanY);
-        Rect r1 = new Rect();
+        Rect r0 = mTmpRegionRect;
+        r0.set(cellX, cellY, cellX + spanX, cellY + spanY);
+        Rect r1 = mTmpChildRect;
         final int count = mShortcutsAndWidgets.getChildCount();
         for (int i = 0; i < count; i++) {
             View child = mShortcutsAndWidgets.getChildAt(i);
@@ -2411,12 +2498,14 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     boolean createAreaForResize(int cellX, int cellY, int spanX, int spanY,
             View dragView, int[] direction, boolean commit) {
-        int[] pixelXY = new int[2];
+        int[] pixelXY = mTmpReorderPoint;
         regionToCenterPoint(cellX, cellY, spanX, spanY, pixelXY);
 
         // First we determine if things have moved enough to cause a different layout
-        ItemConfiguration swapSolution = findReorderSolution(pixelXY[0], pixelXY[1], spanX, spanY,
-                 spanX,  spanY, direction, dragView,  true,  new ItemConfiguration());
+        long searchStartTime = System.nanoTime();
+        ItemConfiguration swapSolution = findReorderSolutionCached(pixelXY[0], pixelXY[1], spanX,
+                spanY, spanX, spanY, direction, dragView);
+        onReorderSearchCompleted(System.nanoTime() - searchStartTime);
 
         setUseTempCoords(true);
         if (swapSolution != null && swapSolution.isSolution) {
@@ -2468,12 +2557,14 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         }
 
         // Find a solution involving pushing / displacing any items in the way
-        ItemConfiguration swapSolution = findReorderSolution(pixelX, pixelY, minSpanX, minSpanY,
-                 spanX,  spanY, mDirectionVector, dragView,  true,  new ItemConfiguration());
+        long searchStartTime = System.nanoTime();
+        ItemConfiguration swapSolution = findReorderSolutionCached(pixelX, pixelY, minSpanX,
+                minSpanY, spanX, spanY, mDirectionVector, dragView);
 
         // We attempt the approach which doesn't shuffle views at all
         ItemConfiguration noShuffleSolution = findConfigurationNoShuffle(pixelX, pixelY, minSpanX,
-                minSpanY, spanX, spanY, dragView, new ItemConfiguration());
+                minSpanY, spanX, spanY, dragView, mNoShuffleSolution);
+        onReorderSearchCompleted(System.nanoTime() - searchStartTime);
 
         ItemConfiguration finalSolution = null;
 
@@ -2550,39 +2641,180 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         return mItemPlacementDirty;
     }
 
+    /**
+     * The positions of the children in a reorder solution. The positions are stored in arrays
+     * indexed by {@link LayoutParams#reorderIndex}, which grow with the number of children and
+     * are reused by the following searches.
+     */
     @Thunk class ItemConfiguration {
-        HashMap<View, CellAndSpan> map = new HashMap<View, CellAndSpan>();
-        private HashMap<View, CellAndSpan> savedMap = new HashMap<View, CellAndSpan>();
+        View[] views = new View[0];
+        CellAndSpan[] cells = new CellAndSpan[0];
+        private CellAndSpan[] savedCells = new CellAndSpan[0];
+        int count;
         ArrayList<View> sortedViews = new ArrayList<View>();
+        // The views intersecting the drop location, or null if not known.
         ArrayList<View> intersectingViews;
+        private final ArrayList<View> mIntersectingViews = new ArrayList<View>();
         boolean isSolution = false;
         int dragViewX, dragViewY, dragViewSpanX, dragViewSpanY;
 
+        void clear() {
+            Arrays.fill(views, 0, count, null);
+            count = 0;
+            sortedViews.clear();
+            intersectingViews = null;
+            isSolution = false;
+        }
+
         void save() {
-            // Copy current state into savedMap
-            for (View v: map.keySet()) {
-                map.get(v).copy(savedMap.get(v));
+            // Copy current state into savedCells
+            for (int i = 0; i < count; i++) {
+                cells[i].copy(savedCells[i]);
             }
         }
 
         void restore() {
-            // Restore current state from savedMap
-            for (View v: savedMap.keySet()) {
-                savedMap.get(v).copy(map.get(v));
+            // Restore current state from savedCells
+            for (int i = 0; i < count; i++) {
+                savedCells[i].copy(cells[i]);
             }
         }
 
-        void add(View v, CellAndSpan cs) {
-            map.put(v, cs);
-            savedMap.put(v, new CellAndSpan());
+        void add(View v, int x, int y, int spanX, int spanY) {
+            if (count == views.length) {
+                int size = Math.max(2 * count, 16);
+                views = Arrays.copyOf(views, size);
+                cells = Arrays.copyOf(cells, size);
+                savedCells = Arrays.copyOf(savedCells, size);
+                for (int i = count; i < size; i++) {
+                    cells[i] = new CellAndSpan();
+                    savedCells[i] = new CellAndSpan();
+                }
+            }
+            ((LayoutParams) v.getLayoutParams()).reorderIndex = count;
+            views[count] = v;
+            cells[count].set(x, y, spanX, spanY);
+            count++;
             sortedViews.add(v);
         }
 
+        CellAndSpan get(View v) {
+            int index = ((LayoutParams) v.getLayoutParams()).reorderIndex;
+            return index >= 0 && index < count && views[index] == v ? cells[index] : null;
+        }
+
+        void setIntersectingViews(ArrayList<View> views) {
+            mIntersectingViews.clear();
+            int count = views.size();
+            for (int i = 0; i < count; i++) {
+                mIntersectingViews.add(views.get(i));
+            }
+            intersectingViews = mIntersectingViews;
+        }
+
         int area() {
             return dragViewSpanX * dragViewSpanY;
         }
     }
 
+    /**
+     * The last reorder solution, with the inputs it was found for. The search only depends on
+     * these inputs, so the solution is reused as long as the drag stays over the same target cell
+     * and the layout does not change.
+     */
+    private class ReorderSolutionCache {
+        private boolean mValid;
+        private View mDragView;
+        private int mCellX, mCellY, mMinSpanX, mMinSpanY, mSpanX, mSpanY;
+        private int mDirectionX, mDirectionY;
+        // The direction as left by the search.
+        private int mResultDirectionX, mResultDirectionY;
+        // The children, and their position and span, when the solution was found.
+        private View[] mViews = new View[0];
+        private int[] mChildCells = new int[0];
+        private int mChildCount;
+        private GridOccupancy mOccupied;
+
+        void invalidate() {
+            mValid = false;
+            Arrays.fill(mViews, 0, mChildCount, null);
+            mChildCount = 0;
+            mDragView = null;
+        }
+
+        boolean matches(int cellX, int cellY, int minSpanX, int minSpanY, int spanX, int spanY,
+                int[] direction, View dragView) {
+            if (!mValid || cellX != mCellX || cellY != mCellY || minSpanX != mMinSpanX
+                    || minSpanY != mMinSpanY || spanX != mSpanX || spanY != mSpanY
+                    || direction[0] != mDirectionX || direction[1] != mDirectionY
+                    || dragView != mDragView || !mOccupied.contentEquals(CellLayout.this.mOccupied)) {
+                return false;
+            }
+            int childCount = mShortcutsAndWidgets.getChildCount();
+            if (childCount != mChildCount) {
+                return false;
+            }
+            for (int i = 0; i < childCount; i++) {
+                View child = mShortcutsAndWidgets.getChildAt(i);
+                LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                int j = 5 * i;
+                if (child != mViews[i] || lp.cellX != mChildCells[j]
+                        || lp.cellY != mChildCells[j + 1] || lp.cellHSpan != mChildCells[j + 2]
+                        || lp.cellVSpan != mChildCells[j + 3]
+                        || (lp.canReorder ? 1 : 0) != mChildCells[j + 4]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void restoreDirection(int[] direction) {
+            direction[0] = mResultDirectionX;
+            direction[1] = mResultDirectionY;
+        }
+
+        void save(int cellX, int cellY, int minSpanX, int minSpanY, int spanX, int spanY,
+                int directionX, int directionY, int[] resultDirection, View dragView) {
+            invalidate();
+            mCellX = cellX;
+            mCellY = cellY;
+            mMinSpanX = minSpanX;
+            mMinSpanY = minSpanY;
+            mSpanX = spanX;
+            mSpanY = spanY;
+            mDirectionX = directionX;
+            mDirectionY = directionY;
+            mResultDirectionX = resultDirection[0];
+            mResultDirectionY = resultDirection[1];
+            mDragView = dragView;
+
+            int childCount = mShortcutsAndWidgets.getChildCount();
+            if (mViews.length < childCount) {
+                mViews = new View[Math.max(2 * childCount, 16)];
+                mChildCells = new int[5 * mViews.length];
+            }
+            for (int i = 0; i < childCount; i++) {
+                View child = mShortcutsAndWidgets.getChildAt(i);
+                LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                int j = 5 * i;
+                mViews[i] = child;
+                mChildCells[j] = lp.cellX;
+                mChildCells[j + 1] = lp.cellY;
+                mChildCells[j + 2] = lp.cellHSpan;
+                mChildCells[j + 3] = lp.cellVSpan;
+                mChildCells[j + 4] = lp.canReorder ? 1 : 0;
+            }
+            mChildCount = childCount;
+
+            if (mOccupied == null || mOccupied.getCountX() != mCountX
+                    || mOccupied.getCountY() != mCountY) {
+                mOccupied = new GridOccupancy(mCountX, mCountY);
+            }
+            mOccupied.copyFrom(CellLayout.this.mOccupied);
+            mValid = true;
+        }
+    }
+
     private class CellAndSpan {
         int x, y;
         int spanX, spanY;
@@ -2590,6 +2822,13 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         public CellAndSpan() {
         }
 
+        public void set(int x, int y, int spanX, int spanY) {
+            this.x = x;
+            this.y = y;
+            this.spanX = spanX;
+            this.spanY = spanY;
+        }
+
         public void copy(CellAndSpan copy) {
             copy.x = x;
             copy.y = y;
@@ -2597,13 +2836,6 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
             copy.spanY = spanY;
         }
 
-        public CellAndSpan(int x, int y, int spanX, int spanY) {
-            this.x = x;
-            this.y = y;
-            this.spanX = spanX;
-            this.spanY = spanY;
-        }
-
         public String toString() {
             return "(" + x + ", " + y + ": " + spanX + ", " + spanY + ")";
         }
@@ -2645,33 +2877,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
      * @return True if a vacant cell of the specified dimension was found, false otherwise.
      */
     public boolean findCellForSpan(int[] cellXY, int spanX, int spanY) {
-        boolean foundCell = false;
-        final int endX = mCountX - (spanX - 1);
-        final int endY = mCountY - (spanY - 1);
-
-        for (int y = 0; y < endY && !foundCell; y++) {
-            inner:
-            for (int x = 0; x < endX; x++) {
-                for (int i = 0; i < spanX; i++) {
-                    for (int j = 0; j < spanY; j++) {
-                        if (mOccupied[x + i][y + j]) {
-                            // small optimization: we can skip to after the column we just found
-                            // an occupied cell
-                            x += i;
-                            continue inner;
-                        }
-                    }
-                }
-                if (cellXY != null) {
-                    cellXY[0] = x;
-                    cellXY[1] = y;
-                }
-                foundCell = true;
-                break;
-            }
-        }
-
-        return foundCell;
+        return mOccupied.findVacantCell(cellXY, spanX, spanY);
     }
 
     /**
@@ -2700,6 +2906,8 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         mDragOutlineCurrent = (mDragOutlineCurrent + 1) % mDragOutlineAnims.length;
         revertTempState();
         setIsDragOverlapping(false);
+        // Don't keep the children and the drag view once the drag is over.
+        mReorderCache.invalidate();
     }
 
     /**
@@ -2746,11 +2954,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     }
 
     private void clearOccupiedCells() {
-        for (int x = 0; x < mCountX; x++) {
-            for (int y = 0; y < mCountY; y++) {
-                mOccupied[x][y] = false;
-            }
-        }
+        mOccupied.clear();
     }
 
     public void markCellsAsOccupiedForView(View view) {
@@ -2765,14 +2969,10 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
         markCellsForView(lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan, mOccupied, false);
     }
 
-    private void markCellsForView(int cellX, int cellY, int spanX, int spanY, boolean[][] occupied,
-            boolean value) {
+    private void markCellsForView(int cellX, int cellY, int spanX, int spanY,
+            GridOccupancy occupied, boolean value) {
         if (cellX < 0 || cellY < 0) return;
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                occupied[x][y] = value;
-            }
-        }
+        occupied.markCells(cellX, cellY, spanX, spanY, value);
     }
 
     public int getDesiredWidth() {
@@ -2787,7 +2987,7 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied[x][y];
+            return mOccupied.isOccupied(x, y);
         } else {
             throw new RuntimeException("Position exceeds the bound of this CellLayout");
         }
@@ -2865,6 +3065,11 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
          */
         public boolean canReorder = true;
 
+        /**
+         * Index of the item in the {@link ItemConfiguration} of the last reorder search.
+         */
+        int reorderIndex = -1;
+
         // X coordinate of the view in the layout.
         @ViewDebug.ExportedProperty
         int x;
@@ -2993,23 +3198,10 @@ public class CellLayout extends ViewGroup implements BubbleTextShadowHandler {
     }
 
     public boolean findVacantCell(int spanX, int spanY, int[] outXY) {
-        return Utilities.findVacantCell(outXY, spanX, spanY, mCountX, mCountY, mOccupied);
+        return mOccupied.findVacantCell(outXY, spanX, spanY);
     }
 
     public boolean isRegionVacant(int x, int y, int spanX, int spanY) {
-        int x2 = x + spanX - 1;
-        int y2 = y + spanY - 1;
-        if (x < 0 || y < 0 || x2 >= mCountX || y2 >= mCountY) {
-            return false;
-        }
-        for (int i = x; i <= x2; i++) {
-            for (int j = y; j <= y2; j++) {
-                if (mOccupied[i][j]) {
-                    return false;
-                }
-            }
-        }
-
-        return true;
+        return mOccupied.isRegionVacant(x, y, spanX, spanY);
     }
 }
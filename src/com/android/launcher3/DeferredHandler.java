@@ -83,6 +83,16 @@ public class DeferredHandler {
         }
     }
 
+    /** Schedule runnable to run before everything that's on the queue right now. */
+    public void postAtFrontOfQueue(Runnable runnable) {
+        synchronized (mQueue) {
+            mQueue.addFirst(runnable);
+            if (mQueue.size() == 1) {
+                scheduleNextLocked();
+            }
+        }
+    }
+
     /** Schedule runnable to run when the queue goes idle. */
     public void postIdle(final Runnable runnable) {
         post(new IdleRunnable(runnable));
@@ -94,14 +104,19 @@ public class DeferredHandler {
         }
     }
 
-    /** Runs all queued Runnables from the calling thread. */
+    /**
+     * Runs all queued Runnables from the calling thread, including the ones they queue while
+     * the queue is flushed, so that they keep their order with the Runnables queued after them.
+     */
     public void flush() {
-        LinkedList<Runnable> queue = new LinkedList<>();
-        synchronized (mQueue) {
-            queue.addAll(mQueue);
-            mQueue.clear();
-        }
-        for (Runnable r : queue) {
+        while (true) {
+            Runnable r;
+            synchronized (mQueue) {
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                r = mQueue.removeFirst();
+            }
             r.run();
         }
     }
@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -47,17 +48,31 @@ import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.model.PackageItemInfo;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.RawBitmapCodec;
 import com.android.launcher3.util.SQLiteCacheHelper;
 import com.android.launcher3.util.Thunk;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
@@ -75,6 +90,19 @@ public class IconCache {
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
 
+    // Fraction of the app memory class used for the in-memory icons.
+    private static final int MEMORY_CACHE_FRACTION = 16;
+
+    // Number of components per batched DB query, below the SQLite limit of bound parameters.
+    private static final int DB_BATCH_SIZE = 200;
+    private static final int DECODE_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // Number of icons rendered and written together when refreshing the DB, and the time after
+    // which the refresh yields the worker thread.
+    private static final int ICON_UPDATE_BATCH_SIZE = 4 * DECODE_THREADS;
+    private static final long ICON_UPDATE_BUDGET_MS = 50;
+
     @Thunk static final Object ICON_UPDATE_TOKEN = new Object();
 
     @Thunk static class CacheEntry {
@@ -82,22 +110,166 @@ public class IconCache {
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+
+        // Size of the bitmap owned by this entry and the last time it was read, used by the
+        // memory tier for eviction.
+        int byteCount;
+        volatile long lastAccess;
+    }
+
+    /**
+     * In-memory tier of the cache, bounded by the size of the bitmaps it holds rather than the
+     * number of entries. Lookups do not take any lock, all the modifications happen while holding
+     * the lock on the IconCache.
+     *
+     * When over the limit, the least recently used high-res entries are evicted first. As
+     * everything on the workspace and in all apps is loaded with a low-res icon first, this keeps
+     * low-res entries for all the apps and high-res ones only for the recently used items.
+     */
+    @Thunk static class MemoryCache {
+        private final ConcurrentHashMap<ComponentKey, CacheEntry> mEntries =
+                new ConcurrentHashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+        private final AtomicLong mClock = new AtomicLong();
+        private final long mMaxBytes;
+        private long mBytes;
+
+        private final AtomicInteger mHits = new AtomicInteger();
+        private final AtomicInteger mMisses = new AtomicInteger();
+        private int mEvictions;
+
+        MemoryCache(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        /**
+         * Returns the entry for {@param key} if it can be used as is. Safe to call without
+         * holding any lock.
+         */
+        CacheEntry getIfUsable(ComponentKey key, boolean useLowResIcon) {
+            CacheEntry entry = get(key);
+            if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+                mMisses.incrementAndGet();
+                return null;
+            }
+            mHits.incrementAndGet();
+            return entry;
+        }
+
+        /**
+         * Same as {@link #getIfUsable} but does not count as an access to the entry.
+         */
+        boolean containsUsable(ComponentKey key, boolean useLowResIcon) {
+            CacheEntry entry = mEntries.get(key);
+            return entry != null && (!entry.isLowResIcon || useLowResIcon);
+        }
+
+        CacheEntry get(ComponentKey key) {
+            CacheEntry entry = mEntries.get(key);
+            if (entry != null) {
+                entry.lastAccess = mClock.incrementAndGet();
+            }
+            return entry;
+        }
+
+        /**
+         * Adds a fully initialized entry. {@param byteCount} is the size of the bitmap owned by
+         * the entry, and should be 0 for shared bitmaps.
+         */
+        void put(ComponentKey key, CacheEntry entry, int byteCount) {
+            entry.byteCount = byteCount;
+            entry.lastAccess = mClock.incrementAndGet();
+            CacheEntry old = mEntries.put(key, entry);
+            if (old != null) {
+                mBytes -= old.byteCount;
+            }
+            mBytes += byteCount;
+            if (mBytes > mMaxBytes) {
+                trimToSize(mMaxBytes - mMaxBytes / 10);
+            }
+        }
+
+        void remove(ComponentKey key) {
+            CacheEntry old = mEntries.remove(key);
+            if (old != null) {
+                mBytes -= old.byteCount;
+            }
+        }
+
+        Set<ComponentKey> keySet() {
+            return mEntries.keySet();
+        }
+
+        /**
+         * Entry of the memory cache along with the state it was sorted on for eviction.
+         */
+        private static class EvictionCandidate {
+            final ComponentKey key;
+            final CacheEntry entry;
+            final boolean isLowResIcon;
+            final long lastAccess;
+
+            EvictionCandidate(ComponentKey key, CacheEntry entry) {
+                this.key = key;
+                this.entry = entry;
+                isLowResIcon = entry.isLowResIcon;
+                lastAccess = entry.lastAccess;
+            }
+        }
+
+        private void trimToSize(long targetBytes) {
+            // The access stamps keep changing while lookups run, so sort on a copy of them.
+            ArrayList<EvictionCandidate> candidates = new ArrayList<>();
+            for (Map.Entry<ComponentKey, CacheEntry> e : mEntries.entrySet()) {
+                if (e.getValue().byteCount > 0) {
+                    candidates.add(new EvictionCandidate(e.getKey(), e.getValue()));
+                }
+            }
+            // High-res entries first, then least recently used first.
+            Collections.sort(candidates, new Comparator<EvictionCandidate>() {
+                @Override
+                public int compare(EvictionCandidate lhs, EvictionCandidate rhs) {
+                    if (lhs.isLowResIcon != rhs.isLowResIcon) {
+                        return lhs.isLowResIcon ? 1 : -1;
+                    }
+                    return Utilities.longCompare(lhs.lastAccess, rhs.lastAccess);
+                }
+            });
+            for (int i = 0; i < candidates.size() && mBytes > targetBytes; i++) {
+                EvictionCandidate c = candidates.get(i);
+                if (mEntries.remove(c.key, c.entry)) {
+                    mBytes -= c.entry.byteCount;
+                    mEvictions++;
+                }
+            }
+        }
+
+        void dumpState() {
+            Log.d(TAG, "memory cache entries=" + mEntries.size() + " bytes=" + mBytes
+                    + " max=" + mMaxBytes + " hits=" + mHits.get() + " misses=" + mMisses.get()
+                    + " evictions=" + mEvictions);
+        }
     }
 
-    private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons = new HashMap<>();
+    // Read without holding the lock by isDefaultIcon.
+    private final ConcurrentHashMap<UserHandleCompat, Bitmap> mDefaultIcons =
+            new ConcurrentHashMap<>();
     @Thunk final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
 
     private final Context mContext;
+    private final BitmapPool mBitmapPool;
     private final PackageManager mPackageManager;
     @Thunk final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final MemoryCache mCache;
     private final int mIconDpi;
     @Thunk final IconDB mIconDb;
 
     @Thunk final Handler mWorkerHandler;
 
+    // Bounded pool used to decode the icons read by a batched DB query, and to render the icons
+    // written when refreshing the DB.
+    private final ThreadPoolExecutor mDecodeExecutor;
+
     // The background color used for activity icons. Since these icons are displayed in all-apps
     // and folders, this would be same as the light quantum panel background. This color
     // is used to convert icons to RGB_565.
@@ -108,27 +280,47 @@ public class IconCache {
     private final BitmapFactory.Options mLowResOptions;
 
     private String mSystemState;
+    // Progress of the last icon DB refresh, for debugging.
+    @Thunk String mIconUpdateProgress;
+    private final Object mLowResLock = new Object();
     private Bitmap mLowResBitmap;
     private Canvas mLowResCanvas;
     private Paint mLowResPaint;
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
+        // Without a shared pool, temporary bitmaps are allocated every time.
+        this(context, inv, new BitmapPool(0));
+    }
+
+    public IconCache(Context context, InvariantDeviceProfile inv, BitmapPool bitmapPool) {
         mContext = context;
+        mBitmapPool = bitmapPool;
         mPackageManager = context.getPackageManager();
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
         mIconDb = new IconDB(context, inv.iconBitmapSize);
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        mCache = new MemoryCache(memoryClass * 1024L * 1024L / MEMORY_CACHE_FRACTION);
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mDecodeExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 1,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mDecodeExecutor.allowCoreThreadTimeOut(true);
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         mPackageBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color_dark);
-        mLowResOptions = new BitmapFactory.Options();
+        mLowResOptions = newLowResOptions();
+        updateSystemStateString();
+    }
+
+    @Thunk static BitmapFactory.Options newLowResOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
         // Always prefer RGB_565 config for low res. If the bitmap has transparency, it will
         // automatically be loaded as ALPHA_8888.
-        mLowResOptions.inPreferredConfig = Bitmap.Config.RGB_565;
-        updateSystemStateString();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return options;
     }
 
     private Drawable getFullResDefaultActivityIcon() {
@@ -181,7 +373,7 @@ public class IconCache {
 
     private Bitmap makeDefaultIcon(UserHandleCompat user) {
         Drawable unbadged = getFullResDefaultActivityIcon();
-        return Utilities.createBadgedIconBitmap(unbadged, user, mContext);
+        return Utilities.createBadgedIconBitmap(unbadged, user, mContext, mBitmapPool);
     }
 
     /**
@@ -241,6 +433,9 @@ public class IconCache {
         mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
 
         updateSystemStateString();
+        if (FeatureFlags.LAUNCHER3_RAW_ICON_CACHE_FORMAT) {
+            new IconFormatMigrationTask().scheduleNext();
+        }
         for (UserHandleCompat user : mUserManager.getUserProfiles()) {
             // Query for the set of apps
             final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
@@ -341,7 +536,7 @@ public class IconCache {
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
             Stack<LauncherActivityInfoCompat> appsToAdd = new Stack<>();
             appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
+            new BatchIconUpdateTask(userSerial, pkgInfoMap,
                     appsToAdd, appsToUpdate).scheduleNext();
         }
     }
@@ -378,14 +573,9 @@ public class IconCache {
                 entry = null;
             }
         }
-        if (entry == null) {
-            entry = new CacheEntry();
-            entry.icon = Utilities.createBadgedIconBitmap(
-                    app.getIcon(mIconDpi), app.getUser(), mContext);
-        }
-        entry.title = app.getLabel();
-        entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
+        // Entries can be read without holding the lock, never modify an entry in the cache.
+        entry = renderEntry(app, entry);
+        putInMemCacheLocked(key, entry);
 
         return newContentValues(entry.icon, entry.title.toString(), mActivityBgColor);
     }
@@ -430,11 +620,17 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
+    public void getTitleAndIcon(AppInfo application,
             LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandleCompat user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
-                false, useLowResIcon);
+        CacheEntry entry = mCache.getIfUsable(
+                new ComponentKey(application.componentName, user), useLowResIcon);
+        if (entry == null) {
+            synchronized (this) {
+                entry = cacheLocked(application.componentName, info, user,
+                        false, useLowResIcon);
+            }
+        }
         application.title = Utilities.trim(entry.title);
         application.iconBitmap = getNonNullIcon(entry, user);
         application.contentDescription = entry.contentDescription;
@@ -458,7 +654,7 @@ public class IconCache {
     /**
      * Returns a high res icon for the given intent and user
      */
-    public synchronized Bitmap getIcon(Intent intent, UserHandleCompat user) {
+    public Bitmap getIcon(Intent intent, UserHandleCompat user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -466,16 +662,23 @@ public class IconCache {
             return getDefaultIcon(user);
         }
 
-        LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, user, true, false /* useLowRes */);
-        return entry.icon;
+        CacheEntry entry = mCache.getIfUsable(new ComponentKey(component, user), false);
+        if (entry != null) {
+            return entry.icon;
+        }
+        synchronized (this) {
+            LauncherActivityInfoCompat launcherActInfo =
+                    mLauncherApps.resolveActivity(intent, user);
+            entry = cacheLocked(component, launcherActInfo, user, true, false /* useLowRes */);
+            return entry.icon;
+        }
     }
 
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param intent}. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
             UserHandleCompat user, boolean useLowResIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
@@ -485,7 +688,15 @@ public class IconCache {
             shortcutInfo.title = "";
             shortcutInfo.usingFallbackIcon = true;
             shortcutInfo.usingLowResIcon = false;
-        } else {
+            return;
+        }
+
+        CacheEntry entry = mCache.getIfUsable(new ComponentKey(component, user), useLowResIcon);
+        if (entry != null) {
+            applyCacheEntry(entry, shortcutInfo, user);
+            return;
+        }
+        synchronized (this) {
             LauncherActivityInfoCompat info = mLauncherApps.resolveActivity(intent, user);
             getTitleAndIcon(shortcutInfo, component, info, user, true, useLowResIcon);
         }
@@ -494,10 +705,41 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    public synchronized void getTitleAndIcon(
+    public void getTitleAndIcon(
             ShortcutInfo shortcutInfo, ComponentName component, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePkgIcon, boolean useLowResIcon) {
-        CacheEntry entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon);
+        CacheEntry entry = mCache.getIfUsable(new ComponentKey(component, user), useLowResIcon);
+        if (entry == null) {
+            synchronized (this) {
+                entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon);
+            }
+        }
+        applyCacheEntry(entry, shortcutInfo, user);
+    }
+
+    /**
+     * Fill in {@param shortcutInfo} with the icon and label stored for {@param component}, without
+     * resolving the activity. Entries read from the icon db are not added to the memory cache, so
+     * that the loader still validates them against the package manager.
+     */
+    public void getTitleAndIconFromDb(ShortcutInfo shortcutInfo, ComponentName component,
+            UserHandleCompat user, boolean useLowResIcon) {
+        ComponentKey cacheKey = new ComponentKey(component, user);
+        CacheEntry entry = mCache.getIfUsable(cacheKey, useLowResIcon);
+        if (entry == null) {
+            entry = new CacheEntry();
+            synchronized (this) {
+                if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
+                    entry.icon = getDefaultIcon(user);
+                    setEntryTitle(entry, null, user);
+                }
+            }
+        }
+        applyCacheEntry(entry, shortcutInfo, user);
+    }
+
+    private void applyCacheEntry(CacheEntry entry, ShortcutInfo shortcutInfo,
+            UserHandleCompat user) {
         shortcutInfo.setIcon(getNonNullIcon(entry, user));
         shortcutInfo.title = Utilities.trim(entry.title);
         shortcutInfo.usingFallbackIcon = isDefaultIcon(entry.icon, user);
@@ -507,10 +749,15 @@ public class IconCache {
     /**
      * Fill in {@param appInfo} with the icon and label for {@param packageName}
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             String packageName, UserHandleCompat user, boolean useLowResIcon,
             PackageItemInfo infoOut) {
-        CacheEntry entry = getEntryForPackageLocked(packageName, user, useLowResIcon);
+        CacheEntry entry = mCache.getIfUsable(getPackageKey(packageName, user), useLowResIcon);
+        if (entry == null) {
+            synchronized (this) {
+                entry = getEntryForPackageLocked(packageName, user, useLowResIcon);
+            }
+        }
         infoOut.iconBitmap = getNonNullIcon(entry, user);
         infoOut.title = Utilities.trim(entry.title);
         infoOut.usingLowResIcon = entry.isLowResIcon;
@@ -538,13 +785,12 @@ public class IconCache {
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
                 if (info != null) {
                     entry.icon = Utilities.createBadgedIconBitmap(
-                            info.getIcon(mIconDpi), info.getUser(), mContext);
+                            info.getIcon(mIconDpi), info.getUser(), mContext, mBitmapPool);
                 } else {
                     if (usePackageIcon) {
                         CacheEntry packageEntry = getEntryForPackageLocked(
@@ -569,10 +815,30 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            // Only publish the entry once it is filled, as it can be read without the lock.
+            putInMemCacheLocked(cacheKey, entry);
         }
         return entry;
     }
 
+    /**
+     * Adds {@param entry} to the memory cache. Bitmaps shared with other entries are not counted
+     * towards the size of the cache.
+     * This method is not thread safe, it must be called from a synchronized method.
+     */
+    private void putInMemCacheLocked(ComponentKey key, CacheEntry entry) {
+        boolean shared = entry.icon == null || isDefaultIcon(entry.icon, key.user);
+        mCache.put(key, entry, shared ? 0 : entry.icon.getByteCount());
+    }
+
+    /**
+     * Prints the memory cache counters for debugging.
+     */
+    public void dumpState() {
+        mCache.dumpState();
+        Log.d(TAG, "icon db refresh: " + mIconUpdateProgress);
+    }
+
     /**
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
@@ -582,12 +848,15 @@ public class IconCache {
         removeFromMemCacheLocked(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        CacheEntry oldEntry = mCache.get(cacheKey);
 
         // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
+        CacheEntry entry = new CacheEntry();
+        if (oldEntry != null) {
+            entry.title = oldEntry.title;
+            entry.contentDescription = oldEntry.contentDescription;
+            entry.icon = oldEntry.icon;
+            entry.isLowResIcon = oldEntry.isLowResIcon;
         }
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
@@ -595,6 +864,7 @@ public class IconCache {
         if (icon != null) {
             entry.icon = Utilities.createIconBitmap(icon, mContext);
         }
+        putInMemCacheLocked(cacheKey, entry);
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandleCompat user) {
@@ -626,7 +896,7 @@ public class IconCache {
                         throw new NameNotFoundException("ApplicationInfo is null");
                     }
                     entry.icon = Utilities.createBadgedIconBitmap(
-                            appInfo.loadIcon(mPackageManager), user, mContext);
+                            appInfo.loadIcon(mPackageManager), user, mContext, mBitmapPool);
                     entry.title = appInfo.loadLabel(mPackageManager);
                     entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
                     entry.isLowResIcon = false;
@@ -646,7 +916,7 @@ public class IconCache {
 
             // Only add a filled-out entry to the cache
             if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+                putInMemCacheLocked(cacheKey, entry);
             }
         }
         return entry;
@@ -682,6 +952,119 @@ public class IconCache {
         mIconDb.insertOrReplace(values);
     }
 
+    /**
+     * Loads the entries for {@param keys} from the DB into memory, using one query per user
+     * instead of one per key, and decoding the icons in parallel. Keys which are already in
+     * memory or are not in the DB are skipped, so this can be used to prefetch all the icons of a
+     * screen before resolving its items one by one.
+     */
+    public void prefetchEntriesFromDB(Collection<ComponentKey> keys, final boolean lowRes) {
+        HashMap<UserHandleCompat, HashMap<String, ComponentKey>> keysByUser = new HashMap<>();
+        for (ComponentKey key : keys) {
+            if (mCache.containsUsable(key, lowRes)) {
+                continue;
+            }
+            HashMap<String, ComponentKey> userKeys = keysByUser.get(key.user);
+            if (userKeys == null) {
+                userKeys = new HashMap<>();
+                keysByUser.put(key.user, userKeys);
+            }
+            userKeys.put(key.componentName.flattenToString(), key);
+        }
+        if (keysByUser.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<ComponentKey> rowKeys = new ArrayList<>();
+        final ArrayList<byte[]> rowIcons = new ArrayList<>();
+        final ArrayList<String> rowLabels = new ArrayList<>();
+        for (Map.Entry<UserHandleCompat, HashMap<String, ComponentKey>> e : keysByUser.entrySet()) {
+            HashMap<String, ComponentKey> userKeys = e.getValue();
+            ArrayList<String> components = new ArrayList<>(userKeys.keySet());
+            String userSerial = Long.toString(mUserManager.getSerialNumberForUser(e.getKey()));
+
+            for (int start = 0; start < components.size(); start += DB_BATCH_SIZE) {
+                List<String> batch = components.subList(
+                        start, Math.min(start + DB_BATCH_SIZE, components.size()));
+                String[] selectionArgs = new String[batch.size() + 1];
+                StringBuilder selection = new StringBuilder(IconDB.COLUMN_USER)
+                        .append(" = ? AND ").append(IconDB.COLUMN_COMPONENT).append(" IN (");
+                selectionArgs[0] = userSerial;
+                for (int i = 0; i < batch.size(); i++) {
+                    selection.append(i == 0 ? "?" : ",?");
+                    selectionArgs[i + 1] = batch.get(i);
+                }
+                selection.append(")");
+
+                Cursor c = null;
+                try {
+                    c = mIconDb.query(new String[]{IconDB.COLUMN_COMPONENT,
+                            lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
+                            IconDB.COLUMN_LABEL}, selection.toString(), selectionArgs);
+                    while (c.moveToNext()) {
+                        ComponentKey key = userKeys.get(c.getString(0));
+                        if (key != null) {
+                            rowKeys.add(key);
+                            rowIcons.add(c.getBlob(1));
+                            rowLabels.add(c.getString(2));
+                        }
+                    }
+                } catch (SQLiteException ex) {
+                    Log.d(TAG, "Error reading icon cache", ex);
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
+                }
+            }
+        }
+        if (rowKeys.isEmpty()) {
+            return;
+        }
+
+        // Decode the blobs in parallel, each task handles a contiguous slice of the rows.
+        final int count = rowKeys.size();
+        final Bitmap[] icons = new Bitmap[count];
+        int sliceSize = (count + DECODE_THREADS - 1) / DECODE_THREADS;
+        ArrayList<Future<?>> pending = new ArrayList<>(DECODE_THREADS);
+        for (int start = 0; start < count; start += sliceSize) {
+            final int sliceStart = start;
+            final int sliceEnd = Math.min(start + sliceSize, count);
+            pending.add(mDecodeExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    BitmapFactory.Options options = lowRes ? newLowResOptions() : null;
+                    for (int i = sliceStart; i < sliceEnd; i++) {
+                        icons[i] = decodeIcon(rowIcons.get(i), options);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (Exception ex) {
+                Log.e(TAG, "Error decoding icons", ex);
+            }
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                ComponentKey key = rowKeys.get(i);
+                // Do not replace entries loaded while the batch was being read.
+                if (icons[i] == null || mCache.containsUsable(key, lowRes)) {
+                    continue;
+                }
+                CacheEntry entry = new CacheEntry();
+                entry.icon = icons[i];
+                entry.isLowResIcon = lowRes;
+                setEntryTitle(entry, rowLabels.get(i), key.user);
+                putInMemCacheLocked(key, entry);
+            }
+        }
+    }
+
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
         Cursor c = null;
         try {
@@ -694,14 +1077,7 @@ public class IconCache {
             if (c.moveToNext()) {
                 entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
                 entry.isLowResIcon = lowRes;
-                entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(
-                            entry.title, cacheKey.user);
-                }
+                setEntryTitle(entry, c.getString(1), cacheKey.user);
                 return true;
             }
         } catch (SQLiteException e) {
@@ -714,6 +1090,16 @@ public class IconCache {
         return false;
     }
 
+    private void setEntryTitle(CacheEntry entry, String title, UserHandleCompat user) {
+        if (title == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.title = title;
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(title, user);
+        }
+    }
+
     public static class IconLoadRequest {
         private final Runnable mRunnable;
         private final Handler mHandler;
@@ -730,57 +1116,126 @@ public class IconCache {
 
     /**
      * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfoCompat list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * LauncherActivityInfoCompat list. Icons are rendered in batches on the decode pool and each
+     * batch is written in a single transaction. The task yields the worker thread once
+     * {@link #ICON_UPDATE_BUDGET_MS} is spent, so that the loader is not blocked.
      */
-    @Thunk class SerializedIconUpdateTask implements Runnable {
+    @Thunk class BatchIconUpdateTask implements Runnable {
         private final long mUserSerial;
         private final HashMap<String, PackageInfo> mPkgInfoMap;
         private final Stack<LauncherActivityInfoCompat> mAppsToAdd;
         private final Stack<LauncherActivityInfoCompat> mAppsToUpdate;
         private final HashSet<String> mUpdatedPackages = new HashSet<String>();
 
-        @Thunk SerializedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
+        private final int mTotal;
+        private final long mStartTime = SystemClock.uptimeMillis();
+        private int mProcessed;
+        private long mBusyMillis;
+
+        @Thunk BatchIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
                 Stack<LauncherActivityInfoCompat> appsToAdd,
                 Stack<LauncherActivityInfoCompat> appsToUpdate) {
             mUserSerial = userSerial;
             mPkgInfoMap = pkgInfoMap;
             mAppsToAdd = appsToAdd;
             mAppsToUpdate = appsToUpdate;
+            mTotal = appsToAdd.size() + appsToUpdate.size();
         }
 
         @Override
         public void run() {
-            if (!mAppsToUpdate.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToUpdate.pop();
-                String cn = app.getComponentName().flattenToString();
-                ContentValues values = updateCacheAndGetContentValues(app, true);
-                mIconDb.update(values,
-                        IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
-                        new String[]{cn, Long.toString(mUserSerial)});
-                mUpdatedPackages.add(app.getComponentName().getPackageName());
-
-                if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify model.
-                    LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
-                            mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            final long start = SystemClock.uptimeMillis();
+            do {
+                processBatch();
+            } while (hasPendingApps()
+                    && SystemClock.uptimeMillis() - start < ICON_UPDATE_BUDGET_MS);
+            mBusyMillis += SystemClock.uptimeMillis() - start;
+
+            mIconUpdateProgress = "user=" + mUserSerial + " " + mProcessed + "/" + mTotal
+                    + " icons, " + mBusyMillis + "ms busy";
+            if (hasPendingApps()) {
+                scheduleNext();
+            } else {
+                long elapsed = SystemClock.uptimeMillis() - mStartTime;
+                Log.d(TAG, "Icon DB refresh for user " + mUserSerial + ": " + mProcessed
+                        + " icons in " + elapsed + "ms (" + mBusyMillis + "ms busy, "
+                        + (mProcessed * 1000 / Math.max(1, mBusyMillis)) + " icons/s)");
+            }
+        }
+
+        private boolean hasPendingApps() {
+            return !mAppsToUpdate.isEmpty() || !mAppsToAdd.isEmpty();
+        }
+
+        private void processBatch() {
+            // Updates are processed before additions, and never in the same batch, so that the
+            // model is notified as soon as all the updated icons are written.
+            final boolean replaceExisting = !mAppsToUpdate.isEmpty();
+            Stack<LauncherActivityInfoCompat> source = replaceExisting ? mAppsToUpdate : mAppsToAdd;
+            ArrayList<LauncherActivityInfoCompat> batch = new ArrayList<>(ICON_UPDATE_BATCH_SIZE);
+            while (!source.isEmpty() && batch.size() < ICON_UPDATE_BATCH_SIZE) {
+                LauncherActivityInfoCompat app = source.pop();
+                if (mPkgInfoMap.containsKey(app.getComponentName().getPackageName())) {
+                    batch.add(app);
                 }
+            }
 
-                // Let it run one more time.
-                scheduleNext();
-            } else if (!mAppsToAdd.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
-                if (info != null) {
-                    synchronized (IconCache.this) {
-                        addIconToDBAndMemCache(app, info, mUserSerial);
+            ArrayList<Future<CacheEntry>> rendered = new ArrayList<>(batch.size());
+            for (final LauncherActivityInfoCompat app : batch) {
+                // Reuse the high-res icon created during loader, unless it needs to be replaced.
+                final CacheEntry existing = replaceExisting ? null
+                        : mCache.getIfUsable(new ComponentKey(app.getComponentName(),
+                                app.getUser()), false);
+                rendered.add(mDecodeExecutor.submit(new Callable<CacheEntry>() {
+                    @Override
+                    public CacheEntry call() {
+                        return renderEntry(app, existing);
                     }
+                }));
+            }
+
+            CacheEntry[] entries = new CacheEntry[batch.size()];
+            for (int i = 0; i < entries.length; i++) {
+                try {
+                    entries[i] = rendered.get(i).get();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error rendering icon for " + batch.get(i).getComponentName(), e);
                 }
+            }
 
-                if (!mAppsToAdd.isEmpty()) {
-                    scheduleNext();
+            ArrayList<ContentValues> rows = new ArrayList<>(batch.size());
+            synchronized (IconCache.this) {
+                for (int i = 0; i < entries.length; i++) {
+                    LauncherActivityInfoCompat app = batch.get(i);
+                    CacheEntry entry = entries[i];
+                    if (entry == null) {
+                        continue;
+                    }
+                    putInMemCacheLocked(
+                            new ComponentKey(app.getComponentName(), app.getUser()), entry);
+
+                    ComponentName cn = app.getComponentName();
+                    PackageInfo info = mPkgInfoMap.get(cn.getPackageName());
+                    ContentValues values = newContentValues(
+                            entry.icon, entry.title.toString(), mActivityBgColor);
+                    values.put(IconDB.COLUMN_COMPONENT, cn.flattenToString());
+                    values.put(IconDB.COLUMN_USER, mUserSerial);
+                    values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
+                    values.put(IconDB.COLUMN_VERSION, info.versionCode);
+                    rows.add(values);
+                    if (replaceExisting) {
+                        mUpdatedPackages.add(cn.getPackageName());
+                    }
                 }
             }
+            mIconDb.insertOrReplace(rows);
+            mProcessed += batch.size();
+
+            if (replaceExisting && mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
+                // No more app to update. Notify model.
+                LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
+                        mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            }
         }
 
         public void scheduleNext() {
@@ -788,6 +1243,99 @@ public class IconCache {
         }
     }
 
+    /**
+     * Rewrites the PNG icons stored in the DB in the raw format, a few rows at a time, yielding
+     * the worker thread after {@link #ICON_UPDATE_BUDGET_MS}. Rows are decoded with the same
+     * code as a cache hit, so rows written in either format can be read during the migration.
+     */
+    @Thunk class IconFormatMigrationTask implements Runnable {
+        // Selects rows after the given row id in which either icon starts with the first byte of
+        // the PNG signature. Rows are visited in order, so that rows which can not be converted
+        // are only read once.
+        private final String mPngSelection = IconDB.COLUMN_ROWID + " > ? AND ("
+                + "substr(" + IconDB.COLUMN_ICON + ", 1, 1) = X'89'"
+                + " OR substr(" + IconDB.COLUMN_ICON_LOW_RES + ", 1, 1) = X'89')";
+        // Low-res icons are decoded the same way as when they are read from the cache.
+        private final BitmapFactory.Options mLowResDecodeOptions = newLowResOptions();
+        private long mLastRowId = -1;
+        private int mMigrated;
+
+        @Override
+        public void run() {
+            final long start = SystemClock.uptimeMillis();
+            boolean done = false;
+            while (!done && SystemClock.uptimeMillis() - start < ICON_UPDATE_BUDGET_MS) {
+                done = migrateBatch() < ICON_UPDATE_BATCH_SIZE;
+            }
+            if (!done) {
+                scheduleNext();
+            } else if (mMigrated > 0) {
+                Log.d(TAG, "Migrated " + mMigrated + " icons to the raw format");
+            }
+        }
+
+        /**
+         * @return the number of rows read.
+         */
+        private int migrateBatch() {
+            ArrayList<ContentValues> values = new ArrayList<>();
+            ArrayList<String[]> whereArgs = new ArrayList<>();
+            Cursor c = null;
+            try {
+                c = mIconDb.query(new String[]{IconDB.COLUMN_ROWID, IconDB.COLUMN_ICON,
+                                IconDB.COLUMN_ICON_LOW_RES},
+                        mPngSelection, new String[]{Long.toString(mLastRowId)},
+                        IconDB.COLUMN_ROWID, Integer.toString(ICON_UPDATE_BATCH_SIZE));
+                while (c.moveToNext()) {
+                    mLastRowId = c.getLong(0);
+                    ContentValues row = new ContentValues();
+                    row.put(IconDB.COLUMN_ICON, reencode(c.getBlob(1), null));
+                    row.put(IconDB.COLUMN_ICON_LOW_RES,
+                            reencode(c.getBlob(2), mLowResDecodeOptions));
+                    values.add(row);
+                    whereArgs.add(new String[]{Long.toString(mLastRowId)});
+                }
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Error reading icon cache", e);
+                return 0;
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            mIconDb.update(values, IconDB.COLUMN_ROWID + " = ?", whereArgs);
+            mMigrated += values.size();
+            return values.size();
+        }
+
+        private byte[] reencode(byte[] data, BitmapFactory.Options options) {
+            if (data == null || RawBitmapCodec.isRaw(data)) {
+                return data;
+            }
+            Bitmap icon = decodeIcon(data, options);
+            byte[] raw = icon == null ? null : RawBitmapCodec.encode(icon);
+            // Keep the original data if it can not be converted.
+            return raw != null ? raw : data;
+        }
+
+        public void scheduleNext() {
+            mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN, SystemClock.uptimeMillis() + 1);
+        }
+    }
+
+    /**
+     * Creates a new cache entry for {@param app}, reusing the icon of {@param existing} if
+     * present. Safe to call on any thread.
+     */
+    @Thunk CacheEntry renderEntry(LauncherActivityInfoCompat app, CacheEntry existing) {
+        CacheEntry entry = new CacheEntry();
+        entry.icon = existing != null ? existing.icon : Utilities.createBadgedIconBitmap(
+                app.getIcon(mIconDpi), app.getUser(), mContext, mBitmapPool);
+        entry.title = app.getLabel();
+        entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
+        return entry;
+    }
+
     private void updateSystemStateString() {
         mSystemState = Locale.getDefault().toString();
     }
@@ -833,18 +1381,24 @@ public class IconCache {
 
     private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
+        values.put(IconDB.COLUMN_ICON, flattenIcon(icon));
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, mSystemState);
 
         if (lowResBackgroundColor == Color.TRANSPARENT) {
-          values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(
-          Bitmap.createScaledBitmap(icon,
-                  icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                  icon.getHeight() / LOW_RES_SCALE_FACTOR, true)));
+            // The scaled icon is only needed to serialize it, render it into a pooled bitmap.
+            Bitmap lowRes = mBitmapPool.getOrCreate(icon.getWidth() / LOW_RES_SCALE_FACTOR,
+                    icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(lowRes);
+            canvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
+                    new Rect(0, 0, lowRes.getWidth(), lowRes.getHeight()),
+                    new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG));
+            canvas.setBitmap(null);
+            values.put(IconDB.COLUMN_ICON_LOW_RES, flattenIcon(lowRes));
+            mBitmapPool.put(lowRes);
         } else {
-            synchronized (this) {
+            synchronized (mLowResLock) {
                 if (mLowResBitmap == null) {
                     mLowResBitmap = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
                             icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
@@ -855,14 +1409,34 @@ public class IconCache {
                 mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
                         new Rect(0, 0, mLowResBitmap.getWidth(), mLowResBitmap.getHeight()),
                         mLowResPaint);
-                values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(mLowResBitmap));
+                values.put(IconDB.COLUMN_ICON_LOW_RES, flattenIcon(mLowResBitmap));
             }
         }
         return values;
     }
 
-    private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
-        byte[] data = c.getBlob(iconIndex);
+    private Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
+        return decodeIcon(c.getBlob(iconIndex), options);
+    }
+
+    /**
+     * Serializes {@param icon} for the DB, in the raw format if enabled.
+     */
+    @Thunk static byte[] flattenIcon(Bitmap icon) {
+        if (FeatureFlags.LAUNCHER3_RAW_ICON_CACHE_FORMAT) {
+            byte[] data = RawBitmapCodec.encode(icon);
+            if (data != null) {
+                return data;
+            }
+        }
+        return Utilities.flattenBitmap(icon);
+    }
+
+    @Thunk Bitmap decodeIcon(byte[] data, BitmapFactory.Options options) {
+        // Both formats can be present in the DB, while it is being migrated.
+        if (RawBitmapCodec.isRaw(data)) {
+            return RawBitmapCodec.decode(data, mBitmapPool);
+        }
         try {
             return BitmapFactory.decodeByteArray(data, 0, data.length, options);
         } catch (Exception e) {
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.GridOccupancy;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * A map of items by id which also indexes the items by the packages and the components they
+ * refer to, so that the items affected by a package change are found without going through all
+ * the items, and the desktop items by screen, so that the occupied cells of a screen are known
+ * without going through all the items. The index is updated whenever an item is added or removed.
+ * Changing the component or the position of an item which is already in the map requires a call
+ * to {@link #reindex}.
+ *
+ * An item is indexed under the package of its target component or widget provider, and under the
+ * package of its icon resource. Lookups return the items referring to a package in any of these
+ * ways, callers are expected to check how the item matches.
+ */
+class IndexedItemInfoMap extends LongArrayMap<ItemInfo> {
+
+    /**
+     * The keys an item was indexed under, so that it can be removed even if it changed since.
+     */
+    private static class IndexedKeys {
+        final ItemInfo item;
+        final UserHandleCompat user;
+        final ComponentName component;
+        final String[] packages;
+        final boolean onDesktop;
+        final long screenId;
+        final int cellX, cellY, spanX, spanY;
+
+        IndexedKeys(ItemInfo item, ComponentName component, String[] packages,
+                boolean onDesktop) {
+            this.item = item;
+            this.user = item.user;
+            this.component = component;
+            this.packages = packages;
+            this.onDesktop = onDesktop;
+            this.screenId = item.screenId;
+            this.cellX = item.cellX;
+            this.cellY = item.cellY;
+            this.spanX = item.spanX;
+            this.spanY = item.spanY;
+        }
+    }
+
+    private final HashMap<UserHandleCompat, HashMap<String, ArrayList<ItemInfo>>> mPackageIndex =
+            new HashMap<>();
+    private final HashMap<UserHandleCompat, HashMap<ComponentName, ArrayList<ItemInfo>>>
+            mComponentIndex = new HashMap<>();
+    private final LongArrayMap<IndexedKeys> mIndexedKeys = new LongArrayMap<>();
+    private final LongArrayMap<ArrayList<IndexedKeys>> mScreenIndex = new LongArrayMap<>();
+    // Occupied cells of the screens, built on demand and dropped when an item of the screen
+    // changes.
+    private final LongArrayMap<GridOccupancy> mScreenOccupancy = new LongArrayMap<>();
+
+    @Override
+    public void put(long key, ItemInfo value) {
+        super.put(key, value);
+        unindex(key);
+        index(key, value);
+    }
+
+    @Override
+    public void append(long key, ItemInfo value) {
+        super.append(key, value);
+        unindex(key);
+        index(key, value);
+    }
+
+    @Override
+    public void setValueAt(int index, ItemInfo value) {
+        long key = keyAt(index);
+        super.setValueAt(index, value);
+        unindex(key);
+        index(key, value);
+    }
+
+    @Override
+    public void delete(long key) {
+        super.delete(key);
+        unindex(key);
+    }
+
+    @Override
+    public void remove(long key) {
+        super.remove(key);
+        unindex(key);
+    }
+
+    @Override
+    public void removeAt(int index) {
+        long key = keyAt(index);
+        super.removeAt(index);
+        unindex(key);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        mPackageIndex.clear();
+        mComponentIndex.clear();
+        mIndexedKeys.clear();
+        mScreenIndex.clear();
+        mScreenOccupancy.clear();
+    }
+
+    /**
+     * Returns a copy of the items, without the index.
+     */
+    @Override
+    public LongArrayMap<ItemInfo> clone() {
+        LongArrayMap<ItemInfo> copy = new LongArrayMap<>();
+        int count = size();
+        for (int i = 0; i < count; i++) {
+            copy.append(keyAt(i), valueAt(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Updates the index after the target component, provider, icon or position of {@param item}
+     * changed.
+     */
+    public void reindex(ItemInfo item) {
+        if (get(item.id) == item) {
+            unindex(item.id);
+            index(item.id, item);
+        }
+    }
+
+    /**
+     * Returns the items of {@param user} referring to any of {@param packages}.
+     */
+    public ArrayList<ItemInfo> getItemsForPackages(
+            Collection<String> packages, UserHandleCompat user) {
+        LinkedHashSet<ItemInfo> result = new LinkedHashSet<>();
+        HashMap<String, ArrayList<ItemInfo>> userIndex = mPackageIndex.get(user);
+        if (userIndex != null) {
+            for (String packageName : packages) {
+                ArrayList<ItemInfo> items = userIndex.get(packageName);
+                if (items != null) {
+                    result.addAll(items);
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns the items of {@param user}, or without a user, whose target component or widget
+     * provider is {@param component}.
+     */
+    public ArrayList<ItemInfo> getItemsForComponent(
+            ComponentName component, UserHandleCompat user) {
+        ArrayList<ItemInfo> result = new ArrayList<>();
+        addItems(mComponentIndex.get(user), component, result);
+        if (user != null) {
+            addItems(mComponentIndex.get(null), component, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cells occupied by the desktop items of {@param screenId}, on a grid of
+     * {@param countX}x{@param countY}. The grid is kept until an item of the screen changes, the
+     * returned copy can be modified by the caller.
+     */
+    public GridOccupancy getScreenOccupancy(long screenId, int countX, int countY) {
+        GridOccupancy occupied = mScreenOccupancy.get(screenId);
+        if (occupied == null || occupied.getCountX() != countX
+                || occupied.getCountY() != countY) {
+            occupied = new GridOccupancy(countX, countY);
+            ArrayList<IndexedKeys> items = mScreenIndex.get(screenId);
+            if (items != null) {
+                for (IndexedKeys keys : items) {
+                    if (keys.cellX >= 0 && keys.cellY >= 0) {
+                        occupied.markCells(keys.cellX, keys.cellY, keys.spanX, keys.spanY, true);
+                    }
+                }
+            }
+            mScreenOccupancy.put(screenId, occupied);
+        }
+        return occupied.snapshot();
+    }
+
+    private static <K> void addItems(HashMap<K, ArrayList<ItemInfo>> userIndex, K key,
+            ArrayList<ItemInfo> out) {
+        if (userIndex != null) {
+            ArrayList<ItemInfo> items = userIndex.get(key);
+            if (items != null) {
+                out.addAll(items);
+            }
+        }
+    }
+
+    private void index(long key, ItemInfo item) {
+        ComponentName component = null;
+        String iconPackage = null;
+        if (item instanceof ShortcutInfo) {
+            ShortcutInfo si = (ShortcutInfo) item;
+            if (si.intent != null || si.promisedIntent != null) {
+                component = si.getTargetComponent();
+            }
+            if (si.iconResource != null) {
+                iconPackage = si.iconResource.packageName;
+            }
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            component = ((LauncherAppWidgetInfo) item).providerName;
+        }
+
+        String targetPackage = component == null ? null : component.getPackageName();
+        String[] packages;
+        if (targetPackage == null) {
+            packages = iconPackage == null ? new String[0] : new String[] { iconPackage };
+        } else if (iconPackage == null || iconPackage.equals(targetPackage)) {
+            packages = new String[] { targetPackage };
+        } else {
+            packages = new String[] { targetPackage, iconPackage };
+        }
+        boolean onDesktop = item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP;
+        if (component == null && packages.length == 0 && !onDesktop) {
+            return;
+        }
+
+        IndexedKeys keys = new IndexedKeys(item, component, packages, onDesktop);
+        mIndexedKeys.put(key, keys);
+        for (String packageName : packages) {
+            addToIndex(mPackageIndex, keys.user, packageName, item);
+        }
+        if (component != null) {
+            addToIndex(mComponentIndex, keys.user, component, item);
+        }
+        if (onDesktop) {
+            ArrayList<IndexedKeys> screenItems = mScreenIndex.get(keys.screenId);
+            if (screenItems == null) {
+                screenItems = new ArrayList<>();
+                mScreenIndex.put(keys.screenId, screenItems);
+            }
+            screenItems.add(keys);
+            mScreenOccupancy.remove(keys.screenId);
+        }
+    }
+
+    private void unindex(long key) {
+        IndexedKeys keys = mIndexedKeys.get(key);
+        if (keys == null) {
+            return;
+        }
+        mIndexedKeys.remove(key);
+        for (String packageName : keys.packages) {
+            removeFromIndex(mPackageIndex, keys.user, packageName, keys.item);
+        }
+        if (keys.component != null) {
+            removeFromIndex(mComponentIndex, keys.user, keys.component, keys.item);
+        }
+        if (keys.onDesktop) {
+            ArrayList<IndexedKeys> screenItems = mScreenIndex.get(keys.screenId);
+            if (screenItems != null) {
+                screenItems.remove(keys);
+                if (screenItems.isEmpty()) {
+                    mScreenIndex.remove(keys.screenId);
+                }
+            }
+            mScreenOccupancy.remove(keys.screenId);
+        }
+    }
+
+    private static <K> void addToIndex(
+            HashMap<UserHandleCompat, HashMap<K, ArrayList<ItemInfo>>> index,
+            UserHandleCompat user, K key, ItemInfo item) {
+        HashMap<K, ArrayList<ItemInfo>> userIndex = index.get(user);
+        if (userIndex == null) {
+            userIndex = new HashMap<>();
+            index.put(user, userIndex);
+        }
+        ArrayList<ItemInfo> items = userIndex.get(key);
+        if (items == null) {
+            items = new ArrayList<>(1);
+            userIndex.put(key, items);
+        }
+        items.add(item);
+    }
+
+    private static <K> void removeFromIndex(
+            HashMap<UserHandleCompat, HashMap<K, ArrayList<ItemInfo>>> index,
+            UserHandleCompat user, K key, ItemInfo item) {
+        HashMap<K, ArrayList<ItemInfo>> userIndex = index.get(user);
+        ArrayList<ItemInfo> items = userIndex == null ? null : userIndex.get(key);
+        if (items == null) {
+            return;
+        }
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.get(i) == item) {
+                items.remove(i);
+                break;
+            }
+        }
+        if (items.isEmpty()) {
+            userIndex.remove(key);
+        }
+    }
+}
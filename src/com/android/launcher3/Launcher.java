@@ -1080,6 +1080,8 @@ public class Launcher extends Activity
         mPaused = true;
         mDragController.cancelDrag();
         mDragController.resetLastGestureUpTime();
+        // Persist the pending workspace changes, the process may be killed in the background.
+        LauncherModel.flushDatabaseWrites();
 
         // We call onHide() aggressively. The custom content callbacks should be able to
         // debounce excess onHide calls.
@@ -3337,6 +3339,7 @@ public class Launcher extends Activity
             // The widget preview db can result in holding onto over
             // 3MB of memory for caching which isn't necessary.
             SQLiteDatabase.releaseMemory();
+            LauncherAppState.getInstance().getBitmapPool().clear();
 
             // This clears all widget bitmaps from the widget tray
             // TODO(hyunyoungs)
@@ -4449,6 +4452,15 @@ public class Launcher extends Activity
         }
     }
 
+    /**
+     * Called when {@link LauncherAppWidgetHost} reports a change of the widget providers.
+     */
+    public void onWidgetProvidersChanged() {
+        if (mWorkspace != null && mWorkspace.getState().shouldUpdateWidget) {
+            mModel.refreshAndBindWidgetsAfterProvidersChanged(this, mWidgetsView.isEmpty());
+        }
+    }
+
     private int mapConfigurationOriActivityInfoOri(int configOri) {
         final Display d = getWindowManager().getDefaultDisplay();
         int naturalOri = Configuration.ORIENTATION_LANDSCAPE;
@@ -4764,6 +4776,12 @@ public class Launcher extends Activity
         Log.d(TAG, "mSavedInstanceState=" + mSavedInstanceState);
         Log.d(TAG, "sFolders.size=" + sFolders.size());
         mModel.dumpState();
+        if (mWorkspace != null) {
+            for (CellLayout layout : mWorkspace.getWorkspaceAndHotseatCellLayouts()) {
+                layout.dumpReorderStats();
+            }
+        }
+        LauncherAppState.getInstance().getBitmapPool().dumpState();
         // TODO(hyunyoungs): add mWidgetsView.dumpState(); or mWidgetsModel.dumpState();
 
         Log.d(TAG, "END launcher3 dump state");
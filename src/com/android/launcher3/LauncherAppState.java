@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
@@ -27,6 +28,7 @@ import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.ConfigMonitor;
 import com.android.launcher3.util.TestingUtils;
 import com.android.launcher3.util.Thunk;
@@ -35,10 +37,14 @@ import java.lang.ref.WeakReference;
 
 public class LauncherAppState {
 
+    // Fraction of the app memory class used for the bitmap pool.
+    private static final int BITMAP_POOL_FRACTION = 32;
+
     private final AppFilter mAppFilter;
     @Thunk final LauncherModel mModel;
     private final IconCache mIconCache;
     private final WidgetPreviewLoader mWidgetCache;
+    private final BitmapPool mBitmapPool;
 
     private boolean mWallpaperChangedSinceLastCheck;
 
@@ -84,9 +90,13 @@ public class LauncherAppState {
             TestingUtils.startTrackingMemory(sContext);
         }
 
+        int memoryClass = ((ActivityManager) sContext.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        mBitmapPool = new BitmapPool(memoryClass * 1024L * 1024L / BITMAP_POOL_FRACTION);
+
         mInvariantDeviceProfile = new InvariantDeviceProfile(sContext);
-        mIconCache = new IconCache(sContext, mInvariantDeviceProfile);
-        mWidgetCache = new WidgetPreviewLoader(sContext, mIconCache);
+        mIconCache = new IconCache(sContext, mInvariantDeviceProfile, mBitmapPool);
+        mWidgetCache = new WidgetPreviewLoader(sContext, mIconCache, mBitmapPool);
 
         mAppFilter = AppFilter.loadByName(sContext.getString(R.string.app_filter_class));
         mModel = new LauncherModel(this, mIconCache, mAppFilter);
@@ -142,6 +152,13 @@ public class LauncherAppState {
         return mAccessibilityDelegate;
     }
 
+    /**
+     * Returns the pool of unused bitmaps shared by icon, preview and folder rendering.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     public IconCache getIconCache() {
         return mIconCache;
     }
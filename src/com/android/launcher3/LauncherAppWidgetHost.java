@@ -104,7 +104,7 @@ public class LauncherAppWidgetHost extends AppWidgetHost {
         }
 
         if (Utilities.ATLEAST_MARSHMALLOW) {
-            mLauncher.notifyWidgetProvidersChanged();
+            mLauncher.onWidgetProvidersChanged();
         }
     }
 
@@ -96,6 +96,8 @@ public class LauncherBackupAgentHelper extends BackupAgentHelper {
         LauncherAppState.getLauncherProvider().createEmptyDB();
 
         boolean hasData;
+        // Only notify the restored rows once.
+        LauncherAppState.getLauncherProvider().beginBatch();
         try {
             super.onRestore(data, appVersionCode, newState);
             // If no favorite was migrated, clear the data and start fresh.
@@ -107,6 +109,8 @@ public class LauncherBackupAgentHelper extends BackupAgentHelper {
             // If the restore fails, we should do a fresh start.
             Log.e(TAG, "Restore failed", e);
             hasData = false;
+        } finally {
+            LauncherAppState.getLauncherProvider().endBatch();
         }
 
         if (hasData && mHelper.restoreSuccessful) {
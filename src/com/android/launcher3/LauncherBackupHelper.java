@@ -225,6 +225,9 @@ public class LauncherBackupHelper implements BackupHelper {
             mIconCache = app.getIconCache();
         }
 
+        // The favorites table is read directly, it has to include the pending writes.
+        LauncherModel.flushDatabaseWritesAndWait();
+
         Log.v(TAG, "lastBackupTime = " + in.t);
         mKeys.clear();
         applyJournal(in);
@@ -347,6 +350,10 @@ public class LauncherBackupHelper implements BackupHelper {
             mIdp = new InvariantDeviceProfile(mContext);
             mDeviceProfileData = initDeviceProfileData(mIdp);
             mIconCache = new IconCache(mContext, mIdp);
+
+            // The restored rows are written directly, a pending write of the model must not
+            // overwrite them.
+            LauncherModel.flushDatabaseWritesAndWait();
         }
 
         int dataSize = data.size();
@@ -52,11 +52,13 @@ import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.compat.PackageInstallerCompat.PackageInstallInfo;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.model.GridSizeMigrationTask;
 import com.android.launcher3.model.WidgetsModel;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.CursorIconInfo;
 import com.android.launcher3.util.FlagOp;
+import com.android.launcher3.util.GridOccupancy;
 import com.android.launcher3.util.LongArrayMap;
 import com.android.launcher3.util.ManagedProfileHeuristic;
 import com.android.launcher3.util.PackageManagerHelper;
@@ -73,9 +75,12 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -94,9 +99,19 @@ public class LauncherModel extends BroadcastReceiver
     public static final int LOADER_FLAG_CLEAR_WORKSPACE = 1 << 0;
     public static final int LOADER_FLAG_MIGRATE_SHORTCUTS = 1 << 1;
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    private static final int ITEMS_CHUNK = 6; // initial batch size for the workspace icons
+    private static final int MAX_ITEMS_CHUNK = 64;
+    // Time budget for binding one batch of workspace icons, half a frame at 60fps.
+    private static final long ITEMS_CHUNK_BUDGET_NANOS = 8 * 1000 * 1000;
     private static final long INVALID_SCREEN_ID = -1L;
 
+    // Package changes received within this delay of each other are merged and applied together,
+    // but are never delayed by more than the max delay in total.
+    private static final long PACKAGE_UPDATE_DELAY_MS = 150;
+    private static final long PACKAGE_UPDATE_MAX_DELAY_MS = 1000;
+
+    @Thunk static final Object PROVIDERS_CHANGED_TOKEN = new Object();
+
     private final boolean mOldContentProviderExists;
 
     @Thunk final LauncherAppState mApp;
@@ -106,14 +121,59 @@ public class LauncherModel extends BroadcastReceiver
     @Thunk boolean mIsLoaderTaskRunning;
     @Thunk boolean mHasLoaderCompletedOnce;
 
+    // Package changes not yet applied, in the order they were received. Guarded by itself.
+    private final ArrayList<PackageUpdatedTask> mPendingPackageUpdates = new ArrayList<>();
+    private long mFirstPendingPackageUpdateTime;
+    private final Runnable mApplyPendingPackageUpdates = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingPackageUpdates();
+        }
+    };
+
+    // Packages whose widgets were updated by a package change, with the time of the update. Only
+    // accessed on the worker thread.
+    @Thunk final HashMap<Pair<String, UserHandleCompat>, Long> mPackageWidgetsUpdateTimes =
+            new HashMap<>();
+
+    // Number of workspace icons bound per main thread message. Only accessed on the main thread.
+    @Thunk int mItemsChunkSize = ITEMS_CHUNK;
+
     private static final String MIGRATE_AUTHORITY = "com.android.launcher2.settings";
 
+    // Selects the hotseat, the contents of the hotseat folders, the items on the screen given as
+    // the first argument, and the contents of the folders on the screen given as the second
+    // argument.
+    private static final String CURRENT_PAGE_SELECTION =
+            LauncherSettings.Favorites.CONTAINER + " = "
+                    + LauncherSettings.Favorites.CONTAINER_HOTSEAT
+            + " OR " + LauncherSettings.Favorites.CONTAINER + " IN (SELECT "
+                    + LauncherSettings.Favorites._ID + " FROM "
+                    + LauncherSettings.Favorites.TABLE_NAME + " WHERE "
+                    + LauncherSettings.Favorites.CONTAINER + " = "
+                    + LauncherSettings.Favorites.CONTAINER_HOTSEAT + ")"
+            + " OR (" + LauncherSettings.Favorites.CONTAINER + " = "
+                    + LauncherSettings.Favorites.CONTAINER_DESKTOP
+                    + " AND " + LauncherSettings.Favorites.SCREEN + " = ?)"
+            + " OR " + LauncherSettings.Favorites.CONTAINER + " IN (SELECT "
+                    + LauncherSettings.Favorites._ID + " FROM "
+                    + LauncherSettings.Favorites.TABLE_NAME + " WHERE "
+                    + LauncherSettings.Favorites.CONTAINER + " = "
+                    + LauncherSettings.Favorites.CONTAINER_DESKTOP + " AND "
+                    + LauncherSettings.Favorites.SCREEN + " = ?)";
+    // Complement of CURRENT_PAGE_SELECTION, rows with null columns are only matched here.
+    private static final String OTHER_PAGES_SELECTION =
+            "NOT IFNULL(" + CURRENT_PAGE_SELECTION + ", 0)";
+
     @Thunk static final HandlerThread sWorkerThread = new HandlerThread("launcher-loader");
     static {
         sWorkerThread.start();
     }
     @Thunk static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Writes of the model to the favorites table, applied in batches on the worker thread.
+    @Thunk static final WorkspaceWriteQueue sWriteQueue = new WorkspaceWriteQueue(sWorker);
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
@@ -146,8 +206,8 @@ public class LauncherModel extends BroadcastReceiver
     static final Object sBgLock = new Object();
 
     // sBgItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
-    // LauncherModel to their ids
-    static final LongArrayMap<ItemInfo> sBgItemsIdMap = new LongArrayMap<>();
+    // LauncherModel to their ids, and indexes them by the packages they refer to
+    static final IndexedItemInfoMap sBgItemsIdMap = new IndexedItemInfoMap();
 
     // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
     //       created by LauncherModel that are directly on the home screen (however, no widgets or
@@ -264,6 +324,57 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Applies the pending writes of the model to the database. The writes are applied
+     * synchronously when called on the worker thread, otherwise they are applied before any
+     * runnable posted to the worker thread afterwards.
+     */
+    public static void flushDatabaseWrites() {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                sWriteQueue.flush();
+            }
+        });
+    }
+
+    /**
+     * Applies the pending writes of the model to the database, then runs {@param r} on the worker
+     * thread. Used by code which updates the favorites table directly.
+     */
+    public static void runAfterDatabaseWrites(final Runnable r) {
+        runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                sWriteQueue.flush();
+                r.run();
+            }
+        });
+    }
+
+    /**
+     * Applies the pending writes of the model to the database and waits until they are applied.
+     * Must not be called on the main thread.
+     */
+    public static void flushDatabaseWritesAndWait() {
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            sWriteQueue.flush();
+            return;
+        }
+        FutureTask<Void> flush = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                sWriteQueue.flush();
+            }
+        }, null);
+        sWorker.post(flush);
+        try {
+            flush.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Error applying the database writes", e);
+        }
+    }
+
     boolean canMigrateFromOldLauncherDb(Launcher launcher) {
         return mOldContentProviderExists && !launcher.isLauncherPreinstalled() ;
     }
@@ -400,95 +511,92 @@ public class LauncherModel extends BroadcastReceiver
         runOnWorkerThread(r);
     }
 
-    private static boolean findNextAvailableIconSpaceInScreen(ArrayList<ItemInfo> occupiedPos,
-            int[] xy, int spanX, int spanY) {
-        LauncherAppState app = LauncherAppState.getInstance();
-        InvariantDeviceProfile profile = app.getInvariantDeviceProfile();
-        final int xCount = (int) profile.numColumns;
-        final int yCount = (int) profile.numRows;
-        boolean[][] occupied = new boolean[xCount][yCount];
-        if (occupiedPos != null) {
-            for (ItemInfo r : occupiedPos) {
-                int right = r.cellX + r.spanX;
-                int bottom = r.cellY + r.spanY;
-                for (int x = r.cellX; 0 <= x && x < right && x < xCount; x++) {
-                    for (int y = r.cellY; 0 <= y && y < bottom && y < yCount; y++) {
-                        occupied[x][y] = true;
-                    }
-                }
-            }
-        }
-        return Utilities.findVacantCell(xy, spanX, spanY, xCount, yCount, occupied);
-    }
-
     /**
-     * Find a position on the screen for the given size or adds a new screen.
-     * @return screenId and the coordinates for the item.
+     * Finds space for new items on the workspace. The occupied cells of each screen are read from
+     * the model index once, and the cells given to an item are marked as occupied for the next
+     * items, so that a list of items is placed in a single pass over the screens. The model must
+     * not change while the items are placed, except for the items added at the given positions.
      */
-    @Thunk Pair<Long, int[]> findSpaceForItem(
-            Context context,
-            ArrayList<Long> workspaceScreens,
-            ArrayList<Long> addedWorkspaceScreensFinal,
-            int spanX, int spanY) {
-        LongSparseArray<ArrayList<ItemInfo>> screenItems = new LongSparseArray<>();
-
-        // Use sBgItemsIdMap as all the items are already loaded.
-        assertWorkspaceLoaded();
-        synchronized (sBgLock) {
-            for (ItemInfo info : sBgItemsIdMap) {
-                if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                    ArrayList<ItemInfo> items = screenItems.get(info.screenId);
-                    if (items == null) {
-                        items = new ArrayList<>();
-                        screenItems.put(info.screenId, items);
-                    }
-                    items.add(info);
+    @Thunk static class WorkspacePlacement {
+        private final IndexedItemInfoMap mItems;
+        private final ArrayList<Long> mWorkspaceScreens;
+        private final ArrayList<Long> mAddedWorkspaceScreens;
+        private final int mCountX;
+        private final int mCountY;
+        private final LongArrayMap<GridOccupancy> mOccupancy = new LongArrayMap<>();
+        // Index of the first screen which may have a vacant cell, the screens before it are full.
+        private int mFirstScreenWithSpace = 1;
+
+        /**
+         * @param items the loaded items, read while holding {@link #sBgLock}
+         * @param workspaceScreens the screens to look for space on, new screens are added to it
+         * @param addedWorkspaceScreens receives the new screens
+         */
+        WorkspacePlacement(IndexedItemInfoMap items, ArrayList<Long> workspaceScreens,
+                ArrayList<Long> addedWorkspaceScreens, int countX, int countY) {
+            mItems = items;
+            mWorkspaceScreens = workspaceScreens;
+            mAddedWorkspaceScreens = addedWorkspaceScreens;
+            mCountX = countX;
+            mCountY = countY;
+        }
+
+        private GridOccupancy getOccupancy(long screenId) {
+            GridOccupancy occupied = mOccupancy.get(screenId);
+            if (occupied == null) {
+                synchronized (sBgLock) {
+                    occupied = mItems.getScreenOccupancy(screenId, mCountX, mCountY);
                 }
+                mOccupancy.put(screenId, occupied);
             }
+            return occupied;
         }
 
-        // Find appropriate space for the item.
-        long screenId = 0;
-        int[] cordinates = new int[2];
-        boolean found = false;
-
-        int screenCount = workspaceScreens.size();
-        // First check the preferred screen.
-        int preferredScreenIndex = workspaceScreens.isEmpty() ? 0 : 1;
-        if (preferredScreenIndex < screenCount) {
-            screenId = workspaceScreens.get(preferredScreenIndex);
-            found = findNextAvailableIconSpaceInScreen(
-                    screenItems.get(screenId), cordinates, spanX, spanY);
+        /**
+         * Returns the id of a new screen.
+         */
+        long generateNewScreenId() {
+            return LauncherAppState.getLauncherProvider().generateNewScreenId();
         }
 
-        if (!found) {
+        /**
+         * Find a position on the screen for the given size or adds a new screen, and marks it as
+         * occupied.
+         * @return screenId and the coordinates for the item.
+         */
+        Pair<Long, int[]> findSpace(int spanX, int spanY) {
+            int[] cordinates = new int[2];
+
             // Search on any of the screens starting from the first screen.
-            for (int screen = 1; screen < screenCount; screen++) {
-                screenId = workspaceScreens.get(screen);
-                if (findNextAvailableIconSpaceInScreen(
-                        screenItems.get(screenId), cordinates, spanX, spanY)) {
+            int screenCount = mWorkspaceScreens.size();
+            for (int screen = mFirstScreenWithSpace; screen < screenCount; screen++) {
+                long screenId = mWorkspaceScreens.get(screen);
+                GridOccupancy occupied = getOccupancy(screenId);
+                if (occupied.findVacantCell(cordinates, spanX, spanY)) {
                     // We found a space for it
-                    found = true;
-                    break;
+                    occupied.markCells(cordinates[0], cordinates[1], spanX, spanY, true);
+                    return Pair.create(screenId, cordinates);
+                }
+                if (screen == mFirstScreenWithSpace && !occupied.findVacantCell(null, 1, 1)) {
+                    mFirstScreenWithSpace++;
                 }
             }
-        }
 
-        if (!found) {
             // Still no position found. Add a new screen to the end.
-            screenId = LauncherAppState.getLauncherProvider().generateNewScreenId();
+            long screenId = generateNewScreenId();
 
             // Save the screen id for binding in the workspace
-            workspaceScreens.add(screenId);
-            addedWorkspaceScreensFinal.add(screenId);
+            mWorkspaceScreens.add(screenId);
+            mAddedWorkspaceScreens.add(screenId);
 
             // If we still can't find an empty space, then God help us all!!!
-            if (!findNextAvailableIconSpaceInScreen(
-                    screenItems.get(screenId), cordinates, spanX, spanY)) {
+            GridOccupancy occupied = getOccupancy(screenId);
+            if (!occupied.findVacantCell(cordinates, spanX, spanY)) {
                 throw new RuntimeException("Can't find space to add the item");
             }
+            occupied.markCells(cordinates[0], cordinates[1], spanX, spanY, true);
+            return Pair.create(screenId, cordinates);
         }
-        return Pair.create(screenId, cordinates);
     }
 
     /**
@@ -511,6 +619,13 @@ public class LauncherModel extends BroadcastReceiver
                 // called.
                 ArrayList<Long> workspaceScreens = loadWorkspaceScreensDb(context);
                 synchronized(sBgLock) {
+                    // Use sBgItemsIdMap as all the items are already loaded.
+                    assertWorkspaceLoaded();
+                    InvariantDeviceProfile profile =
+                            LauncherAppState.getInstance().getInvariantDeviceProfile();
+                    WorkspacePlacement placement = new WorkspacePlacement(sBgItemsIdMap,
+                            workspaceScreens, addedWorkspaceScreensFinal,
+                            profile.numColumns, profile.numRows);
                     for (ItemInfo item : workspaceApps) {
                         if (item instanceof ShortcutInfo) {
                             // Short-circuit this logic if the icon exists somewhere on the workspace
@@ -520,9 +635,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
 
                         // Find appropriate space for the item.
-                        Pair<Long, int[]> coords = findSpaceForItem(context,
-                                workspaceScreens, addedWorkspaceScreensFinal,
-                                1, 1);
+                        Pair<Long, int[]> coords = placement.findSpace(1, 1);
                         long screenId = coords.first;
                         int[] cordinates = coords.second;
 
@@ -687,13 +800,12 @@ public class LauncherModel extends BroadcastReceiver
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId);
         final ContentResolver cr = context.getContentResolver();
 
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
+                sWriteQueue.update(cr, itemId, values);
                 updateItemArrays(item, itemId, stackTrace);
             }
         };
@@ -707,23 +819,12 @@ public class LauncherModel extends BroadcastReceiver
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                ArrayList<ContentProviderOperation> ops =
-                        new ArrayList<ContentProviderOperation>();
                 int count = items.size();
                 for (int i = 0; i < count; i++) {
                     ItemInfo item = items.get(i);
                     final long itemId = item.id;
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(itemId);
-                    ContentValues values = valuesList.get(i);
-
-                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+                    sWriteQueue.update(cr, itemId, valuesList.get(i));
                     updateItemArrays(item, itemId, stackTrace);
-
-                }
-                try {
-                    cr.applyBatch(LauncherProvider.AUTHORITY, ops);
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
             }
         };
@@ -734,6 +835,8 @@ public class LauncherModel extends BroadcastReceiver
         // Lock on mBgLock *after* the db operation
         synchronized (sBgLock) {
             checkItemInfoLocked(itemId, item, stackTrace);
+            // The target of the item may have changed
+            sBgItemsIdMap.reindex(item);
 
             if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
                     item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
@@ -911,7 +1014,10 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         synchronized (sBgLock) {
-            for (ItemInfo item : sBgItemsIdMap) {
+            // A matching shortcut targets the same component, if the intent has one.
+            Iterable<ItemInfo> items = intent.getComponent() == null ? sBgItemsIdMap
+                    : sBgItemsIdMap.getItemsForComponent(intent.getComponent(), user);
+            for (ItemInfo item : items) {
                 if (item instanceof ShortcutInfo) {
                     ShortcutInfo info = (ShortcutInfo) item;
                     Intent targetIntent = info.promisedIntent == null
@@ -1001,7 +1107,7 @@ public class LauncherModel extends BroadcastReceiver
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(LauncherSettings.Favorites.CONTENT_URI, values);
+                sWriteQueue.insert(cr, values);
 
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
@@ -1052,7 +1158,10 @@ public class LauncherModel extends BroadcastReceiver
                 return cn.getPackageName().equals(pn) && info.user.equals(user);
             }
         };
-        return filterItemInfos(sBgItemsIdMap, filter);
+        synchronized (sBgLock) {
+            return filterItemInfos(
+                    sBgItemsIdMap.getItemsForPackages(Collections.singleton(pn), user), filter);
+        }
     }
 
     /**
@@ -1080,8 +1189,7 @@ public class LauncherModel extends BroadcastReceiver
         Runnable r = new Runnable() {
             public void run() {
                 for (ItemInfo item : items) {
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(item.id);
-                    cr.delete(uri, null, null);
+                    sWriteQueue.delete(cr, item.id);
 
                     // Lock on mBgLock *after* the db operation
                     synchronized (sBgLock) {
@@ -1171,7 +1279,7 @@ public class LauncherModel extends BroadcastReceiver
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(LauncherSettings.Favorites.getContentUri(info.id), null, null);
+                sWriteQueue.delete(cr, info.id);
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     sBgItemsIdMap.remove(info.id);
@@ -1179,8 +1287,7 @@ public class LauncherModel extends BroadcastReceiver
                     sBgWorkspaceItems.remove(info);
                 }
 
-                cr.delete(LauncherSettings.Favorites.CONTENT_URI,
-                        LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
+                sWriteQueue.delete(cr, LauncherSettings.Favorites.CONTAINER + "=" + info.id);
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     for (ItemInfo childInfo : info.contents) {
@@ -1438,6 +1545,16 @@ public class LauncherModel extends BroadcastReceiver
         @Thunk boolean mLoadAndBindStepFinished;
         private int mFlags;
 
+        // State shared between the passes of a current page first load
+        private LongArrayMap<GridOccupancy> mOccupied;
+        private HashMap<String, Integer> mInstallingPkgs;
+        private long mFirstBoundScreenId = INVALID_SCREEN_ID;
+
+        // Per phase timings of the last sharded workspace load
+        private long mShardReadMillis;
+        private long mShardResolveMillis;
+        private long mMergeMillis;
+
         LoaderTask(Context context, int flags) {
             mContext = context;
             mFlags = flags;
@@ -1451,6 +1568,18 @@ public class LauncherModel extends BroadcastReceiver
                 Log.d(TAG, "loadAndBindWorkspace mWorkspaceLoaded=" + mWorkspaceLoaded);
             }
 
+            if (!mWorkspaceLoaded && !mHasLoaderCompletedOnce
+                    && FeatureFlags.LAUNCHER3_MODEL_SNAPSHOT
+                    && (mFlags & LOADER_FLAG_CLEAR_WORKSPACE) == 0
+                    && loadAndBindFromSnapshot()) {
+                return;
+            }
+
+            if (!mWorkspaceLoaded && FeatureFlags.LAUNCHER3_CURRENT_PAGE_FIRST_LOADER) {
+                loadAndBindCurrentPageFirst();
+                return;
+            }
+
             if (!mWorkspaceLoaded) {
                 loadWorkspace();
                 synchronized (LoaderTask.this) {
@@ -1459,12 +1588,303 @@ public class LauncherModel extends BroadcastReceiver
                     }
                     mWorkspaceLoaded = true;
                 }
+                saveModelSnapshot();
             }
 
             // Bind the workspace
             bindWorkspace(-1);
         }
 
+        /**
+         * Loads and binds the hotseat and the current screen before reading the rest of the
+         * favorites table, so that the visible page is usable as early as possible.
+         */
+        private void loadAndBindCurrentPageFirst() {
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final Callbacks callbacks = mCallbacks.get();
+            if (callbacks == null) {
+                Log.w(TAG, "LoaderTask running with no launcher");
+                return;
+            }
+
+            prepareWorkspaceDb();
+            // The first pass binds the screen list, so drop the empty screens before it is read
+            // instead of leaving them visible until the last pass removes them.
+            ArrayList<Long> screens = removeEmptyScreensFromDb(loadWorkspaceScreensDb(mContext));
+            int currentScreen = callbacks.getCurrentWorkspaceScreen();
+            long currentScreenId = (currentScreen >= 0 && currentScreen < screens.size())
+                    ? screens.get(currentScreen) : INVALID_SCREEN_ID;
+            String[] selectionArgs = new String[] {
+                    Long.toString(currentScreenId), Long.toString(currentScreenId)};
+
+            loadWorkspace(CURRENT_PAGE_SELECTION, selectionArgs, true, false);
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    return;
+                }
+            }
+            bindWorkspace(-1, true, false);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "loaded and posted current page in "
+                        + (SystemClock.uptimeMillis() - t) + "ms");
+            }
+
+            loadWorkspace(OTHER_PAGES_SELECTION, selectionArgs, false, true);
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    return;
+                }
+                mWorkspaceLoaded = true;
+            }
+            bindWorkspace(-1, false, true);
+            saveModelSnapshot();
+        }
+
+        /**
+         * Removes the screens without any desktop item from {@code screens} and from the
+         * workspace screens table.
+         *
+         * @return the remaining screens, in order.
+         */
+        private ArrayList<Long> removeEmptyScreensFromDb(ArrayList<Long> screens) {
+            final HashSet<Long> usedScreens = new HashSet<Long>();
+            final Cursor c = mContext.getContentResolver().query(
+                    LauncherSettings.Favorites.CONTENT_URI,
+                    new String[] { LauncherSettings.Favorites.SCREEN },
+                    LauncherSettings.Favorites.CONTAINER + " = "
+                            + LauncherSettings.Favorites.CONTAINER_DESKTOP, null, null);
+            if (c == null) {
+                return screens;
+            }
+            try {
+                while (c.moveToNext()) {
+                    usedScreens.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+
+            if (screens.retainAll(usedScreens)) {
+                updateWorkspaceScreenOrder(mContext, screens);
+            }
+            return screens;
+        }
+
+        /**
+         * Binds the current page from the snapshot written by the previous load, then loads the
+         * workspace from the database and only rebinds what differs from the snapshot.
+         *
+         * @return false if there was no usable snapshot and nothing was bound.
+         */
+        private boolean loadAndBindFromSnapshot() {
+            final long t = SystemClock.uptimeMillis();
+            final ModelSnapshot snapshot = new ModelSnapshot(mContext);
+            if (!snapshot.read(mIconCache)) {
+                return false;
+            }
+
+            synchronized (sBgLock) {
+                clearSBgDataStructures();
+                sBgWorkspaceScreens.addAll(snapshot.screens);
+                for (ItemInfo info : snapshot.items) {
+                    sBgItemsIdMap.put(info.id, info);
+                    if (info instanceof LauncherAppWidgetInfo) {
+                        sBgAppWidgets.add((LauncherAppWidgetInfo) info);
+                        continue;
+                    }
+                    if (info instanceof FolderInfo) {
+                        sBgFolders.put(info.id, (FolderInfo) info);
+                    }
+                    if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                            info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                        sBgWorkspaceItems.add(info);
+                    }
+                }
+            }
+            // Keep the workspace locked until the snapshot has been validated.
+            bindWorkspace(-1, true, false);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "bound " + snapshot.items.size() + " items from snapshot in "
+                        + (SystemClock.uptimeMillis() - t) + "ms");
+            }
+
+            loadWorkspace();
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    return true;
+                }
+                mWorkspaceLoaded = true;
+            }
+
+            if (applySnapshotDiff(snapshot)) {
+                bindWorkspace(-1, false, true);
+            } else {
+                if (DEBUG_LOADERS) Log.d(TAG, "snapshot is stale, rebinding the workspace");
+                bindWorkspace(-1);
+            }
+            saveModelSnapshot();
+            return true;
+        }
+
+        /**
+         * Compares the items bound from {@param snapshot} with the loaded model. If they are at
+         * the same place, the loaded items are replaced by the bound ones in the model and the
+         * changes to their titles and icons are sent through
+         * {@link Callbacks#bindShortcutsChanged}.
+         *
+         * @return false if the bound items need to be rebound.
+         */
+        private boolean applySnapshotDiff(ModelSnapshot snapshot) {
+            final HashMap<UserHandleCompat, ArrayList<ShortcutInfo>> updated = new HashMap<>();
+            synchronized (sBgLock) {
+                if (!sBgWorkspaceScreens.equals(snapshot.screens)) {
+                    return false;
+                }
+
+                final ArrayList<ItemInfo> bound = new ArrayList<>();
+                for (ItemInfo info : snapshot.items) {
+                    if (isOnFirstBoundPage(snapshot.items, info)) {
+                        bound.add(info);
+                    }
+                }
+                int loadedCount = 0;
+                for (ItemInfo info : sBgItemsIdMap) {
+                    if (isOnFirstBoundPage(sBgItemsIdMap, info)) {
+                        loadedCount++;
+                    }
+                }
+                if (loadedCount != bound.size()) {
+                    return false;
+                }
+                for (ItemInfo info : bound) {
+                    if (!isSameItem(info, sBgItemsIdMap.get(info.id))) {
+                        return false;
+                    }
+                }
+
+                for (ItemInfo info : bound) {
+                    ItemInfo loaded = sBgItemsIdMap.get(info.id);
+                    if (info instanceof ShortcutInfo && updateBoundShortcut(
+                            (ShortcutInfo) info, (ShortcutInfo) loaded)) {
+                        ArrayList<ShortcutInfo> list = updated.get(info.user);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            updated.put(info.user, list);
+                        }
+                        list.add((ShortcutInfo) info);
+                    }
+
+                    sBgItemsIdMap.put(info.id, info);
+                    int index = sBgWorkspaceItems.indexOf(loaded);
+                    if (index >= 0) {
+                        sBgWorkspaceItems.set(index, info);
+                    }
+                    index = sBgAppWidgets.indexOf(loaded);
+                    if (index >= 0) {
+                        sBgAppWidgets.set(index, (LauncherAppWidgetInfo) info);
+                    }
+                    if (info instanceof FolderInfo) {
+                        sBgFolders.put(info.id, (FolderInfo) info);
+                    }
+                }
+            }
+
+            final Callbacks oldCallbacks = mCallbacks.get();
+            for (final Entry<UserHandleCompat, ArrayList<ShortcutInfo>> entry : updated.entrySet()) {
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindShortcutsChanged(entry.getValue(),
+                                    new ArrayList<ShortcutInfo>(), entry.getKey());
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+
+        private boolean isOnFirstBoundPage(LongArrayMap<ItemInfo> items, ItemInfo info) {
+            if (info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                return true;
+            } else if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                return info.screenId == mFirstBoundScreenId;
+            }
+            ItemInfo folder = items.get(info.container);
+            return folder != null && isOnFirstBoundPage(items, folder);
+        }
+
+        private boolean isSameItem(ItemInfo bound, ItemInfo loaded) {
+            if (loaded == null || bound.getClass() != loaded.getClass()
+                    || bound.itemType != loaded.itemType
+                    || bound.container != loaded.container || bound.screenId != loaded.screenId
+                    || bound.cellX != loaded.cellX || bound.cellY != loaded.cellY
+                    || bound.spanX != loaded.spanX || bound.spanY != loaded.spanY
+                    || bound.rank != loaded.rank || !bound.user.equals(loaded.user)) {
+                return false;
+            }
+            if (bound instanceof ShortcutInfo) {
+                ShortcutInfo si = (ShortcutInfo) loaded;
+                Intent boundIntent = ((ShortcutInfo) bound).intent;
+                return si.status == ShortcutInfo.DEFAULT && si.promisedIntent == null
+                        && boundIntent != null && si.intent != null
+                        && boundIntent.toUri(0).equals(si.intent.toUri(0));
+            } else if (bound instanceof FolderInfo) {
+                return TextUtils.equals(bound.title, loaded.title)
+                        && ((FolderInfo) bound).options == ((FolderInfo) loaded).options;
+            } else {
+                LauncherAppWidgetInfo boundWidget = (LauncherAppWidgetInfo) bound;
+                LauncherAppWidgetInfo loadedWidget = (LauncherAppWidgetInfo) loaded;
+                return boundWidget.appWidgetId == loadedWidget.appWidgetId
+                        && boundWidget.providerName.equals(loadedWidget.providerName)
+                        && boundWidget.restoreStatus == loadedWidget.restoreStatus;
+            }
+        }
+
+        /**
+         * Copies the loaded state of a shortcut into the one bound from the snapshot.
+         * @return true if the shortcut view needs to be updated.
+         */
+        private boolean updateBoundShortcut(ShortcutInfo bound, ShortcutInfo loaded) {
+            Bitmap loadedIcon = loaded.getIcon(mIconCache);
+            boolean changed = !TextUtils.equals(bound.title, loaded.title)
+                    || bound.getIcon(mIconCache) != loadedIcon
+                    || bound.isDisabled != loaded.isDisabled;
+            bound.title = loaded.title;
+            bound.contentDescription = loaded.contentDescription;
+            bound.intent = loaded.intent;
+            bound.setIcon(loadedIcon);
+            bound.customIcon = loaded.customIcon;
+            bound.iconResource = loaded.iconResource;
+            bound.usingFallbackIcon = loaded.usingFallbackIcon;
+            bound.usingLowResIcon = loaded.usingLowResIcon;
+            bound.isDisabled = loaded.isDisabled;
+            bound.flags = loaded.flags;
+            return changed;
+        }
+
+        /**
+         * Saves the loaded model so that the next cold start can bind from it.
+         */
+        private void saveModelSnapshot() {
+            if (!FeatureFlags.LAUNCHER3_MODEL_SNAPSHOT) {
+                return;
+            }
+            final ModelSnapshot snapshot = new ModelSnapshot(mContext);
+            final byte[] data;
+            synchronized (sBgLock) {
+                ArrayList<ItemInfo> items = new ArrayList<>(sBgWorkspaceItems);
+                items.addAll(sBgAppWidgets);
+                data = snapshot.serialize(sBgWorkspaceScreens, sBgFolders, items);
+            }
+            if (data == null) {
+                snapshot.delete();
+            } else {
+                snapshot.write(data);
+            }
+        }
+
         private void waitForIdle() {
             // Wait until the either we're stopped or the other threads are done.
             // This way we don't start loading all apps until the workspace has settled
@@ -1544,6 +1964,8 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 mIsLoaderTaskRunning = true;
             }
+            // The workspace is loaded from the database, which must include the pending writes.
+            sWriteQueue.flush();
             // Optimize for end-user experience: if the Launcher is up and // running with the
             // All Apps interface in the foreground, load All Apps first. Otherwise, load the
             // workspace first (default).
@@ -1614,7 +2036,7 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         // check & update map of what's occupied; used to discard overlapping/invalid items
-        private boolean checkItemPlacement(LongArrayMap<ItemInfo[][]> occupied, ItemInfo item,
+        private boolean checkItemPlacement(LongArrayMap<GridOccupancy> occupied, ItemInfo item,
                    ArrayList<Long> workspaceScreens) {
             LauncherAppState app = LauncherAppState.getInstance();
             InvariantDeviceProfile profile = app.getInvariantDeviceProfile();
@@ -1632,7 +2054,7 @@ public class LauncherModel extends BroadcastReceiver
                     return false;
                 }
 
-                final ItemInfo[][] hotseatItems =
+                final GridOccupancy hotseatItems =
                         occupied.get((long) LauncherSettings.Favorites.CONTAINER_HOTSEAT);
 
                 if (item.screenId >= profile.numHotseatIcons) {
@@ -1644,20 +2066,18 @@ public class LauncherModel extends BroadcastReceiver
                 }
 
                 if (hotseatItems != null) {
-                    if (hotseatItems[(int) item.screenId][0] != null) {
+                    if (hotseatItems.isOccupied((int) item.screenId, 0)) {
                         Log.e(TAG, "Error loading shortcut into hotseat " + item
                                 + " into position (" + item.screenId + ":" + item.cellX + ","
-                                + item.cellY + ") occupied by "
-                                + occupied.get(LauncherSettings.Favorites.CONTAINER_HOTSEAT)
-                                [(int) item.screenId][0]);
+                                + item.cellY + ") already occupied");
                             return false;
                     } else {
-                        hotseatItems[(int) item.screenId][0] = item;
+                        hotseatItems.markCells((int) item.screenId, 0, 1, 1, true);
                         return true;
                     }
                 } else {
-                    final ItemInfo[][] items = new ItemInfo[(int) profile.numHotseatIcons][1];
-                    items[(int) item.screenId][0] = item;
+                    final GridOccupancy items = new GridOccupancy(profile.numHotseatIcons, 1);
+                    items.markCells((int) item.screenId, 0, 1, 1, true);
                     occupied.put((long) LauncherSettings.Favorites.CONTAINER_HOTSEAT, items);
                     return true;
                 }
@@ -1672,11 +2092,11 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             if (!occupied.containsKey(item.screenId)) {
-                ItemInfo[][] items = new ItemInfo[countX + 1][countY + 1];
+                GridOccupancy items = new GridOccupancy(countX + 1, countY + 1);
                 occupied.put(item.screenId, items);
             }
 
-            final ItemInfo[][] screens = occupied.get(item.screenId);
+            final GridOccupancy screens = occupied.get(item.screenId);
             if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
                     item.cellX < 0 || item.cellY < 0 ||
                     item.cellX + item.spanX > countX || item.cellY + item.spanY > countY) {
@@ -1688,23 +2108,14 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             // Check if any workspace icons overlap with each other
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    if (screens[x][y] != null) {
-                        Log.e(TAG, "Error loading shortcut " + item
-                            + " into cell (" + containerIndex + "-" + item.screenId + ":"
-                            + x + "," + y
-                            + ") occupied by "
-                            + screens[x][y]);
-                        return false;
-                    }
-                }
-            }
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    screens[x][y] = item;
-                }
+            if (!screens.isRegionVacant(item.cellX, item.cellY, item.spanX, item.spanY)) {
+                Log.e(TAG, "Error loading shortcut " + item
+                        + " into cell (" + containerIndex + "-" + item.screenId + ":"
+                        + item.cellX + "," + item.cellY + "," + item.spanX + "," + item.spanY
+                        + ") already occupied");
+                return false;
             }
+            screens.markCells(item.cellX, item.cellY, item.spanX, item.spanY, true);
 
             return true;
         }
@@ -1720,22 +2131,10 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
-        private void loadWorkspace() {
-            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-
-            final Context context = mContext;
-            final ContentResolver contentResolver = context.getContentResolver();
-            final PackageManager manager = context.getPackageManager();
-            final boolean isSafeMode = manager.isSafeMode();
-            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
-            final boolean isSdCardReady = context.registerReceiver(null,
-                    new IntentFilter(StartupReceiver.SYSTEM_READY)) != null;
-
-            LauncherAppState app = LauncherAppState.getInstance();
-            InvariantDeviceProfile profile = app.getInvariantDeviceProfile();
-            int countX = profile.numColumns;
-            int countY = profile.numRows;
-
+        /**
+         * Runs the steps which can modify the favorites table before it is read.
+         */
+        private void prepareWorkspaceDb() {
             if (GridSizeMigrationTask.ENABLED &&
                     !GridSizeMigrationTask.migrateGridIfNeeded(mContext)) {
                 // Migration failed. Clear workspace.
@@ -1756,23 +2155,56 @@ public class LauncherModel extends BroadcastReceiver
                 Launcher.addDumpLog(TAG, "loadWorkspace: loading default favorites", false);
                 LauncherAppState.getLauncherProvider().loadDefaultFavoritesIfNecessary();
             }
+        }
+
+        private void loadWorkspace() {
+            prepareWorkspaceDb();
+            loadWorkspace(null, null, true, true);
+        }
+
+        /**
+         * Loads the favorites matching {@param selection} into the sBg data structures. The first
+         * pass clears the existing model, and the clean up of empty screens only happens after
+         * the last pass.
+         */
+        private void loadWorkspace(String selection, String[] selectionArgs,
+                boolean isFirstPass, boolean isLastPass) {
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+
+            final Context context = mContext;
+            final ContentResolver contentResolver = context.getContentResolver();
+            final PackageManager manager = context.getPackageManager();
+            final boolean isSafeMode = manager.isSafeMode();
+            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
+            final boolean isSdCardReady = context.registerReceiver(null,
+                    new IntentFilter(StartupReceiver.SYSTEM_READY)) != null;
+
+            LauncherAppState app = LauncherAppState.getInstance();
+            InvariantDeviceProfile profile = app.getInvariantDeviceProfile();
+            int countX = profile.numColumns;
+            int countY = profile.numRows;
 
             synchronized (sBgLock) {
-                clearSBgDataStructures();
-                final HashMap<String, Integer> installingPkgs = PackageInstallerCompat
-                        .getInstance(mContext).updateAndGetActiveSessionCache();
-                sBgWorkspaceScreens.addAll(loadWorkspaceScreensDb(mContext));
+                if (isFirstPass) {
+                    clearSBgDataStructures();
+                    mInstallingPkgs = PackageInstallerCompat
+                            .getInstance(mContext).updateAndGetActiveSessionCache();
+                    sBgWorkspaceScreens.addAll(loadWorkspaceScreensDb(mContext));
+                    // +1 for the hotseat (it can be larger than the workspace)
+                    // Load workspace in reverse order to ensure that latest items are loaded
+                    // first (and before any earlier duplicates)
+                    mOccupied = new LongArrayMap<>();
+                }
+                final HashMap<String, Integer> installingPkgs = mInstallingPkgs;
+                final LongArrayMap<GridOccupancy> occupied = mOccupied;
 
                 final ArrayList<Long> itemsToRemove = new ArrayList<>();
                 final ArrayList<Long> restoredRows = new ArrayList<>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+                final Cursor c = contentResolver.query(
+                        contentUri, null, selection, selectionArgs, null);
 
-                // +1 for the hotseat (it can be larger than the workspace)
-                // Load workspace in reverse order to ensure that latest items are loaded first (and
-                // before any earlier duplicates)
-                final LongArrayMap<ItemInfo[][]> occupied = new LongArrayMap<>();
                 HashMap<ComponentKey, AppWidgetProviderInfo> widgetProvidersMap = null;
 
                 try {
@@ -1817,6 +2249,18 @@ public class LauncherModel extends BroadcastReceiver
                         quietMode.put(serialNo, mUserManager.isQuietModeEnabled(user));
                     }
 
+                    final ShardedWorkspaceResolver resolver;
+                    if (FeatureFlags.LAUNCHER3_SHARDED_WORKSPACE_LOADER) {
+                        resolver = new ShardedWorkspaceResolver(context, mIconCache);
+                        resolver.resolve(c, allUsers);
+                        widgetProvidersMap = resolver.getWidgetProviders();
+                        mShardReadMillis = resolver.mReadMillis;
+                        mShardResolveMillis = resolver.mResolveMillis;
+                    } else {
+                        resolver = null;
+                    }
+                    final long mergeStart = SystemClock.uptimeMillis();
+
                     ShortcutInfo info;
                     String intentDescription;
                     LauncherAppWidgetInfo appWidgetInfo;
@@ -1850,14 +2294,25 @@ public class LauncherModel extends BroadcastReceiver
                                     itemsToRemove.add(id);
                                     continue;
                                 }
+                                final ShardedWorkspaceResolver.ResolvedRow resolvedRow =
+                                        resolver == null ? null
+                                                : resolver.getResolvedRow(c.getPosition());
                                 try {
                                     intent = Intent.parseUri(intentDescription, 0);
                                     ComponentName cn = intent.getComponent();
                                     if (cn != null && cn.getPackageName() != null) {
-                                        boolean validPkg = launcherApps.isPackageEnabledForProfile(
-                                                cn.getPackageName(), user);
-                                        boolean validComponent = validPkg &&
-                                                launcherApps.isActivityEnabledForProfile(cn, user);
+                                        boolean validPkg;
+                                        boolean validComponent;
+                                        if (resolvedRow != null
+                                                && cn.equals(resolvedRow.component)) {
+                                            validPkg = resolvedRow.validPkg;
+                                            validComponent = resolvedRow.validComponent;
+                                        } else {
+                                            validPkg = launcherApps.isPackageEnabledForProfile(
+                                                    cn.getPackageName(), user);
+                                            validComponent = validPkg && launcherApps
+                                                    .isActivityEnabledForProfile(cn, user);
+                                        }
                                         if (validPkg) {
                                             targetPackage = cn.getPackageName();
                                         }
@@ -2006,9 +2461,17 @@ public class LauncherModel extends BroadcastReceiver
                                     }
                                 } else if (itemType ==
                                         LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                                    info = getAppShortcutInfo(intent, user, context, c,
-                                            cursorIconInfo.iconIndex, titleIndex,
-                                            allowMissingTarget, useLowResIcon);
+                                    if (resolvedRow != null && resolvedRow.activityResolved
+                                            && resolvedRow.component.equals(intent.getComponent())) {
+                                        info = getAppShortcutInfo(resolvedRow.activityInfo,
+                                                resolvedRow.component, user, context, c,
+                                                cursorIconInfo.iconIndex, titleIndex,
+                                                allowMissingTarget, useLowResIcon);
+                                    } else {
+                                        info = getAppShortcutInfo(intent, user, context, c,
+                                                cursorIconInfo.iconIndex, titleIndex,
+                                                allowMissingTarget, useLowResIcon);
+                                    }
                                 } else {
                                     info = getShortcutInfo(c, context, titleIndex, cursorIconInfo);
 
@@ -2260,6 +2723,11 @@ public class LauncherModel extends BroadcastReceiver
                             Launcher.addDumpLog(TAG, "Desktop items loading interrupted", e, true);
                         }
                     }
+                    mMergeMillis = SystemClock.uptimeMillis() - mergeStart;
+                    if (DEBUG_LOADERS && resolver != null) {
+                        Log.d(TAG, "sharded load: read " + mShardReadMillis + "ms, resolve "
+                                + mShardResolveMillis + "ms, merge " + mMergeMillis + "ms");
+                    }
                 } finally {
                     if (c != null) {
                         c.close();
@@ -2315,6 +2783,12 @@ public class LauncherModel extends BroadcastReceiver
                                     LauncherSettings.Favorites._ID, restoredRows), null);
                 }
 
+                if (!isLastPass) {
+                    return;
+                }
+                mOccupied = null;
+                mInstallingPkgs = null;
+
                 if (!isSdCardReady && !sPendingPackages.isEmpty()) {
                     context.registerReceiver(new AppsAvailabilityCheck(),
                             new IntentFilter(StartupReceiver.SYSTEM_READY),
@@ -2349,10 +2823,10 @@ public class LauncherModel extends BroadcastReceiver
                             if (screenId > 0) {
                                 line += " | ";
                             }
-                            ItemInfo[][] screen = occupied.valueAt(i);
+                            GridOccupancy screen = occupied.valueAt(i);
                             for (int x = 0; x < countX; x++) {
-                                if (x < screen.length && y < screen[x].length) {
-                                    line += (screen[x][y] != null) ? "#" : ".";
+                                if (x < screen.getCountX() && y < screen.getCountY()) {
+                                    line += screen.isOccupied(x, y) ? "#" : ".";
                                 } else {
                                     line += "!";
                                 }
@@ -2508,6 +2982,18 @@ public class LauncherModel extends BroadcastReceiver
 
             // Bind the workspace items
             int N = workspaceItems.size();
+            if (N > 0 && (postOnMainThread || sWorkerThread.getThreadId() == Process.myTid())) {
+                // The items are bound from a queued runnable, stream them in adaptive batches.
+                final Runnable r = new ItemsBindTask(oldCallbacks, workspaceItems);
+                if (postOnMainThread) {
+                    synchronized (deferredBindRunnables) {
+                        deferredBindRunnables.add(r);
+                    }
+                } else {
+                    runOnMainThread(r);
+                }
+                N = 0;
+            }
             for (int i = 0; i < N; i += ITEMS_CHUNK) {
                 final int start = i;
                 final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
@@ -2569,10 +3055,63 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        /**
+         * Binds workspace items in batches on the main thread. The size of the next batch is
+         * derived from the time taken to bind the previous one, so that each batch fits in
+         * {@link #ITEMS_CHUNK_BUDGET_NANOS}. The remaining items are re-queued at the front of
+         * the main thread queue, to keep the order with the bind runnables posted after them.
+         */
+        private class ItemsBindTask implements Runnable {
+            private final Callbacks mOldCallbacks;
+            private final ArrayList<ItemInfo> mItems;
+            private int mStart = 0;
+
+            ItemsBindTask(Callbacks oldCallbacks, ArrayList<ItemInfo> items) {
+                mOldCallbacks = oldCallbacks;
+                mItems = items;
+            }
+
+            @Override
+            public void run() {
+                Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+                if (callbacks == null) {
+                    return;
+                }
+                final int end = Math.min(mStart + mItemsChunkSize, mItems.size());
+                final long start = System.nanoTime();
+                callbacks.bindItems(mItems, mStart, end, false);
+                final long elapsed = System.nanoTime() - start;
+
+                // Move half way towards the batch size which would have fit in the budget.
+                int count = end - mStart;
+                int target = elapsed <= 0 ? MAX_ITEMS_CHUNK
+                        : (int) Math.min(MAX_ITEMS_CHUNK, ITEMS_CHUNK_BUDGET_NANOS * count / elapsed);
+                mItemsChunkSize = Math.max(1, Math.min(MAX_ITEMS_CHUNK,
+                        (mItemsChunkSize + target) / 2));
+
+                mStart = end;
+                if (mStart < mItems.size()) {
+                    mHandler.postAtFrontOfQueue(this);
+                }
+            }
+        }
+
         /**
          * Binds all loaded data to actual views on the main thread.
          */
         private void bindWorkspace(int synchronizeBindPage) {
+            bindWorkspace(synchronizeBindPage, true, true);
+        }
+
+        /**
+         * Binds the loaded data to actual views on the main thread.
+         * @param bindCurrentPage whether to start binding and bind the items of the current page
+         * @param bindOtherPages whether to bind the items of all other pages and finish binding.
+         *          When the current page is not bound in the same call, the page bound by the
+         *          previous call is used as the current page.
+         */
+        private void bindWorkspace(int synchronizeBindPage, boolean bindCurrentPage,
+                boolean bindOtherPages) {
             final long t = SystemClock.uptimeMillis();
             Runnable r;
 
@@ -2612,12 +3151,14 @@ public class LauncherModel extends BroadcastReceiver
                 currScreen = PagedView.INVALID_RESTORE_PAGE;
             }
             final int currentScreen = currScreen;
-            final long currentScreenId = currentScreen < 0
-                    ? INVALID_SCREEN_ID : orderedScreenIds.get(currentScreen);
-
-            // Load all the items that are on the current page first (and in the process, unbind
-            // all the existing workspace items before we call startBinding() below.
-            unbindWorkspaceItemsOnMainThread();
+            final long currentScreenId;
+            if (bindCurrentPage) {
+                currentScreenId = currentScreen < 0
+                        ? INVALID_SCREEN_ID : orderedScreenIds.get(currentScreen);
+                mFirstBoundScreenId = currentScreenId;
+            } else {
+                currentScreenId = mFirstBoundScreenId;
+            }
 
             // Separate the items that are on the current screen, and all the other remaining items
             ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
@@ -2638,32 +3179,43 @@ public class LauncherModel extends BroadcastReceiver
             sortWorkspaceItemsSpatially(currentWorkspaceItems);
             sortWorkspaceItemsSpatially(otherWorkspaceItems);
 
-            // Tell the workspace that we're about to start binding items
-            r = new Runnable() {
-                public void run() {
-                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.startBinding();
-                    }
-                }
-            };
-            runOnMainThread(r);
-
-            bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+            if (bindCurrentPage) {
+                // Load all the items that are on the current page first (and in the process,
+                // unbind all the existing workspace items before we call startBinding() below.
+                unbindWorkspaceItemsOnMainThread();
 
-            // Load items on the current page
-            bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
-                    currentFolders, null);
-            if (isLoadingSynchronously) {
+                // Tell the workspace that we're about to start binding items
                 r = new Runnable() {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null && currentScreen != PagedView.INVALID_RESTORE_PAGE) {
-                            callbacks.onPageBoundSynchronously(currentScreen);
+                        if (callbacks != null) {
+                            callbacks.startBinding();
                         }
                     }
                 };
                 runOnMainThread(r);
+
+                bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+
+                // Load items on the current page
+                bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
+                        currentFolders, null);
+                if (isLoadingSynchronously) {
+                    r = new Runnable() {
+                        public void run() {
+                            Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                            if (callbacks != null
+                                    && currentScreen != PagedView.INVALID_RESTORE_PAGE) {
+                                callbacks.onPageBoundSynchronously(currentScreen);
+                            }
+                        }
+                    };
+                    runOnMainThread(r);
+                }
+            }
+
+            if (!bindOtherPages) {
+                return;
             }
 
             // Load all the remaining pages (if we are loading synchronously, we want to defer this
@@ -2817,6 +3369,14 @@ public class LauncherModel extends BroadcastReceiver
                     return;
                 }
                 boolean quietMode = mUserManager.isQuietModeEnabled(user);
+
+                // Read the cached icons of all the apps in one go.
+                ArrayList<ComponentKey> iconKeys = new ArrayList<>(apps.size());
+                for (LauncherActivityInfoCompat app : apps) {
+                    iconKeys.add(new ComponentKey(app.getComponentName(), user));
+                }
+                mIconCache.prefetchEntriesFromDB(iconKeys, true /* useLowResIcon */);
+
                 // Create the ApplicationInfos
                 for (int i = 0; i < apps.size(); i++) {
                     LauncherActivityInfoCompat app = apps.get(i);
@@ -2885,6 +3445,8 @@ public class LauncherModel extends BroadcastReceiver
                 Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
                 Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
                 Log.d(TAG, "mItems size=" + sBgWorkspaceItems.size());
+                Log.d(TAG, "mLoaderTask.load timings read=" + mShardReadMillis + "ms resolve="
+                        + mShardResolveMillis + "ms merge=" + mMergeMillis + "ms");
             }
         }
     }
@@ -2900,7 +3462,7 @@ public class LauncherModel extends BroadcastReceiver
         // If any package icon has changed (app was updated while launcher was dead),
         // update the corresponding shortcuts.
         synchronized (sBgLock) {
-            for (ItemInfo info : sBgItemsIdMap) {
+            for (ItemInfo info : sBgItemsIdMap.getItemsForPackages(updatedPackages, user)) {
                 if (info instanceof ShortcutInfo && user.equals(info.user)
                         && info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
                     ShortcutInfo si = (ShortcutInfo) info;
@@ -2941,8 +3503,136 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Queues a package change. The changes received in a short window are merged, so that a burst
+     * of changes, like updating many apps at once, only walks the model and binds once.
+     */
     void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+        synchronized (mPendingPackageUpdates) {
+            long now = SystemClock.uptimeMillis();
+            if (mPendingPackageUpdates.isEmpty()) {
+                mFirstPendingPackageUpdateTime = now;
+            }
+            mPendingPackageUpdates.add(task);
+
+            // Wait for more changes, unless the first pending change waited long enough already.
+            long delay = Math.min(PACKAGE_UPDATE_DELAY_MS,
+                    mFirstPendingPackageUpdateTime + PACKAGE_UPDATE_MAX_DELAY_MS - now);
+            sWorker.removeCallbacks(mApplyPendingPackageUpdates);
+            sWorker.postDelayed(mApplyPendingPackageUpdates, Math.max(delay, 0));
+        }
+    }
+
+    @Thunk void applyPendingPackageUpdates() {
+        ArrayList<PackageUpdatedTask> pending;
+        synchronized (mPendingPackageUpdates) {
+            pending = new ArrayList<>(mPendingPackageUpdates);
+            mPendingPackageUpdates.clear();
+        }
+        for (PackageUpdate update : mergePackageUpdates(pending)) {
+            new PackageUpdatedTask(update.mOp, update.mPackages, update.mUser).run();
+        }
+    }
+
+    /**
+     * Merges {@param updates} into as few updates as possible, keeping the order in which they
+     * were received. User availability changes are kept in place, only repeated ones are dropped,
+     * and the package changes received between two of them are merged together.
+     */
+    static ArrayList<PackageUpdate> mergePackageUpdates(List<? extends PackageUpdate> updates) {
+        ArrayList<PackageUpdate> merged = new ArrayList<>();
+        int start = 0;
+        int count = updates.size();
+        for (int i = 0; i < count; i++) {
+            PackageUpdate update = updates.get(i);
+            if (update.mOp != PackageUpdate.OP_USER_AVAILABILITY_CHANGE) {
+                continue;
+            }
+            mergePackageChanges(updates.subList(start, i), merged);
+            start = i + 1;
+
+            // The availability is read when the update runs, so the same change twice in a row
+            // is only applied once.
+            PackageUpdate last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last == null || last.mOp != PackageUpdate.OP_USER_AVAILABILITY_CHANGE
+                    || !last.mUser.equals(update.mUser)) {
+                merged.add(new PackageUpdate(update.mOp, update.mPackages, update.mUser));
+            }
+        }
+        mergePackageChanges(updates.subList(start, count), merged);
+        if (DEBUG_LOADERS) {
+            Log.d(TAG, "mergePackageUpdates " + count + " -> " + merged.size());
+        }
+        return merged;
+    }
+
+    /**
+     * Merges the package changes {@param updates} and adds them to {@param out}. The changes of
+     * each package are kept in order, but consecutive changes which have the same result as the
+     * last one are dropped. The n-th remaining change of every package is then applied by one
+     * update per op and user.
+     */
+    private static void mergePackageChanges(List<? extends PackageUpdate> updates,
+            ArrayList<PackageUpdate> out) {
+        HashMap<UserHandleCompat, LinkedHashMap<String, ArrayList<Integer>>> opsPerUser =
+                new HashMap<>();
+        int rounds = 0;
+
+        for (PackageUpdate update : updates) {
+            LinkedHashMap<String, ArrayList<Integer>> opsPerPackage =
+                    opsPerUser.get(update.mUser);
+            if (opsPerPackage == null) {
+                opsPerPackage = new LinkedHashMap<>();
+                opsPerUser.put(update.mUser, opsPerPackage);
+            }
+            for (String packageName : update.mPackages) {
+                ArrayList<Integer> ops = opsPerPackage.get(packageName);
+                if (ops == null) {
+                    ops = new ArrayList<>();
+                    opsPerPackage.put(packageName, ops);
+                }
+                int last = ops.isEmpty() ? PackageUpdate.OP_NONE : ops.get(ops.size() - 1);
+                if (last == update.mOp) {
+                    // Every op applies the current state of the package, doing it twice in a
+                    // row is not needed.
+                    continue;
+                }
+                if (isSuspendOp(last) && isSuspendOp(update.mOp)) {
+                    // Only the last suspend state matters.
+                    ops.set(ops.size() - 1, update.mOp);
+                } else {
+                    ops.add(update.mOp);
+                }
+                rounds = Math.max(rounds, ops.size());
+            }
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            for (Entry<UserHandleCompat, LinkedHashMap<String, ArrayList<Integer>>> userOps
+                    : opsPerUser.entrySet()) {
+                LinkedHashMap<Integer, ArrayList<String>> packagesPerOp = new LinkedHashMap<>();
+                for (Entry<String, ArrayList<Integer>> packageOps : userOps.getValue().entrySet()) {
+                    if (packageOps.getValue().size() > round) {
+                        int op = packageOps.getValue().get(round);
+                        ArrayList<String> packages = packagesPerOp.get(op);
+                        if (packages == null) {
+                            packages = new ArrayList<>();
+                            packagesPerOp.put(op, packages);
+                        }
+                        packages.add(packageOps.getKey());
+                    }
+                }
+                for (Entry<Integer, ArrayList<String>> opPackages : packagesPerOp.entrySet()) {
+                    ArrayList<String> packages = opPackages.getValue();
+                    out.add(new PackageUpdate(opPackages.getKey(),
+                            packages.toArray(new String[packages.size()]), userOps.getKey()));
+                }
+            }
+        }
+    }
+
+    private static boolean isSuspendOp(int op) {
+        return op == PackageUpdatedTask.OP_SUSPEND || op == PackageUpdatedTask.OP_UNSUSPEND;
     }
 
     @Thunk class AppsAvailabilityCheck extends BroadcastReceiver {
@@ -2983,11 +3673,10 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
-    private class PackageUpdatedTask implements Runnable {
-        int mOp;
-        String[] mPackages;
-        UserHandleCompat mUser;
-
+    /**
+     * A change of some packages of a user, applied by a {@link PackageUpdatedTask}.
+     */
+    static class PackageUpdate {
         public static final int OP_NONE = 0;
         public static final int OP_ADD = 1;
         public static final int OP_UPDATE = 2;
@@ -2997,11 +3686,22 @@ public class LauncherModel extends BroadcastReceiver
         public static final int OP_UNSUSPEND = 6; // package unsuspended
         public static final int OP_USER_AVAILABILITY_CHANGE = 7; // user available/unavailable
 
-        public PackageUpdatedTask(int op, String[] packages, UserHandleCompat user) {
+        final int mOp;
+        final String[] mPackages;
+        final UserHandleCompat mUser;
+
+        PackageUpdate(int op, String[] packages, UserHandleCompat user) {
             mOp = op;
             mPackages = packages;
             mUser = user;
         }
+    }
+
+    private class PackageUpdatedTask extends PackageUpdate implements Runnable {
+
+        public PackageUpdatedTask(int op, String[] packages, UserHandleCompat user) {
+            super(op, packages, user);
+        }
 
         public void run() {
             if (!mHasLoaderCompletedOnce) {
@@ -3125,7 +3825,12 @@ public class LauncherModel extends BroadcastReceiver
                 final ArrayList<LauncherAppWidgetInfo> widgets = new ArrayList<LauncherAppWidgetInfo>();
 
                 synchronized (sBgLock) {
-                    for (ItemInfo info : sBgItemsIdMap) {
+                    // Only the items referring to the changed packages can be affected, unless
+                    // all the packages of the user changed.
+                    Iterable<ItemInfo> affectedItems = mOp == OP_USER_AVAILABILITY_CHANGE
+                            ? sBgItemsIdMap
+                            : sBgItemsIdMap.getItemsForPackages(Arrays.asList(packages), mUser);
+                    for (ItemInfo info : affectedItems) {
                         if (info instanceof ShortcutInfo && mUser.equals(info.user)) {
                             ShortcutInfo si = (ShortcutInfo) info;
                             boolean infoUpdated = false;
@@ -3315,19 +4020,17 @@ public class LauncherModel extends BroadcastReceiver
                 });
             }
 
-            // Notify launcher of widget update. From marshmallow onwards we use AppWidgetHost to
-            // get widget update signals.
-            if (!Utilities.ATLEAST_MARSHMALLOW &&
-                    (mOp == OP_ADD || mOp == OP_REMOVE || mOp == OP_UPDATE)) {
-                final Callbacks callbacks = getCallback();
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (callbacks == cb && cb != null) {
-                            callbacks.notifyWidgetProvidersChanged();
-                        }
-                    }
-                });
+            // Update the widgets of the changed packages, unless the widgets were never loaded.
+            // From marshmallow onwards AppWidgetHost also signals the change, the full reload it
+            // triggers is skipped if only the providers of these packages changed.
+            if ((mOp == OP_ADD || mOp == OP_REMOVE || mOp == OP_UPDATE)
+                    && !mBgWidgetsModel.isEmpty()) {
+                bindWidgetsModel(getCallback(),
+                        mBgWidgetsModel.updatePackages(context, packages, mUser));
+                long now = SystemClock.uptimeMillis();
+                for (String packageName : packages) {
+                    mPackageWidgetsUpdateTimes.put(Pair.create(packageName, mUser), now);
+                }
             }
         }
     }
@@ -3361,6 +4064,37 @@ public class LauncherModel extends BroadcastReceiver
         });
     }
 
+    /**
+     * Reloads all the widgets after AppWidgetHost reported a change of the providers, unless the
+     * package changes applied around the same time already updated all the changed providers.
+     * The changed providers are not known, so the reload waits for the package changes received
+     * along with it, and then compares the providers with the ones of the model.
+     */
+    public void refreshAndBindWidgetsAfterProvidersChanged(
+            final Callbacks callbacks, final boolean bindFirst) {
+        final long requestTime = SystemClock.uptimeMillis();
+        sWorker.removeCallbacksAndMessages(PROVIDERS_CHANGED_TOKEN);
+        sWorker.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                // Only the packages updated around the request may have caused it.
+                Iterator<Long> times = mPackageWidgetsUpdateTimes.values().iterator();
+                while (times.hasNext()) {
+                    if (times.next() < requestTime - PACKAGE_UPDATE_MAX_DELAY_MS) {
+                        times.remove();
+                    }
+                }
+                if (!mPackageWidgetsUpdateTimes.isEmpty() && !mBgWidgetsModel.isEmpty()
+                        && mBgWidgetsModel.providersChangedOnlyIn(mApp.getContext(),
+                                mPackageWidgetsUpdateTimes.keySet())) {
+                    return;
+                }
+                refreshAndBindWidgetsAndShortcuts(callbacks, bindFirst);
+            }
+        }, PROVIDERS_CHANGED_TOKEN,
+                requestTime + PACKAGE_UPDATE_MAX_DELAY_MS + PACKAGE_UPDATE_DELAY_MS);
+    }
+
     @Thunk static boolean isPackageDisabled(Context context, String packageName,
             UserHandleCompat user) {
         final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
@@ -3466,6 +4200,16 @@ public class LauncherModel extends BroadcastReceiver
         newIntent.addCategory(Intent.CATEGORY_LAUNCHER);
         newIntent.setComponent(componentName);
         LauncherActivityInfoCompat lai = mLauncherApps.resolveActivity(newIntent, user);
+        return getAppShortcutInfo(lai, componentName, user, context, c, iconIndex, titleIndex,
+                allowMissingTarget, useLowResIcon);
+    }
+
+    /**
+     * Make an ShortcutInfo object for an application whose activity has already been resolved.
+     */
+    @Thunk ShortcutInfo getAppShortcutInfo(LauncherActivityInfoCompat lai,
+            ComponentName componentName, UserHandleCompat user, Context context, Cursor c,
+            int iconIndex, int titleIndex, boolean allowMissingTarget, boolean useLowResIcon) {
         if ((lai == null) && !allowMissingTarget) {
             Log.d(TAG, "Missing activity found in getShortcutInfo: " + componentName);
             return null;
@@ -3542,7 +4286,9 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
         };
-        return filterItemInfos(sBgItemsIdMap, filter);
+        synchronized (sBgLock) {
+            return filterItemInfos(sBgItemsIdMap.getItemsForComponent(cname, user), filter);
+        }
     }
 
     /**
@@ -3643,6 +4389,12 @@ public class LauncherModel extends BroadcastReceiver
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mBgAllAppsList.added);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mBgAllAppsList.removed);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mBgAllAppsList.modified);
+        mIconCache.dumpState();
+        sWriteQueue.dumpState();
+        LauncherProvider provider = LauncherAppState.getLauncherProvider();
+        if (provider != null) {
+            Log.d(TAG, "provider notifications saved=" + provider.getSavedNotificationCount());
+        }
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
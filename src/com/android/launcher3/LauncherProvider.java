@@ -80,6 +80,20 @@ public class LauncherProvider extends ContentProvider {
     @Thunk LauncherProviderChangeListener mListener;
     protected DatabaseHelper mOpenHelper;
 
+    /**
+     * Changes made by a batch on the calling thread, which are notified when the batch ends.
+     */
+    private static class BatchState {
+        int depth;
+        int changes;
+        boolean reloadLauncher;
+        final HashSet<Uri> changedUris = new HashSet<>();
+    }
+
+    private final ThreadLocal<BatchState> mBatchState = new ThreadLocal<>();
+    // Number of change notifications which were merged into the notification of their batch.
+    private int mSavedNotifications;
+
     @Override
     public boolean onCreate() {
         final Context context = getContext();
@@ -151,13 +165,92 @@ public class LauncherProvider extends ContentProvider {
 
     private void reloadLauncherIfExternal() {
         if (Utilities.ATLEAST_MARSHMALLOW && Binder.getCallingPid() != Process.myPid()) {
-            LauncherAppState app = LauncherAppState.getInstanceNoCreate();
-            if (app != null) {
-                app.reloadWorkspace();
+            reloadLauncher();
+        }
+    }
+
+    private void reloadLauncher() {
+        BatchState batch = mBatchState.get();
+        if (batch != null) {
+            batch.reloadLauncher = true;
+            return;
+        }
+        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+        if (app != null) {
+            app.reloadWorkspace();
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        BatchState batch = mBatchState.get();
+        if (batch != null) {
+            batch.changedUris.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Notifies the listeners of a change, or records it if a batch is in progress.
+     */
+    private void onDataChanged() {
+        BatchState batch = mBatchState.get();
+        if (batch != null) {
+            batch.changes++;
+            return;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Starts a batch on the calling thread. Until the matching {@link #endBatch}, the changes made
+     * on this thread are not notified, and are notified only once when the batch ends. Batches
+     * can be nested, the changes are notified when the outermost batch ends.
+     */
+    public void beginBatch() {
+        BatchState batch = mBatchState.get();
+        if (batch == null) {
+            batch = new BatchState();
+            mBatchState.set(batch);
+        }
+        batch.depth++;
+    }
+
+    public void endBatch() {
+        endBatch(true);
+    }
+
+    /**
+     * @param notify false if the changes of the batch were rolled back and should not be notified
+     */
+    private void endBatch(boolean notify) {
+        BatchState batch = mBatchState.get();
+        if (batch == null || --batch.depth > 0) {
+            return;
+        }
+        mBatchState.remove();
+        if (!notify) {
+            return;
+        }
+
+        if (batch.changes > 0) {
+            synchronized (this) {
+                mSavedNotifications += batch.changes - 1;
             }
+            notifyListeners();
+        }
+        for (Uri uri : batch.changedUris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        if (batch.reloadLauncher) {
+            reloadLauncher();
         }
     }
 
+    public synchronized int getSavedNotificationCount() {
+        return mSavedNotifications;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
         SqlArguments args = new SqlArguments(uri);
@@ -175,20 +268,19 @@ public class LauncherProvider extends ContentProvider {
         if (rowId < 0) return null;
 
         uri = ContentUris.withAppendedId(uri, rowId);
-        notifyListeners();
+        onDataChanged();
 
         if (Utilities.ATLEAST_MARSHMALLOW) {
             reloadLauncherIfExternal();
         } else {
             // Deprecated behavior to support legacy devices which rely on provider callbacks.
-            LauncherAppState app = LauncherAppState.getInstanceNoCreate();
-            if (app != null && "true".equals(uri.getQueryParameter("isExternalAdd"))) {
-                app.reloadWorkspace();
+            if ("true".equals(uri.getQueryParameter("isExternalAdd"))) {
+                reloadLauncher();
             }
 
             String notify = uri.getQueryParameter("notify");
             if (notify == null || "true".equals(notify)) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
             }
         }
         return uri;
@@ -214,7 +306,7 @@ public class LauncherProvider extends ContentProvider {
             db.endTransaction();
         }
 
-        notifyListeners();
+        onDataChanged();
         reloadLauncherIfExternal();
         return values.length;
     }
@@ -223,14 +315,22 @@ public class LauncherProvider extends ContentProvider {
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        // Each operation notifies its change, only notify once for the whole batch.
+        boolean committed = false;
+        beginBatch();
         try {
-            ContentProviderResult[] result =  super.applyBatch(operations);
-            db.setTransactionSuccessful();
-            reloadLauncherIfExternal();
-            return result;
+            db.beginTransaction();
+            try {
+                ContentProviderResult[] result =  super.applyBatch(operations);
+                db.setTransactionSuccessful();
+                committed = true;
+                reloadLauncherIfExternal();
+                return result;
+            } finally {
+                db.endTransaction();
+            }
         } finally {
-            db.endTransaction();
+            endBatch(committed);
         }
     }
 
@@ -240,7 +340,7 @@ public class LauncherProvider extends ContentProvider {
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = db.delete(args.table, args.where, args.args);
-        if (count > 0) notifyListeners();
+        if (count > 0) onDataChanged();
 
         reloadLauncherIfExternal();
         return count;
@@ -253,7 +353,7 @@ public class LauncherProvider extends ContentProvider {
         addModifiedTime(values);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = db.update(args.table, values, args.where, args.args);
-        if (count > 0) notifyListeners();
+        if (count > 0) onDataChanged();
 
         reloadLauncherIfExternal();
         return count;
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Binary snapshot of the workspace model, written after each successful load so that the next
+ * cold start can bind the workspace before the favorites table and the package manager have been
+ * queried.
+ *
+ * The file is read through a memory mapped buffer. It starts with a header holding the format
+ * version and the grid size it was written for, followed by the screen order and the items.
+ * Folders are always written before their contents. Icons of application shortcuts are not
+ * stored, they are looked up again from the {@link IconCache} by component.
+ */
+class ModelSnapshot {
+
+    private static final String TAG = "Launcher.ModelSnapshot";
+
+    private static final String FILE_NAME = "model_snapshot.bin";
+
+    private static final int MAGIC = 0x4c4d534e;
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context mContext;
+    private final File mFile;
+
+    final ArrayList<Long> screens = new ArrayList<>();
+    final LongArrayMap<ItemInfo> items = new LongArrayMap<>();
+
+    ModelSnapshot(Context context) {
+        mContext = context;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Serializes the given model. Should be called while holding the lock on the model. Returns
+     * null if the model contains items which can not be restored from a snapshot, like items
+     * which are still being installed.
+     */
+    byte[] serialize(ArrayList<Long> workspaceScreens, LongArrayMap<FolderInfo> folders,
+            ArrayList<ItemInfo> workspaceItems) {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeHeader(out);
+            out.writeInt(workspaceScreens.size());
+            for (Long screenId : workspaceScreens) {
+                out.writeLong(screenId);
+            }
+
+            int count = workspaceItems.size();
+            for (FolderInfo folder : folders) {
+                count += folder.contents.size();
+            }
+            out.writeInt(count);
+
+            // Folders are part of workspaceItems, write them out first.
+            for (ItemInfo info : workspaceItems) {
+                if (info instanceof FolderInfo && !writeItem(out, info, userManager)) {
+                    return null;
+                }
+            }
+            for (ItemInfo info : workspaceItems) {
+                if (!(info instanceof FolderInfo) && !writeItem(out, info, userManager)) {
+                    return null;
+                }
+            }
+            for (FolderInfo folder : folders) {
+                for (ShortcutInfo info : folder.contents) {
+                    if (!writeItem(out, info, userManager)) {
+                        return null;
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Error serializing model", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes {@param data} to disk, replacing the previous snapshot atomically.
+     */
+    void write(byte[] data) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to replace the model snapshot");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing model snapshot", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    void delete() {
+        mFile.delete();
+    }
+
+    /**
+     * Reads the snapshot from disk into {@link #screens} and {@link #items}. Returns false if
+     * there is no snapshot, or it was written for a different version or grid.
+     */
+    boolean read(IconCache iconCache) {
+        screens.clear();
+        items.clear();
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!readHeader(in)) {
+                return false;
+            }
+
+            UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+            int screenCount = in.getInt();
+            for (int i = 0; i < screenCount; i++) {
+                screens.add(in.getLong());
+            }
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                ItemInfo info = readItem(in, userManager, iconCache);
+                if (info == null) {
+                    items.clear();
+                    screens.clear();
+                    return false;
+                }
+                items.put(info.id, info);
+            }
+            return true;
+        } catch (Exception e) {
+            // Includes buffer underflows of truncated files.
+            Log.e(TAG, "Error reading model snapshot", e);
+            items.clear();
+            screens.clear();
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        InvariantDeviceProfile profile = LauncherAppState.getInstance().getInvariantDeviceProfile();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(profile.numRows);
+        out.writeInt(profile.numColumns);
+        out.writeInt(profile.numHotseatIcons);
+    }
+
+    private boolean readHeader(ByteBuffer in) {
+        InvariantDeviceProfile profile = LauncherAppState.getInstance().getInvariantDeviceProfile();
+        return in.getInt() == MAGIC
+                && in.getInt() == VERSION
+                && in.getInt() == profile.numRows
+                && in.getInt() == profile.numColumns
+                && in.getInt() == profile.numHotseatIcons;
+    }
+
+    private static boolean writeItem(DataOutputStream out, ItemInfo info,
+            UserManagerCompat userManager) throws IOException {
+        out.writeInt(info.itemType);
+        out.writeLong(info.id);
+        out.writeLong(info.container);
+        out.writeLong(info.screenId);
+        out.writeInt(info.cellX);
+        out.writeInt(info.cellY);
+        out.writeInt(info.spanX);
+        out.writeInt(info.spanY);
+        out.writeInt(info.rank);
+        out.writeLong(userManager.getSerialNumberForUser(info.user));
+        writeString(out, info.title == null ? null : info.title.toString());
+
+        if (info instanceof ShortcutInfo) {
+            ShortcutInfo si = (ShortcutInfo) info;
+            if (si.status != ShortcutInfo.DEFAULT || si.intent == null) {
+                return false;
+            }
+            writeString(out, si.intent.toUri(0));
+            out.writeInt(si.isDisabled);
+            out.writeBoolean(si.usingLowResIcon);
+            if (si.itemType == LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+                // Shortcut icons are not part of the icon cache, store them inline.
+                Bitmap icon = si.getIcon(null);
+                out.writeBoolean(si.customIcon);
+                writeBytes(out, icon == null ? null : Utilities.flattenBitmap(icon));
+            }
+        } else if (info instanceof FolderInfo) {
+            out.writeInt(((FolderInfo) info).options);
+        } else if (info instanceof LauncherAppWidgetInfo) {
+            LauncherAppWidgetInfo widget = (LauncherAppWidgetInfo) info;
+            if (widget.restoreStatus != LauncherAppWidgetInfo.RESTORE_COMPLETED) {
+                return false;
+            }
+            out.writeInt(widget.appWidgetId);
+            writeString(out, widget.providerName.flattenToString());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private ItemInfo readItem(ByteBuffer in, UserManagerCompat userManager,
+            IconCache iconCache) throws URISyntaxException {
+        int itemType = in.getInt();
+        long id = in.getLong();
+        long container = in.getLong();
+        long screenId = in.getLong();
+        int cellX = in.getInt();
+        int cellY = in.getInt();
+        int spanX = in.getInt();
+        int spanY = in.getInt();
+        int rank = in.getInt();
+        UserHandleCompat user = userManager.getUserForSerialNumber(in.getLong());
+        String title = readString(in);
+        if (user == null) {
+            return null;
+        }
+
+        final ItemInfo info;
+        switch (itemType) {
+            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT: {
+                ShortcutInfo si = new ShortcutInfo();
+                si.intent = Intent.parseUri(readString(in), 0);
+                si.isDisabled = in.getInt();
+                boolean useLowResIcon = in.get() != 0;
+                if (itemType == LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+                    si.customIcon = in.get() != 0;
+                    byte[] data = readBytes(in);
+                    Bitmap icon = data == null ? null : Utilities.createIconBitmap(
+                            BitmapFactory.decodeByteArray(data, 0, data.length), mContext);
+                    if (icon == null) {
+                        icon = iconCache.getDefaultIcon(user);
+                        si.usingFallbackIcon = true;
+                    }
+                    si.setIcon(icon);
+                    si.title = title;
+                } else {
+                    ComponentName cn = si.intent.getComponent();
+                    if (cn == null) {
+                        return null;
+                    }
+                    // The activity is not resolved, the icon is read back from the icon db.
+                    iconCache.getTitleAndIconFromDb(si, cn, user, useLowResIcon);
+                    if (title != null) {
+                        si.title = title;
+                    }
+                }
+                info = si;
+                break;
+            }
+            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER: {
+                FolderInfo folder = new FolderInfo();
+                folder.options = in.getInt();
+                folder.title = title;
+                info = folder;
+                break;
+            }
+            case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+            case LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET: {
+                int appWidgetId = in.getInt();
+                ComponentName provider = ComponentName.unflattenFromString(readString(in));
+                if (provider == null) {
+                    return null;
+                }
+                info = new LauncherAppWidgetInfo(appWidgetId, provider);
+                break;
+            }
+            default:
+                return null;
+        }
+
+        info.itemType = itemType;
+        info.id = id;
+        info.container = container;
+        info.screenId = screenId;
+        info.cellX = cellX;
+        info.cellY = cellY;
+        info.spanX = spanX;
+        info.spanY = spanY;
+        info.rank = rank;
+        info.user = user;
+
+        if (container >= 0) {
+            ItemInfo folder = items.get(container);
+            if (!(folder instanceof FolderInfo) || !(info instanceof ShortcutInfo)) {
+                return null;
+            }
+            ((FolderInfo) folder).add((ShortcutInfo) info);
+        }
+        return info;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        writeBytes(out, str == null ? null : str.getBytes(UTF_8));
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
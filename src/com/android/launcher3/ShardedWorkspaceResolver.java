@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.launcher3.compat.AppWidgetManagerCompat;
+import com.android.launcher3.compat.LauncherActivityInfoCompat;
+import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.LongArrayMap;
+import com.android.launcher3.util.Thunk;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Resolves the shortcut rows of the favorites table ahead of the workspace loader. The cursor is
+ * read once into a compact row buffer, which is then split into shards (one per workspace screen,
+ * one for the hotseat and one per folder) that are resolved in parallel. Resolving a row covers
+ * the package manager lookups and warming the {@link IconCache} entry for the row.
+ *
+ * The loader still creates the ItemInfos and checks their placement while walking the cursor in
+ * order, so the resulting model is identical to the one produced by a serial load.
+ */
+class ShardedWorkspaceResolver {
+
+    private static final String TAG = "Launcher.ShardedResolver";
+
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Result of resolving a single row.
+     */
+    static class ResolvedRow {
+        ComponentName component;
+        boolean validPkg;
+        boolean validComponent;
+
+        // Only set for application rows which are not being restored.
+        boolean activityResolved;
+        LauncherActivityInfoCompat activityInfo;
+    }
+
+    /**
+     * Compact copy of the columns needed to resolve a row.
+     */
+    private static class Row {
+        int position;
+        int itemType;
+        boolean restored;
+        boolean lowRes;
+        Intent intent;
+        UserHandleCompat user;
+    }
+
+    private final Context mContext;
+    private final LauncherAppsCompat mLauncherApps;
+    private final IconCache mIconCache;
+
+    private ResolvedRow[] mResolvedRows;
+    private Future<HashMap<ComponentKey, AppWidgetProviderInfo>> mWidgetProviders;
+
+    // Timing counters for the last call to resolve()
+    long mReadMillis;
+    long mResolveMillis;
+    int mRowCount;
+    int mShardCount;
+
+    ShardedWorkspaceResolver(Context context, IconCache iconCache) {
+        mContext = context;
+        mLauncherApps = LauncherAppsCompat.getInstance(context);
+        mIconCache = iconCache;
+    }
+
+    /**
+     * Resolves all the shortcut rows of {@param c} and rewinds the cursor before returning.
+     */
+    void resolve(Cursor c, LongSparseArray<UserHandleCompat> allUsers) {
+        final long readStart = SystemClock.uptimeMillis();
+        final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
+        final int containerIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CONTAINER);
+        final int itemTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ITEM_TYPE);
+        final int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
+        final int rankIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.RANK);
+        final int restoredIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.RESTORED);
+        final int profileIdIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.PROFILE_ID);
+
+        mResolvedRows = new ResolvedRow[c.getCount()];
+        mRowCount = 0;
+        boolean hasWidgets = false;
+
+        // Shards are keyed by screen id for desktop items and by container id for everything else.
+        final LongArrayMap<ArrayList<Row>> shards = new LongArrayMap<>();
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            int itemType = c.getInt(itemTypeIndex);
+            if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET) {
+                hasWidgets = true;
+                continue;
+            }
+            if (itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION &&
+                    itemType != LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+                continue;
+            }
+            UserHandleCompat user = allUsers.get(c.getInt(profileIdIndex));
+            if (user == null) {
+                continue;
+            }
+            Row row = new Row();
+            try {
+                row.intent = Intent.parseUri(c.getString(intentIndex), 0);
+            } catch (URISyntaxException e) {
+                continue;
+            }
+            if (row.intent.getComponent() == null) {
+                continue;
+            }
+            int container = c.getInt(containerIndex);
+            row.position = c.getPosition();
+            row.itemType = itemType;
+            row.user = user;
+            row.restored = c.getInt(restoredIndex) != 0;
+            row.lowRes = container >= 0 && c.getInt(rankIndex) >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
+
+            long shardKey = container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                    ? c.getLong(screenIndex) : container;
+            ArrayList<Row> shard = shards.get(shardKey);
+            if (shard == null) {
+                shard = new ArrayList<>();
+                shards.put(shardKey, shard);
+            }
+            shard.add(row);
+            mRowCount++;
+        }
+        c.moveToPosition(-1);
+        mShardCount = shards.size();
+
+        final long resolveStart = SystemClock.uptimeMillis();
+        mReadMillis = resolveStart - readStart;
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(MAX_THREADS, mShardCount)));
+        try {
+            if (hasWidgets) {
+                mWidgetProviders = executor.submit(
+                        new Callable<HashMap<ComponentKey, AppWidgetProviderInfo>>() {
+                            @Override
+                            public HashMap<ComponentKey, AppWidgetProviderInfo> call() {
+                                return AppWidgetManagerCompat.getInstance(mContext)
+                                        .getAllProvidersMap();
+                            }
+                        });
+            }
+
+            ArrayList<Future<?>> pending = new ArrayList<>(mShardCount);
+            for (final ArrayList<Row> shard : shards) {
+                pending.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetchIcons(shard);
+                        for (Row row : shard) {
+                            // Each row position is only written by a single shard.
+                            mResolvedRows[row.position] = resolveRow(row);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (Exception e) {
+                    // The loader falls back to resolving the remaining rows itself.
+                    Log.e(TAG, "Error resolving workspace shard", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        mResolveMillis = SystemClock.uptimeMillis() - resolveStart;
+
+        if (LauncherModel.DEBUG_LOADERS) {
+            Log.d(TAG, "read " + mRowCount + " rows in " + mReadMillis + "ms, resolved "
+                    + mShardCount + " shards in " + mResolveMillis + "ms");
+        }
+    }
+
+    /**
+     * Reads the cached icons of all the applications in {@param shard} with batched queries.
+     */
+    @Thunk void prefetchIcons(ArrayList<Row> shard) {
+        ArrayList<ComponentKey> lowResKeys = new ArrayList<>();
+        ArrayList<ComponentKey> highResKeys = new ArrayList<>();
+        for (Row row : shard) {
+            if (row.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION && !row.restored) {
+                ComponentKey key = new ComponentKey(row.intent.getComponent(), row.user);
+                (row.lowRes ? lowResKeys : highResKeys).add(key);
+            }
+        }
+        mIconCache.prefetchEntriesFromDB(highResKeys, false);
+        mIconCache.prefetchEntriesFromDB(lowResKeys, true);
+    }
+
+    @Thunk ResolvedRow resolveRow(Row row) {
+        ResolvedRow result = new ResolvedRow();
+        result.component = row.intent.getComponent();
+        String pkg = result.component.getPackageName();
+        result.validPkg = mLauncherApps.isPackageEnabledForProfile(pkg, row.user);
+        result.validComponent = result.validPkg &&
+                mLauncherApps.isActivityEnabledForProfile(result.component, row.user);
+
+        if (row.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION && !row.restored
+                && result.validComponent) {
+            Intent newIntent = new Intent(row.intent.getAction(), null);
+            newIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+            newIntent.setComponent(result.component);
+            result.activityInfo = mLauncherApps.resolveActivity(newIntent, row.user);
+            result.activityResolved = true;
+
+            // Warm up the icon cache, the loader will read the entry back from memory.
+            mIconCache.getTitleAndIcon(new ShortcutInfo(), result.component,
+                    result.activityInfo, row.user, false, row.lowRes);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the resolved row at the cursor {@param position}, or null if the row was not
+     * resolved ahead of time.
+     */
+    ResolvedRow getResolvedRow(int position) {
+        return mResolvedRows != null && position >= 0 && position < mResolvedRows.length
+                ? mResolvedRows[position] : null;
+    }
+
+    /**
+     * Returns the widget providers fetched in parallel with the shards, or null if they were not
+     * fetched.
+     */
+    HashMap<ComponentKey, AppWidgetProviderInfo> getWidgetProviders() {
+        if (mWidgetProviders == null) {
+            return null;
+        }
+        try {
+            return mWidgetProviders.get();
+        } catch (Exception e) {
+            Log.e(TAG, "Error fetching widget providers", e);
+            return null;
+        }
+    }
+}
@@ -63,6 +63,7 @@ import android.widget.Toast;
 
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.IconNormalizer;
 
 import java.io.ByteArrayOutputStream;
@@ -203,22 +204,34 @@ public final class Utilities {
      * Returns a bitmap suitable for the all apps view. The icon is badged for {@param user}.
      * The bitmap is also visually normalized with other icons.
      */
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public static Bitmap createBadgedIconBitmap(
             Drawable icon, UserHandleCompat user, Context context) {
+        return createBadgedIconBitmap(icon, user, context, null);
+    }
+
+    /**
+     * Same as {@link #createBadgedIconBitmap(Drawable, UserHandleCompat, Context)}, the bitmaps
+     * are taken from and the intermediate ones returned to {@param pool} if not null.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static Bitmap createBadgedIconBitmap(
+            Drawable icon, UserHandleCompat user, Context context, BitmapPool pool) {
         float scale = FeatureFlags.LAUNCHER3_ICON_NORMALIZATION ?
                 IconNormalizer.getInstance().getScale(icon) : 1;
-        Bitmap bitmap = createIconBitmap(icon, context, scale);
+        Bitmap bitmap = createIconBitmap(icon, context, scale, pool);
         if (Utilities.ATLEAST_LOLLIPOP && user != null
                 && !UserHandleCompat.myUserHandle().equals(user)) {
             BitmapDrawable drawable = new FixedSizeBitmapDrawable(bitmap);
             Drawable badged = context.getPackageManager().getUserBadgedIcon(
                     drawable, user.getUser());
-            if (badged instanceof BitmapDrawable) {
-                return ((BitmapDrawable) badged).getBitmap();
-            } else {
-                return createIconBitmap(badged, context);
+            Bitmap result = badged instanceof BitmapDrawable
+                    ? ((BitmapDrawable) badged).getBitmap()
+                    : createIconBitmap(badged, context, 1.0f /* scale */, pool);
+            if (result != bitmap && pool != null) {
+                // The unbadged icon was only used to draw the badged one.
+                pool.put(bitmap);
             }
+            return result;
         } else {
             return bitmap;
         }
@@ -235,6 +248,15 @@ public final class Utilities {
      * @param scale the scale to apply before drawing {@param icon} on the canvas
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context, float scale) {
+        return createIconBitmap(icon, context, scale, null);
+    }
+
+    /**
+     * @param scale the scale to apply before drawing {@param icon} on the canvas
+     * @param pool the pool to take the bitmap from, or null to allocate a new one
+     */
+    public static Bitmap createIconBitmap(Drawable icon, Context context, float scale,
+            BitmapPool pool) {
         synchronized (sCanvas) {
             final int iconBitmapSize = getIconBitmapSize();
 
@@ -269,8 +291,9 @@ public final class Utilities {
             int textureWidth = iconBitmapSize;
             int textureHeight = iconBitmapSize;
 
-            final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
+            final Bitmap bitmap = pool != null
+                    ? pool.getOrCreate(textureWidth, textureHeight, Bitmap.Config.ARGB_8888)
+                    : Bitmap.createBitmap(textureWidth, textureHeight, Bitmap.Config.ARGB_8888);
             final Canvas canvas = sCanvas;
             canvas.setBitmap(bitmap);
 
@@ -638,39 +661,6 @@ public final class Utilities {
         }
     }
 
-    /**
-     * Find the first vacant cell, if there is one.
-     *
-     * @param vacant Holds the x and y coordinate of the vacant cell
-     * @param spanX Horizontal cell span.
-     * @param spanY Vertical cell span.
-     *
-     * @return true if a vacant cell was found
-     */
-    public static boolean findVacantCell(int[] vacant, int spanX, int spanY,
-            int xCount, int yCount, boolean[][] occupied) {
-
-        for (int y = 0; (y + spanY) <= yCount; y++) {
-            for (int x = 0; (x + spanX) <= xCount; x++) {
-                boolean available = !occupied[x][y];
-                out:            for (int i = x; i < x + spanX; i++) {
-                    for (int j = y; j < y + spanY; j++) {
-                        available = available && !occupied[i][j];
-                        if (!available) break out;
-                    }
-                }
-
-                if (available) {
-                    vacant[0] = x;
-                    vacant[1] = y;
-                    return true;
-                }
-            }
-        }
-
-        return false;
-    }
-
     /**
      * Trims the string, removing all whitespace at the beginning and end of the string.
      * Non-breaking whitespaces are also removed.
@@ -22,25 +22,25 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.util.Log;
 import android.util.LongSparseArray;
+import android.util.LruCache;
 
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.SQLiteCacheHelper;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.Iterator;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -51,16 +51,50 @@ public class WidgetPreviewLoader {
 
     private static final float WIDGET_PREVIEW_ICON_PADDING_PERCENTAGE = 0.25f;
 
+    // Number of background threads loading previews at the same time.
+    private static final int MAX_RUNNING_WORKERS = 2;
+    // Number of rows past the visible ones, in the scroll direction, which are loaded first.
+    private static final int PREFETCH_ROWS = 3;
+    // Delay before the generated previews are written to the DB.
+    private static final int DB_WRITE_DELAY_MS = 500;
+    // Fraction of the max heap used to keep decoded previews in memory.
+    private static final int PREVIEW_CACHE_FRACTION = 16;
+
     private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
-    /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
-     */
-    @Thunk final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    // Pending and running tasks, used to coalesce requests for the same preview. The queue, the
+    // visible rows and the worker count are also guarded by this lock.
+    @Thunk final HashMap<WidgetCacheKey, PreviewLoadTask> mTasks = new HashMap<>();
+    private final ArrayList<PreviewLoadTask> mQueue = new ArrayList<>();
+    private final Runnable mPreviewWorker = new PreviewWorker();
+    @Thunk int mRunningWorkers;
+    private int mFirstVisibleRow = 0;
+    private int mLastVisibleRow = Integer.MAX_VALUE;
+    private int mScrollDirection = 1;
+
+    // Decoded previews, in front of the DB. Cached bitmaps can be displayed by any number of cells
+    // and are never returned to the bitmap pool, even after they are evicted.
+    private final LruCache<WidgetCacheKey, CachedPreview> mPreviewCache =
+            new LruCache<WidgetCacheKey, CachedPreview>(
+                    (int) (Runtime.getRuntime().maxMemory() / PREVIEW_CACHE_FRACTION)) {
+                @Override
+                protected int sizeOf(WidgetCacheKey key, CachedPreview value) {
+                    return value.bitmap.getByteCount();
+                }
+            };
+
+    // Generated previews waiting to be written to the DB, guarded by itself.
+    private final ArrayList<ContentValues> mPendingWrites = new ArrayList<>();
+    private final Runnable mFlushPendingWrites = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingWrites();
+        }
+    };
+
+    // Bitmaps which did not end up holding a preview are added back to this pool, and reused for
+    // the next preview of the same size.
+    @Thunk final BitmapPool mBitmapPool;
 
     private final Context mContext;
     private final IconCache mIconCache;
@@ -72,9 +106,10 @@ public class WidgetPreviewLoader {
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
     @Thunk final Handler mWorkerHandler;
 
-    public WidgetPreviewLoader(Context context, IconCache iconCache) {
+    public WidgetPreviewLoader(Context context, IconCache iconCache, BitmapPool bitmapPool) {
         mContext = context;
         mIconCache = iconCache;
+        mBitmapPool = bitmapPool;
         mWidgetManager = AppWidgetManagerCompat.getInstance(context);
         mUserManager = UserManagerCompat.getInstance(context);
         mDb = new CacheDb(context);
@@ -84,8 +119,8 @@ public class WidgetPreviewLoader {
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
-     * called on UI thread
+     * Queues the widget preview to be loaded on {@link Utilities#THREAD_POOL_EXECUTOR}, ahead
+     * of the previews of the rows further away from the visible ones. Must be called on UI thread
      *
      * @param o either {@link LauncherAppWidgetProviderInfo} or {@link ResolveInfo}
      * @return a request id which can be used to cancel the request.
@@ -95,9 +130,27 @@ public class WidgetPreviewLoader {
         String size = previewWidth + "x" + previewHeight;
         WidgetCacheKey key = getObjectKey(o, size);
 
-        PreviewLoadTask task = new PreviewLoadTask(key, o, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
-        return new PreviewLoadRequest(task);
+        Bitmap cached = getCachedPreview(key);
+        if (cached != null) {
+            caller.applyPreview(cached);
+            return new PreviewLoadRequest(null, caller);
+        }
+
+        PreviewLoadTask task;
+        synchronized (mTasks) {
+            task = mTasks.get(key);
+            if (task == null) {
+                task = new PreviewLoadTask(key, o, previewWidth, previewHeight, caller);
+                mTasks.put(key, task);
+                mQueue.add(task);
+                scheduleWorkerLocked();
+            } else if (caller.getRow() >= 0) {
+                // Coalesce with the pending request, at the priority of the closest row.
+                task.mRow = task.mRow < 0 ? caller.getRow() : Math.min(task.mRow, caller.getRow());
+            }
+        }
+        task.mCallers.add(caller);
+        return new PreviewLoadRequest(task, caller);
     }
 
     /**
@@ -148,7 +201,27 @@ public class WidgetPreviewLoader {
         }
     }
 
-    @Thunk void writeToDb(WidgetCacheKey key, long[] versions, Bitmap preview) {
+    /**
+     * Returns the decoded preview for {@param key} if it is in memory and was created for the
+     * current version of the package, or null.
+     */
+    private Bitmap getCachedPreview(WidgetCacheKey key) {
+        CachedPreview entry = mPreviewCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long[] versions;
+        synchronized (mPackageVersions) {
+            versions = mPackageVersions.get(key.componentName.getPackageName());
+        }
+        if (versions != null && !Arrays.equals(versions, entry.versions)) {
+            mPreviewCache.remove(key);
+            return null;
+        }
+        return entry.bitmap;
+    }
+
+    @Thunk ContentValues newContentValues(WidgetCacheKey key, long[] versions, Bitmap preview) {
         ContentValues values = new ContentValues();
         values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToShortString());
         values.put(CacheDb.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
@@ -157,7 +230,7 @@ public class WidgetPreviewLoader {
         values.put(CacheDb.COLUMN_VERSION, versions[0]);
         values.put(CacheDb.COLUMN_LAST_UPDATED, versions[1]);
         values.put(CacheDb.COLUMN_PREVIEW_BITMAP, Utilities.flattenBitmap(preview));
-        mDb.insertOrReplace(values);
+        return values;
     }
 
     public void removePackage(String packageName, UserHandleCompat user) {
@@ -168,6 +241,22 @@ public class WidgetPreviewLoader {
         synchronized(mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        for (WidgetCacheKey key : mPreviewCache.snapshot().keySet()) {
+            if (packageName.equals(key.componentName.getPackageName()) && user.equals(key.user)) {
+                mPreviewCache.remove(key);
+            }
+        }
+        synchronized (mPendingWrites) {
+            // Drop the previews generated for the old version which are not written yet.
+            Iterator<ContentValues> iterator = mPendingWrites.iterator();
+            while (iterator.hasNext()) {
+                ContentValues values = iterator.next();
+                if (packageName.equals(values.getAsString(CacheDb.COLUMN_PACKAGE))
+                        && userSerial == values.getAsLong(CacheDb.COLUMN_USER)) {
+                    iterator.remove();
+                }
+            }
+        }
 
         mDb.delete(
                 CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?",
@@ -269,7 +358,7 @@ public class WidgetPreviewLoader {
                             key.size
                     });
             // If cancelled, skip getting the blob and decoding it into a bitmap
-            if (loadTask.isCancelled()) {
+            if (loadTask.mCancelled) {
                 return null;
             }
             if (cursor.moveToNext()) {
@@ -277,7 +366,7 @@ public class WidgetPreviewLoader {
                 BitmapFactory.Options opts = new BitmapFactory.Options();
                 opts.inBitmap = recycle;
                 try {
-                    if (!loadTask.isCancelled()) {
+                    if (!loadTask.mCancelled) {
                         return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
                     }
                 } catch (Exception e) {
@@ -511,49 +600,161 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * Updates the adapter rows which are currently visible in the widget list, and the direction
+     * of the last scroll. Queued previews are loaded in the order of their distance to the visible
+     * rows, starting with the rows ahead in the scroll direction. Must be called on UI thread.
+     */
+    public void setVisibleRows(int firstVisibleRow, int lastVisibleRow, int scrollDirection) {
+        synchronized (mTasks) {
+            mFirstVisibleRow = firstVisibleRow;
+            mLastVisibleRow = lastVisibleRow;
+            if (scrollDirection != 0) {
+                mScrollDirection = scrollDirection;
+            }
+        }
+    }
+
+    /**
+     * Returns the load priority of {@param task}, lower values are loaded first.
+     */
+    private int getPriorityLocked(PreviewLoadTask task) {
+        int row = task.mRow;
+        if (row < 0) {
+            // Position unknown, treat it as visible.
+            return 0;
+        }
+        int tier;
+        int distance;
+        if (row < mFirstVisibleRow) {
+            distance = mFirstVisibleRow - row;
+            tier = mScrollDirection < 0 && distance <= PREFETCH_ROWS ? 1 : 2;
+        } else if (row > mLastVisibleRow) {
+            distance = row - mLastVisibleRow;
+            tier = mScrollDirection > 0 && distance <= PREFETCH_ROWS ? 1 : 2;
+        } else {
+            distance = row - mFirstVisibleRow;
+            tier = 0;
+        }
+        return (tier << 16) | Math.min(distance, 0xFFFF);
+    }
+
+    private PreviewLoadTask pollTaskLocked() {
+        int bestIndex = -1;
+        int bestPriority = Integer.MAX_VALUE;
+        for (int i = 0; i < mQueue.size(); i++) {
+            int priority = getPriorityLocked(mQueue.get(i));
+            if (priority < bestPriority) {
+                bestPriority = priority;
+                bestIndex = i;
+            }
+        }
+        return bestIndex < 0 ? null : mQueue.remove(bestIndex);
+    }
+
+    private void scheduleWorkerLocked() {
+        if (mRunningWorkers < MAX_RUNNING_WORKERS && !mQueue.isEmpty()) {
+            mRunningWorkers++;
+            Utilities.THREAD_POOL_EXECUTOR.execute(mPreviewWorker);
+        }
+    }
+
+    /**
+     * Loads the queued previews in priority order until the queue is empty.
+     */
+    private class PreviewWorker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                PreviewLoadTask task;
+                synchronized (mTasks) {
+                    task = pollTaskLocked();
+                    if (task == null) {
+                        mRunningWorkers--;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Adds a generated preview to the DB. The writes are delayed and committed in a single
+     * transaction, so that flinging through the list does not write each preview separately.
+     */
+    @Thunk void queueDbWrite(ContentValues values) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(values);
+            if (mPendingWrites.size() == 1) {
+                mWorkerHandler.postDelayed(mFlushPendingWrites, DB_WRITE_DELAY_MS);
+            }
+        }
+    }
+
+    @Thunk void flushPendingWrites() {
+        ArrayList<ContentValues> writes;
+        synchronized (mPendingWrites) {
+            writes = new ArrayList<>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+        if (!writes.isEmpty()) {
+            mDb.insertOrReplace(writes);
+        }
+    }
+
     /**
      * A request Id which can be used by the client to cancel any request.
      */
     public class PreviewLoadRequest {
 
         @Thunk final PreviewLoadTask mTask;
+        private final WidgetCell mCaller;
 
-        public PreviewLoadRequest(PreviewLoadTask task) {
+        public PreviewLoadRequest(PreviewLoadTask task, WidgetCell caller) {
             mTask = task;
+            mCaller = caller;
         }
 
+        /**
+         * Cancels the request. The task is only cancelled once no other cell is waiting for the
+         * same preview, if it is still queued it is dropped. Must be called on UI thread.
+         */
         public void cleanup() {
-            if (mTask != null) {
-                mTask.cancel(true);
+            if (mTask == null) {
+                // Served from memory.
+                return;
             }
-
-            // This only handles the case where the PreviewLoadTask is cancelled after the task has
-            // successfully completed (including having written to disk when necessary).  In the
-            // other cases where it is cancelled while the task is running, it will be cleaned up
-            // in the tasks's onCancelled() call, and if cancelled while the task is writing to
-            // disk, it will be cancelled in the task's onPostExecute() call.
-            if (mTask.mBitmapToRecycle != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mTask.mBitmapToRecycle);
-                        }
-                        mTask.mBitmapToRecycle = null;
-                    }
-                });
+            mTask.mCallers.remove(mCaller);
+            if (!mTask.mCallers.isEmpty()) {
+                return;
+            }
+            synchronized (mTasks) {
+                mTask.mCancelled = true;
+                mQueue.remove(mTask);
+                if (mTasks.get(mTask.mKey) == mTask) {
+                    mTasks.remove(mTask.mKey);
+                }
             }
         }
     }
 
-    public class PreviewLoadTask extends AsyncTask<Void, Void, Bitmap> {
+    /**
+     * Loads a single preview, either from the DB or by generating it. Requests for the same
+     * {@link WidgetCacheKey} made while the task is pending share the task and its result.
+     */
+    public class PreviewLoadTask implements Runnable {
         @Thunk final WidgetCacheKey mKey;
         private final Object mInfo;
         private final int mPreviewHeight;
         private final int mPreviewWidth;
-        private final WidgetCell mCaller;
-        @Thunk long[] mVersions;
-        @Thunk Bitmap mBitmapToRecycle;
+        private final Launcher mLauncher;
+
+        // Cells waiting for the preview, only accessed on UI thread.
+        @Thunk final ArrayList<WidgetCell> mCallers = new ArrayList<>();
+        // Adapter row of the cells, guarded by mTasks.
+        @Thunk int mRow;
+        @Thunk volatile boolean mCancelled;
 
         PreviewLoadTask(WidgetCacheKey key, Object info, int previewWidth,
                 int previewHeight, WidgetCell caller) {
@@ -561,7 +762,8 @@ public class WidgetPreviewLoader {
             mInfo = info;
             mPreviewHeight = previewHeight;
             mPreviewWidth = previewWidth;
-            mCaller = caller;
+            mLauncher = (Launcher) caller.getContext();
+            mRow = caller.getRow();
             if (DEBUG) {
                 Log.d(TAG, String.format("%s, %s, %d, %d",
                         mKey, mInfo, mPreviewHeight, mPreviewWidth));
@@ -569,95 +771,72 @@ public class WidgetPreviewLoader {
         }
 
         @Override
-        protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
-
+        public void run() {
             // If already cancelled before this gets to run in the background, then return early
-            if (isCancelled()) {
-                return null;
+            if (mCancelled) {
+                return;
             }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
-                    }
-                }
-            }
-
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
+            // Check if we can re-use a bitmap, it is cleared or decoded into before being used.
+            Bitmap unusedBitmap = mBitmapPool.get(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
             if (unusedBitmap == null) {
                 unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
             }
-            // If cancelled now, don't bother reading the preview from the DB
-            if (isCancelled()) {
-                return unusedBitmap;
-            }
+            // Fetch the version info before we generate the preview, so that, in-case the
+            // app was updated while we are generating the preview, we use the old version info,
+            // which would gets re-written next time.
+            long[] versions = getPackageVersion(mKey.componentName.getPackageName());
             Bitmap preview = readFromDb(mKey, unusedBitmap, this);
             // Only consider generating the preview if we have not cancelled the task already
-            if (!isCancelled() && preview == null) {
-                // Fetch the version info before we generate the preview, so that, in-case the
-                // app was updated while we are generating the preview, we use the old version info,
-                // which would gets re-written next time.
-                mVersions = getPackageVersion(mKey.componentName.getPackageName());
-
-                Launcher launcher = (Launcher) mCaller.getContext();
-
+            if (!mCancelled && preview == null) {
                 // it's not in the db... we need to generate it
-                preview = generatePreview(launcher, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
+                preview = generatePreview(mLauncher, mInfo, unusedBitmap, mPreviewWidth,
+                        mPreviewHeight);
+                if (preview != null) {
+                    queueDbWrite(newContentValues(mKey, versions, preview));
+                }
             }
-            return preview;
-        }
 
-        @Override
-        protected void onPostExecute(final Bitmap preview) {
-            mCaller.applyPreview(preview);
-
-            // Write the generated preview to the DB in the worker thread
-            if (mVersions != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!isCancelled()) {
-                            // If we are still using this preview, then write it to the DB and then
-                            // let the normal clear mechanism recycle the bitmap
-                            writeToDb(mKey, mVersions, preview);
-                            mBitmapToRecycle = preview;
-                        } else {
-                            // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
-                        }
-                    }
-                });
-            } else {
-                // If we don't need to write to disk, then ensure the preview gets recycled by
-                // the normal clear mechanism
-                mBitmapToRecycle = preview;
+            if (preview != null) {
+                // Keep the preview even if the task was cancelled, it is likely to be requested
+                // again when scrolling back.
+                mPreviewCache.put(mKey, new CachedPreview(preview, versions));
+            }
+            synchronized (mTasks) {
+                if (mTasks.get(mKey) == this) {
+                    mTasks.remove(mKey);
+                }
+            }
+            if (preview == null) {
+                mBitmapPool.put(unusedBitmap);
+                return;
+            }
+            if (mCancelled) {
+                return;
             }
-        }
 
-        @Override
-        protected void onCancelled(final Bitmap preview) {
-            // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
-            // to disk.
-            if (preview != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
+            final Bitmap result = preview;
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled) {
+                        return;
                     }
-                });
-            }
+                    for (WidgetCell caller : mCallers) {
+                        caller.applyPreview(result);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class CachedPreview {
+        final Bitmap bitmap;
+        // Version of the package when the preview was created.
+        final long[] versions;
+
+        CachedPreview(Bitmap bitmap, long[] versions) {
+            this.bitmap = bitmap;
+            this.versions = versions;
         }
     }
 
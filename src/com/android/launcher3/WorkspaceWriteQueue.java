@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Handler;
+import android.util.Log;
+
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the writes of the model to the favorites table and applies them in a single
+ * transaction shortly after, so that an operation touching many items, like rearranging a page,
+ * only writes to the database once. Repeated updates to the same row are merged into one.
+ *
+ * The writes are queued and applied on the worker thread, in the order they were queued. Callers
+ * which read the database directly, or need the writes to be persisted, should call
+ * {@link #flush} first.
+ */
+class WorkspaceWriteQueue {
+
+    private static final String TAG = "WorkspaceWriteQueue";
+
+    // Delay between the first queued write and the flush.
+    private static final long FLUSH_DELAY_MS = 100;
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_UPDATE = 1;
+    private static final int OP_DELETE = 2;
+
+    private static class PendingOp {
+        final int type;
+        final long id;
+        final ContentValues values;
+        final String selection;
+
+        PendingOp(int type, long id, ContentValues values, String selection) {
+            this.type = type;
+            this.id = id;
+            this.values = values;
+            this.selection = selection;
+        }
+
+        ContentProviderOperation build() {
+            switch (type) {
+                case OP_INSERT:
+                    return ContentProviderOperation
+                            .newInsert(LauncherSettings.Favorites.CONTENT_URI)
+                            .withValues(values).build();
+                case OP_UPDATE:
+                    return ContentProviderOperation
+                            .newUpdate(LauncherSettings.Favorites.getContentUri(id))
+                            .withValues(values).build();
+                default:
+                    return selection != null
+                            ? ContentProviderOperation
+                                    .newDelete(LauncherSettings.Favorites.CONTENT_URI)
+                                    .withSelection(selection, null).build()
+                            : ContentProviderOperation
+                                    .newDelete(LauncherSettings.Favorites.getContentUri(id))
+                                    .build();
+            }
+        }
+    }
+
+    private final Handler mWorker;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final ArrayList<PendingOp> mPendingOps = new ArrayList<>();
+    // Index in mPendingOps of the last insert or update of each row.
+    private final LongArrayMap<Integer> mLastRowOps = new LongArrayMap<>();
+    // Index of the last delete by selection, the rows it matches are not known so writes queued
+    // before it can not be merged with writes queued after it.
+    private int mLastSelectionOp = -1;
+    private ContentResolver mResolver;
+
+    private int mFlushes;
+    private int mQueuedOps;
+    private int mMergedOps;
+
+    WorkspaceWriteQueue(Handler worker) {
+        mWorker = worker;
+    }
+
+    public void insert(ContentResolver cr, ContentValues values) {
+        Utilities.assertWorkerThread();
+        long id = values.getAsLong(LauncherSettings.Favorites._ID);
+        mLastRowOps.put(id, mPendingOps.size());
+        // Later updates of the row are merged into the values, which belong to the caller.
+        enqueue(cr, new PendingOp(OP_INSERT, id, new ContentValues(values), null));
+    }
+
+    public void update(ContentResolver cr, long id, ContentValues values) {
+        Utilities.assertWorkerThread();
+        Integer last = mLastRowOps.get(id);
+        if (last != null && last > mLastSelectionOp) {
+            // Merge with the pending insert or update of the row.
+            mPendingOps.get(last).values.putAll(values);
+            mMergedOps++;
+            return;
+        }
+        mLastRowOps.put(id, mPendingOps.size());
+        enqueue(cr, new PendingOp(OP_UPDATE, id, new ContentValues(values), null));
+    }
+
+    public void delete(ContentResolver cr, long id) {
+        Utilities.assertWorkerThread();
+        mLastRowOps.remove(id);
+        enqueue(cr, new PendingOp(OP_DELETE, id, null, null));
+    }
+
+    /**
+     * Deletes the rows of the favorites table matching {@param selection}.
+     */
+    public void delete(ContentResolver cr, String selection) {
+        Utilities.assertWorkerThread();
+        mLastSelectionOp = mPendingOps.size();
+        enqueue(cr, new PendingOp(OP_DELETE, ItemInfo.NO_ID, null, selection));
+    }
+
+    private void enqueue(ContentResolver cr, PendingOp op) {
+        mResolver = cr;
+        if (mPendingOps.isEmpty()) {
+            mWorker.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+        mPendingOps.add(op);
+        mQueuedOps++;
+    }
+
+    /**
+     * Applies all the pending writes. Must be called on the worker thread.
+     */
+    public void flush() {
+        Utilities.assertWorkerThread();
+        mWorker.removeCallbacks(mFlushRunnable);
+        if (mPendingOps.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(mPendingOps.size());
+        for (PendingOp op : mPendingOps) {
+            ops.add(op.build());
+        }
+        mPendingOps.clear();
+        mLastRowOps.clear();
+        mLastSelectionOp = -1;
+        mFlushes++;
+
+        try {
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (Exception e) {
+            // The batch is rolled back as a whole, apply the operations one by one so that a
+            // single failing operation does not drop the others.
+            Log.e(TAG, "Failed to apply " + ops.size() + " operations, retrying one by one", e);
+            for (ContentProviderOperation op : ops) {
+                ArrayList<ContentProviderOperation> single = new ArrayList<>(1);
+                single.add(op);
+                try {
+                    mResolver.applyBatch(LauncherProvider.AUTHORITY, single);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Failed to apply " + op, ex);
+                }
+            }
+        }
+    }
+
+    public void dumpState() {
+        Log.d(TAG, "workspace writes queued=" + mQueuedOps + " merged=" + mMergedOps
+                + " flushes=" + mFlushes);
+    }
+}
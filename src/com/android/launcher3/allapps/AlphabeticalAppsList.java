@@ -29,9 +29,11 @@ import com.android.launcher3.util.ComponentKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -48,6 +50,10 @@ public class AlphabeticalAppsList {
 
     private final int mFastScrollDistributionMode = FAST_SCROLL_FRACTION_DISTRIBUTE_BY_NUM_SECTIONS;
 
+    // Above this number of changed apps, the apps are sorted again and the adapter is fully
+    // refreshed instead of being updated in place.
+    private static final int MAX_INCREMENTAL_UPDATES = 8;
+
     /**
      * Info about a section in the alphabetic list
      */
@@ -170,6 +176,8 @@ public class AlphabeticalAppsList {
     // The set of apps from the system not including predictions
     private final List<AppInfo> mApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The index of the app titles used for searching
+    private final AppSearchIndex mSearchIndex = new AppSearchIndex();
 
     // The set of filtered apps with the current filter
     private List<AppInfo> mFilteredApps = new ArrayList<>();
@@ -194,6 +202,13 @@ public class AlphabeticalAppsList {
     private int mNumPredictedAppsPerRow;
     private int mNumAppRowsInAdapter;
 
+    // Set while applying an incremental update, the adapter is then notified of the ranges of
+    // items which changed instead of the whole data set.
+    private boolean mNotifyItemRanges;
+    // Apps which were updated in place by the current incremental update, and need to be rebound
+    private final Set<AppInfo> mUpdatedApps =
+            Collections.newSetFromMap(new IdentityHashMap<AppInfo, Boolean>());
+
     public AlphabeticalAppsList(Context context) {
         mLauncher = (Launcher) context;
         mIndexer = new AlphabeticIndexCompat(context);
@@ -226,6 +241,13 @@ public class AlphabeticalAppsList {
         return mApps;
     }
 
+    /**
+     * Returns the search index over the titles of all the apps.
+     */
+    public AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
     /**
      * Returns sections of all the current filtered applications.
      */
@@ -299,7 +321,7 @@ public class AlphabeticalAppsList {
     public void setPredictedApps(List<ComponentKey> apps) {
         mPredictedAppComponents.clear();
         mPredictedAppComponents.addAll(apps);
-        onAppsUpdated();
+        onAppsUpdated(true);
     }
 
     /**
@@ -307,6 +329,8 @@ public class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
+        mSearchIndex.clear();
+        mApps.clear();
         addApps(apps);
     }
 
@@ -321,26 +345,94 @@ public class AlphabeticalAppsList {
      * Updates existing apps in the list
      */
     public void updateApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally(apps);
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            ComponentKey key = app.toComponentKey();
+            AppInfo oldApp = mComponentToAppMap.put(key, app);
+            mSearchIndex.addOrUpdate(app, getAndUpdateCachedSectionName(app.title));
+            if (incremental && oldApp != null) {
+                // The title may have changed in place, so all the updated apps are removed before
+                // any is inserted again, for the binary search to only see apps in order.
+                removeSortedApp(key);
+            }
+        }
+        if (incremental) {
+            for (AppInfo app : apps) {
+                insertSortedApp(app);
+                mUpdatedApps.add(app);
+            }
         }
-        onAppsUpdated();
+        onAppsUpdated(!incremental);
     }
 
     /**
      * Removes some apps from the list.
      */
     public void removeApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally(apps);
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            ComponentKey key = app.toComponentKey();
+            mComponentToAppMap.remove(key);
+            mSearchIndex.remove(app);
+            if (incremental) {
+                removeSortedApp(key);
+            }
+        }
+        onAppsUpdated(!incremental);
+    }
+
+    /**
+     * Returns whether {@param changedApps} can be applied to the sorted list of apps in place.
+     */
+    private boolean canUpdateIncrementally(List<AppInfo> changedApps) {
+        return !mApps.isEmpty() && changedApps.size() <= MAX_INCREMENTAL_UPDATES
+                && !localeRequiresSectionSorting();
+    }
+
+    private boolean localeRequiresSectionSorting() {
+        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
+        return curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+    }
+
+    /**
+     * Inserts {@param app} in the sorted list of apps, using a binary search.
+     */
+    private void insertSortedApp(AppInfo app) {
+        int index = Collections.binarySearch(mApps, app, mAppNameComparator.getAppInfoComparator());
+        mApps.add(index < 0 ? -index - 1 : index, app);
+    }
+
+    /**
+     * Removes the app with the given {@param key} from the sorted list of apps. The app can not be
+     * looked up by its title, as it may have been updated in place.
+     */
+    private void removeSortedApp(ComponentKey key) {
+        int count = mApps.size();
+        for (int i = 0; i < count; i++) {
+            AppInfo app = mApps.get(i);
+            if (app.componentName.equals(key.componentName) && app.user.equals(key.user)) {
+                mApps.remove(i);
+                return;
+            }
         }
-        onAppsUpdated();
     }
 
     /**
      * Updates internals when the set of apps are updated.
+     *
+     * @param sort whether to sort all the apps again, otherwise mApps is expected to already be
+     *             sorted and only the changed items are notified to the adapter
      */
-    private void onAppsUpdated() {
+    private void onAppsUpdated(boolean sort) {
+        if (!sort) {
+            mNotifyItemRanges = true;
+            mSearchIndex.updateRanks(mApps);
+            updateAdapterItems();
+            mNotifyItemRanges = false;
+            mUpdatedApps.clear();
+            return;
+        }
+
         // Sort the list of apps
         mApps.clear();
         mApps.addAll(mComponentToAppMap.values());
@@ -348,9 +440,8 @@ public class AlphabeticalAppsList {
 
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
         TreeMap<String, ArrayList<AppInfo>> sectionMap = null;
-        boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+        boolean localeRequiresSectionSorting = localeRequiresSectionSorting();
         if (localeRequiresSectionSorting) {
             // Compute the section headers.  We use a TreeMap with the section name comparator to
             // ensure that the sections are ordered when we iterate over it later
@@ -384,6 +475,9 @@ public class AlphabeticalAppsList {
             }
         }
 
+        // Search results are ordered the same way as the apps
+        mSearchIndex.updateRanks(mApps);
+
         // Recompose the set of adapter items from the current set of apps
         updateAdapterItems();
     }
@@ -399,6 +493,10 @@ public class AlphabeticalAppsList {
         int position = 0;
         int appIndex = 0;
 
+        // Keep the previous items to notify the adapter of the ranges which changed
+        List<AdapterItem> oldAdapterItems = mNotifyItemRanges
+                ? new ArrayList<>(mAdapterItems) : null;
+
         // Prepare to update the list of sections, filtered apps, etc.
         mFilteredApps.clear();
         mFastScrollerSections.clear();
@@ -562,8 +660,48 @@ public class AlphabeticalAppsList {
 
         // Refresh the recycler view
         if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+            if (oldAdapterItems != null) {
+                notifyAdapterItemRanges(oldAdapterItems);
+            } else {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    }
+
+    /**
+     * Notifies the adapter of the items which changed since {@param oldItems}. A single app change
+     * only affects a contiguous range of items, so the items before and after it are skipped.
+     */
+    private void notifyAdapterItemRanges(List<AdapterItem> oldItems) {
+        int oldSize = oldItems.size();
+        int newSize = mAdapterItems.size();
+        int start = 0;
+        while (start < oldSize && start < newSize
+                && isSameAdapterItem(oldItems.get(start), mAdapterItems.get(start))) {
+            start++;
         }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && isSameAdapterItem(oldItems.get(oldEnd - 1), mAdapterItems.get(newEnd - 1))) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        int changedCount = Math.min(oldEnd, newEnd) - start;
+        if (changedCount > 0) {
+            mAdapter.notifyItemRangeChanged(start, changedCount);
+        }
+        if (oldEnd > newEnd) {
+            mAdapter.notifyItemRangeRemoved(start + changedCount, oldEnd - newEnd);
+        } else if (newEnd > oldEnd) {
+            mAdapter.notifyItemRangeInserted(start + changedCount, newEnd - oldEnd);
+        }
+    }
+
+    private boolean isSameAdapterItem(AdapterItem oldItem, AdapterItem newItem) {
+        return oldItem.viewType == newItem.viewType && oldItem.appInfo == newItem.appInfo
+                && (newItem.appInfo == null || !mUpdatedApps.contains(newItem.appInfo));
     }
 
     private List<AppInfo> getFiltersAppInfos() {
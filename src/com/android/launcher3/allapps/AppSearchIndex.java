@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.os.CancellationSignal;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.util.ComponentKey;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A prefix index over the words of the app titles. The lower cased words of all the titles are
+ * kept in a sorted array, so that the apps having a word which starts with a query word are found
+ * with a binary search. The index is updated incrementally as apps are added, updated or removed,
+ * and is searched on the search thread, so all the methods accessing it are synchronized. A search
+ * only holds the lock while it copies the candidates, and matches them outside of it.
+ */
+public class AppSearchIndex {
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    private static final Pattern COMBINING_MARKS_PATTERN = Pattern.compile("\\p{Mn}+");
+
+    // Number of entries visited between two checks of the cancellation signal.
+    private static final int CANCEL_CHECK_INTERVAL = 64;
+
+    private static final Comparator<Entry> RANK_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.rank < rhs.rank ? -1 : (lhs.rank == rhs.rank ? 0 : 1);
+        }
+    };
+
+    /**
+     * An indexed app, along with the features of its title used to score fuzzy matches.
+     */
+    public static class Entry {
+        public final ComponentKey key;
+        final String title;
+        final String[] words;
+
+        // The title words without accents
+        public final String[] normalizedWords;
+        // The lower cased first letter of each word, and of each upper case letter following a
+        // lower case one, e.g. "gm" for "Google Maps" and "yt" for "YouTube"
+        public final String initials;
+        // The lower cased section name of the title, which is a transliteration of its first
+        // letter for some scripts
+        public final String sectionName;
+
+        // Position of the app in the sorted list of apps
+        int rank = Integer.MAX_VALUE;
+        // Id of the last search which visited this entry
+        int searchId;
+
+        Entry(ComponentKey key, String title, String sectionName) {
+            this.key = key;
+            this.title = title;
+            this.words = SPLIT_PATTERN.split(title.toLowerCase());
+            this.normalizedWords = new String[words.length];
+            for (int i = 0; i < words.length; i++) {
+                normalizedWords[i] = normalize(words[i]);
+            }
+            this.initials = computeInitials(title);
+            this.sectionName = sectionName == null ? "" : sectionName.toLowerCase();
+        }
+
+        public int getRank() {
+            return rank;
+        }
+    }
+
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+
+    // Title words of all the entries, sorted, and the entry of each word.
+    private String[] mTokens = new String[0];
+    private Entry[] mTokenEntries = new Entry[0];
+    private int mTokenCount;
+
+    private int mVersion;
+    private int mLastSearchId;
+
+    // All the entries, created on demand and cleared when the index changes
+    private Entry[] mEntriesSnapshot;
+
+    /**
+     * Splits a query into the words matched against the title words.
+     */
+    public static String[] splitQuery(String query) {
+        return SPLIT_PATTERN.split(query.toLowerCase());
+    }
+
+    /**
+     * Returns a number which changes whenever the indexed apps or their order change.
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns all the entries. The returned array must not be modified.
+     */
+    public synchronized Entry[] getEntries() {
+        if (mEntriesSnapshot == null) {
+            mEntriesSnapshot = mEntries.values().toArray(new Entry[mEntries.size()]);
+        }
+        return mEntriesSnapshot;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        Arrays.fill(mTokens, 0, mTokenCount, null);
+        Arrays.fill(mTokenEntries, 0, mTokenCount, null);
+        mTokenCount = 0;
+        mEntriesSnapshot = null;
+        mVersion++;
+    }
+
+    /**
+     * Adds {@param app} to the index, or re-indexes it if its title changed.
+     *
+     * @param sectionName the section name of the app in the list of all apps
+     */
+    public void addOrUpdate(AppInfo app, String sectionName) {
+        addOrUpdate(app.toComponentKey(), app.title == null ? "" : app.title.toString(),
+                sectionName);
+    }
+
+    synchronized void addOrUpdate(ComponentKey key, String title, String sectionName) {
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            if (entry.title.equals(title)) {
+                return;
+            }
+            removeTokens(entry);
+        }
+        mEntriesSnapshot = null;
+        entry = new Entry(key, title, sectionName);
+        mEntries.put(key, entry);
+        for (String word : entry.words) {
+            insertToken(word, entry);
+        }
+        mVersion++;
+    }
+
+    public void remove(AppInfo app) {
+        remove(app.toComponentKey());
+    }
+
+    synchronized void remove(ComponentKey key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mEntriesSnapshot = null;
+            removeTokens(entry);
+            mVersion++;
+        }
+    }
+
+    /**
+     * Updates the order of the entries to match {@param sortedApps}. Search results are returned
+     * in this order.
+     */
+    public synchronized void updateRanks(List<AppInfo> sortedApps) {
+        int count = sortedApps.size();
+        for (int i = 0; i < count; i++) {
+            Entry entry = mEntries.get(sortedApps.get(i).toComponentKey());
+            if (entry != null) {
+                entry.rank = i;
+            }
+        }
+        mVersion++;
+    }
+
+    /**
+     * Returns the entries having, for each of {@param queryWords}, a title word starting with it.
+     */
+    public ArrayList<Entry> search(String[] queryWords) {
+        return search(queryWords, null);
+    }
+
+    /**
+     * Same as {@link #search(String[])}, but returns null if {@param signal} is cancelled before
+     * the search completes.
+     */
+    public ArrayList<Entry> search(String[] queryWords, CancellationSignal signal) {
+        Entry[] candidates;
+        int searchId;
+        synchronized (this) {
+            if (queryWords.length == 0) {
+                candidates = getEntries();
+            } else {
+                // Only walk the tokens of the most selective query word, and check the other
+                // query words against the title words of each candidate.
+                int bestStart = 0;
+                int bestEnd = mTokenCount;
+                for (String queryWord : queryWords) {
+                    int start = lowerBound(queryWord);
+                    int end = prefixEnd(queryWord, start);
+                    if (end - start < bestEnd - bestStart) {
+                        bestStart = start;
+                        bestEnd = end;
+                    }
+                }
+                candidates = Arrays.copyOfRange(mTokenEntries, bestStart, bestEnd);
+            }
+            searchId = ++mLastSearchId;
+        }
+
+        ArrayList<Entry> result = new ArrayList<>();
+        for (int i = 0; i < candidates.length; i++) {
+            if (isCanceled(signal, i)) {
+                return null;
+            }
+            Entry entry = candidates[i];
+            // An entry has one token per title word, only check it once.
+            if (entry.searchId != searchId) {
+                entry.searchId = searchId;
+                if (matches(entry, queryWords)) {
+                    result.add(entry);
+                }
+            }
+        }
+        synchronized (this) {
+            // The ranks are only updated while holding the lock.
+            Collections.sort(result, RANK_COMPARATOR);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entries of {@param candidates} which match {@param queryWords}, in the same order.
+     */
+    public static ArrayList<Entry> refine(List<Entry> candidates, String[] queryWords) {
+        return refine(candidates, queryWords, null);
+    }
+
+    /**
+     * Same as {@link #refine(List, String[])}, but returns null if {@param signal} is cancelled
+     * before all the candidates are checked.
+     */
+    public static ArrayList<Entry> refine(List<Entry> candidates, String[] queryWords,
+            CancellationSignal signal) {
+        ArrayList<Entry> result = new ArrayList<>();
+        int count = candidates.size();
+        for (int i = 0; i < count; i++) {
+            if (isCanceled(signal, i)) {
+                return null;
+            }
+            Entry entry = candidates.get(i);
+            if (matches(entry, queryWords)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if {@param signal} is cancelled, only checking it every
+     * {@link #CANCEL_CHECK_INTERVAL} entries. {@param visited} is the number of entries visited
+     * so far by the caller.
+     */
+    static boolean isCanceled(CancellationSignal signal, int visited) {
+        return signal != null && visited % CANCEL_CHECK_INTERVAL == 0 && signal.isCanceled();
+    }
+
+    /**
+     * Returns true if any app matching {@param queryWords} also matches {@param previousWords},
+     * that is every previous word is a prefix of one of the new words.
+     */
+    public static boolean isRefinement(String[] previousWords, String[] queryWords) {
+        for (String previousWord : previousWords) {
+            boolean found = false;
+            for (String queryWord : queryWords) {
+                if (queryWord.startsWith(previousWord)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns {@param s} without accents and other combining marks.
+     */
+    public static String normalize(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return COMBINING_MARKS_PATTERN.matcher(
+                        Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("");
+            }
+        }
+        // Plain ASCII
+        return s;
+    }
+
+    private static String computeInitials(String title) {
+        StringBuilder initials = new StringBuilder();
+        char prev = ' ';
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (Character.isLetterOrDigit(c) && (!Character.isLetterOrDigit(prev)
+                    || (Character.isUpperCase(c) && Character.isLowerCase(prev)))) {
+                initials.append(Character.toLowerCase(c));
+            }
+            prev = c;
+        }
+        return normalize(initials.toString());
+    }
+
+    private static boolean matches(Entry entry, String[] queryWords) {
+        for (String queryWord : queryWords) {
+            boolean foundMatch = false;
+            for (String word : entry.words) {
+                if (word.startsWith(queryWord)) {
+                    foundMatch = true;
+                    break;
+                }
+            }
+            if (!foundMatch) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first token which is not smaller than {@param s}.
+     */
+    private int lowerBound(String s) {
+        int low = 0;
+        int high = mTokenCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTokens[mid].compareTo(s) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index after the last token starting with {@param prefix}, given that the tokens
+     * starting with it start at {@param start}.
+     */
+    private int prefixEnd(String prefix, int start) {
+        int low = start;
+        int high = mTokenCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTokens[mid].startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insertToken(String token, Entry entry) {
+        if (mTokenCount == mTokens.length) {
+            int capacity = Math.max(16, mTokenCount * 2);
+            mTokens = Arrays.copyOf(mTokens, capacity);
+            mTokenEntries = Arrays.copyOf(mTokenEntries, capacity);
+        }
+        int index = lowerBound(token);
+        System.arraycopy(mTokens, index, mTokens, index + 1, mTokenCount - index);
+        System.arraycopy(mTokenEntries, index, mTokenEntries, index + 1, mTokenCount - index);
+        mTokens[index] = token;
+        mTokenEntries[index] = entry;
+        mTokenCount++;
+    }
+
+    private void removeTokens(Entry entry) {
+        for (String token : entry.words) {
+            for (int i = lowerBound(token); i < mTokenCount && mTokens[i].equals(token); i++) {
+                if (mTokenEntries[i] == entry) {
+                    System.arraycopy(mTokens, i + 1, mTokens, i, mTokenCount - i - 1);
+                    System.arraycopy(mTokenEntries, i + 1, mTokenEntries, i, mTokenCount - i - 1);
+                    mTokenCount--;
+                    mTokens[mTokenCount] = null;
+                    mTokenEntries[mTokenCount] = null;
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -15,80 +15,132 @@
  */
 package com.android.launcher3.allapps;
 
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 
-import com.android.launcher3.AppInfo;
 import com.android.launcher3.util.ComponentKey;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Pattern;
 
 /**
- * The default search implementation.
+ * The default search implementation. Queries are matched on a background thread. A new query
+ * cancels the ones which are still pending or running, a running query checks for it while
+ * walking the apps and stops early, and only the results of the latest query are delivered.
  */
 public class DefaultAppSearchAlgorithm {
 
-    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    private static final HandlerThread sSearchThread = new HandlerThread("launcher-search");
+    static {
+        sSearchThread.start();
+    }
 
-    private final List<AppInfo> mApps;
+    protected final AppSearchIndex mIndex;
     protected final Handler mResultHandler;
+    private final Handler mSearchHandler;
+
+    // Signal of the latest query, cancelled when it is superseded. Only accessed on the UI thread.
+    private CancellationSignal mCancellationSignal;
+
+    // The previous query and its matches, which are narrowed down when the query is refined.
+    // Only accessed on the search thread.
+    private String[] mLastQueryWords;
+    private ArrayList<AppSearchIndex.Entry> mLastMatches;
+    private int mLastIndexVersion;
 
-    public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
-        mApps = apps;
-        mResultHandler = new Handler();
+    public DefaultAppSearchAlgorithm(AppSearchIndex index) {
+        mIndex = index;
+        mResultHandler = new Handler(Looper.getMainLooper());
+        mSearchHandler = new Handler(sSearchThread.getLooper());
     }
 
     public void cancel(boolean interruptActiveRequests) {
         if (interruptActiveRequests) {
+            // Drops the pending queries, and stops the running one.
+            cancelLatestQuery();
+            mSearchHandler.removeCallbacksAndMessages(null);
             mResultHandler.removeCallbacksAndMessages(null);
         }
     }
 
+    /**
+     * Matches {@param query} on the search thread and posts the result to {@param callback}, unless
+     * a newer query was made or the search was cancelled in the meantime. Must be called on the
+     * UI thread.
+     */
     public void doSearch(final String query,
             final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        mResultHandler.post(new Runnable() {
+        cancelLatestQuery();
+        final CancellationSignal signal = new CancellationSignal();
+        mCancellationSignal = signal;
+        // Only the latest query needs to run.
+        mSearchHandler.removeCallbacksAndMessages(null);
+        mSearchHandler.post(new Runnable() {
 
             @Override
             public void run() {
-                callback.onSearchResult(query, result);
+                if (signal.isCanceled()) {
+                    return;
+                }
+                final ArrayList<ComponentKey> result = getTitleMatchResult(query, signal);
+                if (result == null) {
+                    return;
+                }
+                mResultHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!signal.isCanceled()) {
+                            callback.onSearchResult(query, result);
+                        }
+                    }
+                });
             }
         });
     }
 
-    protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
+    private void cancelLatestQuery() {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+            mCancellationSignal = null;
+        }
+    }
+
+    /**
+     * Returns the apps matching {@param query}, or null if {@param signal} was cancelled before
+     * the search completed.
+     */
+    protected ArrayList<ComponentKey> getTitleMatchResult(String query,
+            CancellationSignal signal) {
         // Do an intersection of the words in the query and each title, and filter out all the
         // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final String[] queryWords = SPLIT_PATTERN.split(queryTextLower);
+        final String[] queryWords = AppSearchIndex.splitQuery(query);
 
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
-            if (matches(info, queryWords)) {
-                result.add(info.toComponentKey());
-            }
+        // The index is not locked while matching, so that the UI thread can update it. Reading
+        // the version first means that if it changes meanwhile, the next query won't refine
+        // these matches.
+        final int indexVersion = mIndex.getVersion();
+        final ArrayList<AppSearchIndex.Entry> matches;
+        if (mLastMatches != null && mLastIndexVersion == indexVersion
+                && AppSearchIndex.isRefinement(mLastQueryWords, queryWords)) {
+            // Typing more characters can only remove apps from the previous matches.
+            matches = AppSearchIndex.refine(mLastMatches, queryWords, signal);
+        } else {
+            matches = mIndex.search(queryWords, signal);
         }
-        return result;
-    }
+        if (matches == null) {
+            // Keep the previous matches, which are still valid.
+            return null;
+        }
+        mLastIndexVersion = indexVersion;
+        mLastQueryWords = queryWords;
+        mLastMatches = matches;
 
-    protected boolean matches(AppInfo info, String[] queryWords) {
-        String title = info.title.toString();
-        String[] words = SPLIT_PATTERN.split(title.toLowerCase());
-        for (int qi = 0; qi < queryWords.length; qi++) {
-            boolean foundMatch = false;
-            for (int i = 0; i < words.length; i++) {
-                if (words[i].startsWith(queryWords[qi])) {
-                    foundMatch = true;
-                    break;
-                }
-            }
-            if (!foundMatch) {
-                // If there is a word in the query that does not match any words in this
-                // title, so skip it.
-                return false;
-            }
+        final ArrayList<ComponentKey> result = new ArrayList<>(matches.size());
+        for (AppSearchIndex.Entry entry : matches) {
+            result.add(entry.key);
         }
-        return true;
+        return result;
     }
 }
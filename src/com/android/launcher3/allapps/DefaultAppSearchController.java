@@ -15,12 +15,17 @@
  */
 package com.android.launcher3.allapps;
 
+import com.android.launcher3.config.FeatureFlags;
+
 /**
  * The default search controller.
  */
 public class DefaultAppSearchController extends AllAppsSearchBarController {
 
     public DefaultAppSearchAlgorithm onInitializeSearch() {
-        return new DefaultAppSearchAlgorithm(mApps.getApps());
+        if (FeatureFlags.LAUNCHER3_RANKED_APP_SEARCH) {
+            return new RankedAppSearchAlgorithm(mApps.getSearchIndex());
+        }
+        return new DefaultAppSearchAlgorithm(mApps.getSearchIndex());
     }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.os.CancellationSignal;
+
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A search implementation which, in addition to word prefixes, matches the initials of the title,
+ * titles with a few typos and the transliterated section name of the title, and returns the
+ * results by decreasing score. Each app is scored from the features precomputed in its
+ * {@link AppSearchIndex.Entry}, so a query only needs a single pass over the apps.
+ */
+public class RankedAppSearchAlgorithm extends DefaultAppSearchAlgorithm {
+
+    // Scores of a single query word, the score of an app is the sum of the score of each word.
+    private static final int SCORE_TITLE_PREFIX = 100;
+    private static final int SCORE_WORD_PREFIX = 80;
+    private static final int SCORE_INITIALS = 70;
+    private static final int SCORE_NORMALIZED_PREFIX = 60;
+    private static final int SCORE_TYPO = 50;
+    private static final int SCORE_TYPO_EDIT_PENALTY = 10;
+    private static final int SCORE_SECTION_NAME = 20;
+
+    // Minimum length of a query word before one or two typos are allowed.
+    private static final int MIN_LENGTH_ONE_TYPO = 4;
+    private static final int MIN_LENGTH_TWO_TYPOS = 7;
+
+    private static final Comparator<ScoredEntry> SCORE_COMPARATOR = new Comparator<ScoredEntry>() {
+        @Override
+        public int compare(ScoredEntry lhs, ScoredEntry rhs) {
+            if (lhs.score != rhs.score) {
+                return lhs.score > rhs.score ? -1 : 1;
+            }
+            return lhs.rank < rhs.rank ? -1 : (lhs.rank == rhs.rank ? 0 : 1);
+        }
+    };
+
+    private static class ScoredEntry {
+        final AppSearchIndex.Entry entry;
+        final int score;
+        // The ranks are updated on the UI thread, so the sort uses the rank at scoring time.
+        final int rank;
+
+        ScoredEntry(AppSearchIndex.Entry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+            rank = entry.getRank();
+        }
+    }
+
+    // Dynamic programming rows of the edit distance, only used on the search thread.
+    private int[] mPrevRow = new int[16];
+    private int[] mCurRow = new int[16];
+
+    public RankedAppSearchAlgorithm(AppSearchIndex index) {
+        super(index);
+    }
+
+    @Override
+    protected ArrayList<ComponentKey> getTitleMatchResult(String query,
+            CancellationSignal signal) {
+        String[] queryWords = AppSearchIndex.splitQuery(query);
+        String[] normalizedQueryWords = new String[queryWords.length];
+        for (int i = 0; i < queryWords.length; i++) {
+            normalizedQueryWords[i] = AppSearchIndex.normalize(queryWords[i]);
+        }
+        // The whole query can also be typed as initials, "g m" or "gm" for "Google Maps".
+        String joinedQuery = AppSearchIndex.normalize(query.toLowerCase().replaceAll("\\s+", ""));
+
+        ArrayList<ScoredEntry> scored = new ArrayList<>();
+        AppSearchIndex.Entry[] entries = mIndex.getEntries();
+        for (int i = 0; i < entries.length; i++) {
+            if (AppSearchIndex.isCanceled(signal, i)) {
+                return null;
+            }
+            AppSearchIndex.Entry entry = entries[i];
+            int score = scoreEntry(entry, queryWords, normalizedQueryWords, joinedQuery);
+            if (score > 0) {
+                scored.add(new ScoredEntry(entry, score));
+            }
+        }
+        ScoredEntry[] sorted = scored.toArray(new ScoredEntry[scored.size()]);
+        Arrays.sort(sorted, SCORE_COMPARATOR);
+
+        ArrayList<ComponentKey> result = new ArrayList<>(sorted.length);
+        for (ScoredEntry scoredEntry : sorted) {
+            result.add(scoredEntry.entry.key);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the score of {@param entry} for the query, or 0 if it does not match.
+     */
+    private int scoreEntry(AppSearchIndex.Entry entry, String[] queryWords,
+            String[] normalizedQueryWords, String joinedQuery) {
+        if (queryWords.length == 0) {
+            // Only white spaces, which match everything.
+            return 1;
+        }
+        int initialsScore = joinedQuery.length() > 1 && entry.initials.startsWith(joinedQuery)
+                ? SCORE_INITIALS * queryWords.length : 0;
+
+        int total = 0;
+        for (int i = 0; i < queryWords.length; i++) {
+            int score = scoreWord(entry, queryWords[i], normalizedQueryWords[i]);
+            if (score == 0) {
+                // Every query word has to match, unless the query matches the initials.
+                return initialsScore;
+            }
+            total += score;
+        }
+        return Math.max(total, initialsScore);
+    }
+
+    /**
+     * Returns the score of {@param entry} for a single query word, or 0 if it does not match.
+     */
+    private int scoreWord(AppSearchIndex.Entry entry, String rawQueryWord, String queryWord) {
+        String[] rawWords = entry.words;
+        if (rawWords.length > 0 && rawWords[0].startsWith(rawQueryWord)) {
+            return SCORE_TITLE_PREFIX;
+        }
+        for (int i = 1; i < rawWords.length; i++) {
+            if (rawWords[i].startsWith(rawQueryWord)) {
+                return SCORE_WORD_PREFIX;
+            }
+        }
+        String[] words = entry.normalizedWords;
+        for (String word : words) {
+            if (word.startsWith(queryWord)) {
+                // Only matches when ignoring the accents.
+                return SCORE_NORMALIZED_PREFIX;
+            }
+        }
+        if (queryWord.length() > 1 && entry.initials.startsWith(queryWord)) {
+            return SCORE_INITIALS;
+        }
+
+        int maxEdits = queryWord.length() >= MIN_LENGTH_TWO_TYPOS ? 2
+                : (queryWord.length() >= MIN_LENGTH_ONE_TYPO ? 1 : 0);
+        if (maxEdits > 0) {
+            int bestDistance = maxEdits + 1;
+            for (String word : words) {
+                bestDistance = Math.min(bestDistance,
+                        prefixEditDistance(queryWord, word, bestDistance - 1));
+            }
+            if (bestDistance <= maxEdits) {
+                return SCORE_TYPO - SCORE_TYPO_EDIT_PENALTY * bestDistance;
+            }
+        }
+
+        if (queryWord.length() == 1 && entry.sectionName.equals(queryWord)) {
+            // A single letter matching the transliterated section, e.g. for CJK titles.
+            return SCORE_SECTION_NAME;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the smallest edit distance between {@param query} and a prefix of {@param word},
+     * or a value larger than {@param maxEdits} if it exceeds it.
+     */
+    private int prefixEditDistance(String query, String word, int maxEdits) {
+        int n = word.length();
+        if (mPrevRow.length <= n) {
+            mPrevRow = new int[n + 1];
+            mCurRow = new int[n + 1];
+        }
+        int[] prev = mPrevRow;
+        int[] cur = mCurRow;
+        for (int j = 0; j <= n; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= query.length(); i++) {
+            char c = query.charAt(i - 1);
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= n; j++) {
+                int cost = c == word.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        // Any prefix of the word can end the match
+        int best = prev[0];
+        for (int j = 1; j <= n; j++) {
+            best = Math.min(best, prev[j]);
+        }
+        return best;
+    }
+}
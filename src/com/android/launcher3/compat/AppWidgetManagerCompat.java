@@ -72,6 +72,12 @@ public abstract class AppWidgetManagerCompat {
 
     public abstract List<AppWidgetProviderInfo> getAllProviders();
 
+    /**
+     * Returns the providers of a single profile, which is a smaller transaction than
+     * {@link #getAllProviders()} when there are several profiles.
+     */
+    public abstract List<AppWidgetProviderInfo> getAllProvidersForProfile(UserHandleCompat user);
+
     public abstract String loadLabel(LauncherAppWidgetProviderInfo info);
 
     public abstract boolean bindAppWidgetIdIfAllowed(
@@ -34,6 +34,7 @@ import com.android.launcher3.LauncherAppWidgetProviderInfo;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.util.ComponentKey;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -48,6 +49,13 @@ class AppWidgetManagerCompatV16 extends AppWidgetManagerCompat {
         return mAppWidgetManager.getInstalledProviders();
     }
 
+    @Override
+    public List<AppWidgetProviderInfo> getAllProvidersForProfile(UserHandleCompat user) {
+        return UserHandleCompat.myUserHandle().equals(user)
+                ? mAppWidgetManager.getInstalledProviders()
+                : new ArrayList<AppWidgetProviderInfo>();
+    }
+
     @Override
     public String loadLabel(LauncherAppWidgetProviderInfo info) {
         return Utilities.trim(info.label);
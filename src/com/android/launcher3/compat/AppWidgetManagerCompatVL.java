@@ -68,6 +68,11 @@ class AppWidgetManagerCompatVL extends AppWidgetManagerCompat {
         return providers;
     }
 
+    @Override
+    public List<AppWidgetProviderInfo> getAllProvidersForProfile(UserHandleCompat user) {
+        return mAppWidgetManager.getInstalledProvidersForProfile(user.getUser());
+    }
+
     @Override
     public String loadLabel(LauncherAppWidgetProviderInfo info) {
         return info.getLabel(mPm);
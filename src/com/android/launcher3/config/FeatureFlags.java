@@ -33,5 +33,15 @@ public final class FeatureFlags {
 
     // Custom flags go below this
     public static boolean LAUNCHER3_ICON_NORMALIZATION = false;
+    // Resolve workspace rows in parallel, one shard per screen, before binding the model.
+    public static boolean LAUNCHER3_SHARDED_WORKSPACE_LOADER = false;
+    // Load and bind the hotseat and the current page before reading the rest of the workspace.
+    public static boolean LAUNCHER3_CURRENT_PAGE_FIRST_LOADER = false;
+    // Bind the workspace from a snapshot of the last loaded model on cold start.
+    public static boolean LAUNCHER3_MODEL_SNAPSHOT = false;
+    // Store the icon cache as raw pixels instead of PNG, migrating the existing entries.
+    public static boolean LAUNCHER3_RAW_ICON_CACHE_FORMAT = false;
+    // Rank all apps search results, matching initials, typos and transliterated section names.
+    public static boolean LAUNCHER3_RANKED_APP_SEARCH = false;
 
 }
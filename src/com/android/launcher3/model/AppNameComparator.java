@@ -21,8 +21,10 @@ import com.android.launcher3.AppInfo;
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.util.Thunk;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Comparator;
+import java.util.Locale;
 
 /**
  * Class to manage access to an app name comparator.
@@ -30,18 +32,56 @@ import java.util.Comparator;
  * Used to sort application name in all apps view and widget tray view.
  */
 public class AppNameComparator {
+
+    /**
+     * The sort key of a title in a locale. Comparing two keys is much cheaper than collating the
+     * titles, so the key is computed once and kept on the {@link AppInfo} or
+     * {@link PackageItemInfo} until its title or the locale changes.
+     */
+    public static class TitleSortKey {
+        final String title;
+        final Locale locale;
+        final boolean startsWithLetterOrDigit;
+        final CollationKey collationKey;
+
+        TitleSortKey(String title, Locale locale, Collator collator) {
+            this.title = title;
+            this.locale = locale;
+            this.startsWithLetterOrDigit = startsWithLetterOrDigit(title);
+            this.collationKey = collator.getCollationKey(title);
+        }
+
+        boolean isValid(String title, Locale locale) {
+            return this.locale.equals(locale) && this.title.equals(title);
+        }
+
+        int compareTo(TitleSortKey other) {
+            // Ensure that we de-prioritize any titles that don't start with a linguistic letter or
+            // digit
+            if (startsWithLetterOrDigit != other.startsWithLetterOrDigit) {
+                return startsWithLetterOrDigit ? -1 : 1;
+            }
+            return collationKey.compareTo(other.collationKey);
+        }
+    }
+
+    private final Locale mLocale;
     private final Collator mCollator;
     private final AbstractUserComparator<ItemInfo> mAppInfoComparator;
     private final Comparator<String> mSectionNameComparator;
 
     public AppNameComparator(Context context) {
-        mCollator = Collator.getInstance();
+        mLocale = Locale.getDefault();
+        mCollator = Collator.getInstance(mLocale);
         mAppInfoComparator = new AbstractUserComparator<ItemInfo>(context) {
 
             @Override
             public final int compare(ItemInfo a, ItemInfo b) {
                 // Order by the title in the current locale
-                int result = compareTitles(a.title.toString(), b.title.toString());
+                TitleSortKey keyA = getSortKey(a);
+                TitleSortKey keyB = getSortKey(b);
+                int result = keyA != null && keyB != null ? keyA.compareTo(keyB)
+                        : compareTitles(a.title.toString(), b.title.toString());
                 if (result == 0 && a instanceof AppInfo && b instanceof AppInfo) {
                     AppInfo aAppInfo = (AppInfo) a;
                     AppInfo bAppInfo = (AppInfo) b;
@@ -78,15 +118,43 @@ public class AppNameComparator {
         return mSectionNameComparator;
     }
 
+    /**
+     * Returns the sort key of the title of {@param info}, computing it if the title or the locale
+     * changed, or null if the item can not hold a sort key.
+     */
+    @Thunk TitleSortKey getSortKey(ItemInfo info) {
+        TitleSortKey key;
+        if (info instanceof AppInfo) {
+            key = ((AppInfo) info).titleSortKey;
+        } else if (info instanceof PackageItemInfo) {
+            key = ((PackageItemInfo) info).titleSortKey;
+        } else {
+            return null;
+        }
+
+        String title = info.title.toString();
+        if (key == null || !key.isValid(title, mLocale)) {
+            key = new TitleSortKey(title, mLocale, mCollator);
+            if (info instanceof AppInfo) {
+                ((AppInfo) info).titleSortKey = key;
+            } else {
+                ((PackageItemInfo) info).titleSortKey = key;
+            }
+        }
+        return key;
+    }
+
+    @Thunk static boolean startsWithLetterOrDigit(String title) {
+        return (title.length() > 0) && Character.isLetterOrDigit(title.codePointAt(0));
+    }
+
     /**
      * Compares two titles with the same return value semantics as Comparator.
      */
     @Thunk int compareTitles(String titleA, String titleB) {
         // Ensure that we de-prioritize any titles that don't start with a linguistic letter or digit
-        boolean aStartsWithLetter = (titleA.length() > 0) &&
-                Character.isLetterOrDigit(titleA.codePointAt(0));
-        boolean bStartsWithLetter = (titleB.length() > 0) &&
-                Character.isLetterOrDigit(titleB.codePointAt(0));
+        boolean aStartsWithLetter = startsWithLetterOrDigit(titleA);
+        boolean bStartsWithLetter = startsWithLetterOrDigit(titleB);
         if (aStartsWithLetter && !bStartsWithLetter) {
             return -1;
         } else if (!aStartsWithLetter && bStartsWithLetter) {
@@ -25,17 +25,20 @@ import com.android.launcher3.Utilities;
 import com.android.launcher3.backup.nano.BackupProtos;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.PackageInstallerCompat;
+import com.android.launcher3.util.GridOccupancy;
 import com.android.launcher3.util.LongArrayMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
 
 /**
- * This class takes care of shrinking the workspace (by maximum of one row and one column), as a
- * result of restoring from a larger device or device density change.
+ * This class takes care of resizing the workspace and the hotseat, as a result of restoring from a
+ * different device or device density change. The workspace is shrunk by one row and one column
+ * at a time, in memory, and only the final layout is written to the DB.
  */
 public class GridSizeMigrationTask {
 
@@ -59,6 +62,9 @@ public class GridSizeMigrationTask {
     private static final float WT_WIDGET_FACTOR = 0.6f;
     private static final float WT_FOLDER_FACTOR = 0.5f;
 
+    // Guards the lower bound of the weight loss against rounding errors.
+    private static final float LOWER_BOUND_MARGIN = 0.999f;
+
     private final Context mContext;
     private final InvariantDeviceProfile mIdp;
 
@@ -71,7 +77,15 @@ public class GridSizeMigrationTask {
 
     private final int mSrcX, mSrcY;
     private final int mTrgX, mTrgY;
-    private final boolean mShouldRemoveX, mShouldRemoveY;
+
+    // Grid sizes before and after the current step of the workspace migration, which removes at
+    // most one row and one column.
+    private int mStepSrcX, mStepSrcY;
+    private int mStepTrgX, mStepTrgY;
+    private boolean mShouldRemoveX, mShouldRemoveY;
+
+    // Workspace items of each screen, as migrated by the steps so far.
+    private final LongArrayMap<ArrayList<DbEntry>> mScreenItems = new LongArrayMap<>();
 
     private final int mSrcHotseatSize;
     private final int mSrcAllAppsRank;
@@ -92,9 +106,6 @@ public class GridSizeMigrationTask {
         mTrgX = targetSize.x;
         mTrgY = targetSize.y;
 
-        mShouldRemoveX = mTrgX < mSrcX;
-        mShouldRemoveY = mTrgY < mSrcY;
-
         // Non-used variables
         mSrcHotseatSize = mSrcAllAppsRank = mDestHotseatSize = mDestAllAppsRank = -1;
     }
@@ -115,7 +126,6 @@ public class GridSizeMigrationTask {
 
         // Non-used variables
         mSrcX = mSrcY = mTrgX = mTrgY = -1;
-        mShouldRemoveX = mShouldRemoveY = false;
     }
 
     /**
@@ -123,21 +133,45 @@ public class GridSizeMigrationTask {
      * @return true if any DB operation was commited.
      */
     private boolean applyOperations() throws Exception {
-        // Update items
-        if (!mUpdateOperations.isEmpty()) {
-            mContext.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, mUpdateOperations);
+        return applyOperations(mContext, this);
+    }
+
+    /**
+     * Applies the pending DB operations of all the {@param tasks} in a single transaction.
+     * @return true if any DB operation was commited.
+     */
+    private static boolean applyOperations(Context context, GridSizeMigrationTask... tasks)
+            throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (GridSizeMigrationTask task : tasks) {
+            task.collectOperations(operations);
         }
+        if (operations.isEmpty()) {
+            return false;
+        }
+
+        long startTime = System.currentTimeMillis();
+        context.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, operations);
+        if (DEBUG) {
+            Log.d(TAG, "Applied " + operations.size() + " operations in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return true;
+    }
+
+    private void collectOperations(ArrayList<ContentProviderOperation> out) {
+        // Update items
+        out.addAll(mUpdateOperations);
 
         if (!mEntryToRemove.isEmpty()) {
             if (DEBUG) {
                 Log.d(TAG, "Removing items: " + TextUtils.join(", ", mEntryToRemove));
             }
-            mContext.getContentResolver().delete(LauncherSettings.Favorites.CONTENT_URI,
-                    Utilities.createDbSelectionQuery(
-                            LauncherSettings.Favorites._ID, mEntryToRemove), null);
+            out.add(ContentProviderOperation.newDelete(LauncherSettings.Favorites.CONTENT_URI)
+                    .withSelection(Utilities.createDbSelectionQuery(
+                            LauncherSettings.Favorites._ID, mEntryToRemove), null)
+                    .build());
         }
-
-        return !mUpdateOperations.isEmpty() || !mEntryToRemove.isEmpty();
     }
 
     /**
@@ -149,6 +183,11 @@ public class GridSizeMigrationTask {
      * @return true if any DB change was made
      */
     protected boolean migrateHotseat() throws Exception {
+        planHotseat();
+        return applyOperations();
+    }
+
+    private void planHotseat() {
         ArrayList<DbEntry> items = loadHotseatEntries();
 
         int requiredCount = mDestHotseatSize - 1;
@@ -188,23 +227,98 @@ public class GridSizeMigrationTask {
             }
         }
 
-        return applyOperations();
     }
 
     /**
+     * Migrates the workspace from the source to the target grid size, which can differ by any
+     * number of rows and columns.
      * @return true if any DB change was made
      */
     protected boolean migrateWorkspace() throws Exception {
+        planWorkspace();
+        return applyOperations();
+    }
+
+    /**
+     * Loads all the screens once, and migrates them in memory: the grid first grows to the
+     * target size where it is larger, which moves no item and gives more space to the following
+     * steps, then shrinks by at most one row and one column per step where it is smaller. Only
+     * the items whose final position changed are updated.
+     */
+    private void planWorkspace() throws Exception {
+        if (mTrgX <= 0 || mTrgY <= 0 || mTrgX > GridOccupancy.MAX_COUNT_X) {
+            throw new Exception("Invalid grid size " + mTrgX + "x" + mTrgY);
+        }
         ArrayList<Long> allScreens = LauncherModel.loadWorkspaceScreensDb(mContext);
         if (allScreens.isEmpty()) {
             throw new Exception("Unable to get workspace screens");
         }
+        int screenCount = allScreens.size();
+
+        LongArrayMap<DbEntry> originalItems = new LongArrayMap<>();
+        for (long screenId : allScreens) {
+            ArrayList<DbEntry> items = loadWorkspaceEntries(screenId);
+            for (DbEntry item : items) {
+                originalItems.put(item.id, item.copy());
+            }
+            mScreenItems.put(screenId, items);
+        }
+
+        mStepSrcX = Math.max(mSrcX, mTrgX);
+        mStepSrcY = Math.max(mSrcY, mTrgY);
+        while (mStepSrcX > mTrgX || mStepSrcY > mTrgY) {
+            long stepStartTime = System.currentTimeMillis();
+            mStepTrgX = Math.max(mStepSrcX - 1, mTrgX);
+            mStepTrgY = Math.max(mStepSrcY - 1, mTrgY);
+            mShouldRemoveX = mStepTrgX < mStepSrcX;
+            mShouldRemoveY = mStepTrgY < mStepSrcY;
+
+            migrateStep(allScreens);
+
+            if (DEBUG) {
+                Log.d(TAG, String.format(Locale.ENGLISH, "Migrated %d screens from %dx%d to %dx%d"
+                        + " in %dms", allScreens.size(), mStepSrcX, mStepSrcY,
+                        mStepTrgX, mStepTrgY, System.currentTimeMillis() - stepStartTime));
+            }
+            mStepSrcX = mStepTrgX;
+            mStepSrcY = mStepTrgY;
+        }
 
+        for (long screenId : allScreens) {
+            for (DbEntry item : mScreenItems.get(screenId)) {
+                DbEntry org = originalItems.get(item.id);
+                // Check if update is required
+                if (org == null || !item.columnsSame(org)) {
+                    update(item);
+                }
+            }
+        }
+
+        if (allScreens.size() != screenCount) {
+            // Update screens
+            final Uri uri = LauncherSettings.WorkspaceScreens.CONTENT_URI;
+            mUpdateOperations.add(ContentProviderOperation.newDelete(uri).build());
+            int count = allScreens.size();
+            for (int i = 0; i < count; i++) {
+                ContentValues v = new ContentValues();
+                long screenId = allScreens.get(i);
+                v.put(LauncherSettings.WorkspaceScreens._ID, screenId);
+                v.put(LauncherSettings.WorkspaceScreens.SCREEN_RANK, i);
+                mUpdateOperations.add(ContentProviderOperation.newInsert(uri).withValues(v).build());
+            }
+        }
+    }
+
+    /**
+     * Migrates all the screens by a single step, and adds new screens for the items which could
+     * not be placed on any screen.
+     */
+    private void migrateStep(ArrayList<Long> allScreens) throws Exception {
         for (long screenId : allScreens) {
             if (DEBUG) {
                 Log.d(TAG, "Migrating " + screenId);
             }
-            migrateScreen(screenId);
+            mScreenItems.put(screenId, migrateScreen(screenId, mScreenItems.get(screenId)));
         }
 
         if (!mCarryOver.isEmpty()) {
@@ -220,7 +334,7 @@ public class GridSizeMigrationTask {
                 // {@link #mCarryOver}, to prevent an infinite loop. If no item could be removed,
                 // break the loop and abort migration by throwing an exception.
                 OptimalPlacementSolution placement = new OptimalPlacementSolution(
-                        new boolean[mTrgX][mTrgY], deepCopy(mCarryOver), true);
+                        new GridOccupancy(mStepTrgX, mStepTrgY), deepCopy(mCarryOver), true);
                 placement.find();
                 if (placement.finalPlacedItems.size() > 0) {
                     long newScreenId = LauncherAppState.getLauncherProvider().generateNewScreenId();
@@ -230,27 +344,14 @@ public class GridSizeMigrationTask {
                             throw new Exception("Unable to find matching items");
                         }
                         item.screenId = newScreenId;
-                        update(item);
                     }
+                    mScreenItems.put(newScreenId, placement.finalPlacedItems);
                 } else {
                     throw new Exception("None of the items can be placed on an empty screen");
                 }
 
             } while (!mCarryOver.isEmpty());
-
-            // Update screens
-            final Uri uri = LauncherSettings.WorkspaceScreens.CONTENT_URI;
-            mUpdateOperations.add(ContentProviderOperation.newDelete(uri).build());
-            int count = allScreens.size();
-            for (int i = 0; i < count; i++) {
-                ContentValues v = new ContentValues();
-                long screenId = allScreens.get(i);
-                v.put(LauncherSettings.WorkspaceScreens._ID, screenId);
-                v.put(LauncherSettings.WorkspaceScreens.SCREEN_RANK, i);
-                mUpdateOperations.add(ContentProviderOperation.newInsert(uri).withValues(v).build());
-            }
         }
-        return applyOperations();
     }
 
     /**
@@ -262,10 +363,9 @@ public class GridSizeMigrationTask {
      *      this screen to that list as well.
      *   3) If all those items from the above list can be placed on this screen, place them
      *      (otherwise they are placed on a new screen).
+     * @return the items on the screen after the current step
      */
-    private void migrateScreen(long screenId) {
-        ArrayList<DbEntry> items = loadWorkspaceEntries(screenId);
-
+    private ArrayList<DbEntry> migrateScreen(long screenId, ArrayList<DbEntry> items) {
         int removedCol = Integer.MAX_VALUE;
         int removedRow = Integer.MAX_VALUE;
 
@@ -280,8 +380,8 @@ public class GridSizeMigrationTask {
         ArrayList<DbEntry> finalItems = null;
 
         // Try removing all possible combinations
-        for (int x = 0; x < mSrcX; x++) {
-            for (int y = 0; y < mSrcY; y++) {
+        for (int x = 0; x < mStepSrcX; x++) {
+            for (int y = 0; y < mStepSrcY; y++) {
                 // Use a deep copy when trying out a particular combination as it can change
                 // the underlying object.
                 ArrayList<DbEntry> itemsOnScreen = tryRemove(x, y, deepCopy(items), outLoss);
@@ -316,13 +416,7 @@ public class GridSizeMigrationTask {
         }
 
         for (DbEntry item : finalItems) {
-            DbEntry org = itemMap.get(item.id);
             itemMap.remove(item.id);
-
-            // Check if update is required
-            if (!item.columnsSame(org)) {
-                update(item);
-            }
         }
 
         // The remaining items in {@link #itemMap} are those which didn't get placed.
@@ -332,7 +426,7 @@ public class GridSizeMigrationTask {
 
         if (!mCarryOver.isEmpty() && removeWt == 0) {
             // No new items were removed in this step. Try placing all the items on this screen.
-            boolean[][] occupied = new boolean[mTrgX][mTrgY];
+            GridOccupancy occupied = new GridOccupancy(mStepTrgX, mStepTrgY);
             for (DbEntry item : finalItems) {
                 markCells(occupied, item, true);
             }
@@ -345,12 +439,13 @@ public class GridSizeMigrationTask {
 
                 for (DbEntry item : placement.finalPlacedItems) {
                     item.screenId = screenId;
-                    update(item);
+                    finalItems.add(item);
                 }
 
                 mCarryOver.clear();
             }
         }
+        return finalItems;
     }
 
     /**
@@ -372,7 +467,7 @@ public class GridSizeMigrationTask {
      */
     private ArrayList<DbEntry> tryRemove(int col, int row, ArrayList<DbEntry> items,
             float[] outLoss) {
-        boolean[][] occupied = new boolean[mTrgX][mTrgY];
+        GridOccupancy occupied = new GridOccupancy(mStepTrgX, mStepTrgY);
 
         col = mShouldRemoveX ? col : Integer.MAX_VALUE;
         row = mShouldRemoveY ? row : Integer.MAX_VALUE;
@@ -402,56 +497,127 @@ public class GridSizeMigrationTask {
         return finalItems;
     }
 
-    private void markCells(boolean[][] occupied, DbEntry item, boolean val) {
-        for (int i = item.cellX; i < (item.cellX + item.spanX); i++) {
-            for (int j = item.cellY; j < (item.cellY + item.spanY); j++) {
-                occupied[i][j] = val;
-            }
-        }
+    private static void markCells(GridOccupancy occupied, DbEntry item, boolean val) {
+        occupied.markCells(item.cellX, item.cellY, item.spanX, item.spanY, val);
     }
 
-    private boolean isVacant(boolean[][] occupied, int x, int y, int w, int h) {
-        if (x + w > mTrgX) return false;
-        if (y + h > mTrgY) return false;
+    /**
+     * Finds the placement of a set of items on a screen which loses the least weight, and among
+     * those the first one found, which moves the items the least in most cases.
+     *
+     * The search visits at most {@link #mMaxNodes} nodes once a placement has been found, and
+     * then returns the best placement found so far. It skips the states of the grid which were
+     * already visited with a lower weight loss, and the branches where the items left can not
+     * fit in the vacant cells without losing more weight than the best placement.
+     */
+    static class OptimalPlacementSolution {
 
-        for (int i = 0; i < w; i++) {
-            for (int j = 0; j < h; j++) {
-                if (occupied[i + x][j + y]) {
-                    return false;
-                }
-            }
-        }
-        return true;
-    }
+        static final int DEFAULT_MAX_NODES = 20000;
 
-    private class OptimalPlacementSolution {
         private final ArrayList<DbEntry> itemsToPlace;
-        private final boolean[][] occupied;
+        private final GridOccupancy occupied;
+        private final int mCellCount;
 
         // If set to true, item movement are not considered in move cost, leading to a more
         // linear placement.
         private final boolean ignoreMove;
 
+        private final int mMaxNodes;
+        private int mNodes;
+        private boolean mStopped;
+
+        // Smallest number of cells the items from a given index onwards can occupy, and the
+        // smallest weight per cell among them, for the lower bound of the weight loss.
+        private final int[] mMinCellsFrom;
+        private final float[] mMinWeightPerCellFrom;
+        private int mOccupiedCount;
+
+        // Items placed in the current branch of the search, and the best placement found.
+        private final boolean[] mPlaced;
+        private final int[] mBestPlacement;
+        private boolean mFound;
+
+        private final VisitedStates mVisited;
+        private final int[] mTmpCell = new int[2];
+
         float lowestWeightLoss = Float.MAX_VALUE;
         float lowestMoveCost = Float.MAX_VALUE;
         ArrayList<DbEntry> finalPlacedItems;
 
-        public OptimalPlacementSolution(boolean[][] occupied, ArrayList<DbEntry> itemsToPlace) {
+        public OptimalPlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace) {
             this(occupied, itemsToPlace, false);
         }
 
-        public OptimalPlacementSolution(boolean[][] occupied, ArrayList<DbEntry> itemsToPlace,
+        public OptimalPlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace,
                 boolean ignoreMove) {
+            this(occupied, itemsToPlace, ignoreMove, DEFAULT_MAX_NODES);
+        }
+
+        OptimalPlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace,
+                boolean ignoreMove, int maxNodes) {
             this.occupied = occupied;
             this.itemsToPlace = itemsToPlace;
             this.ignoreMove = ignoreMove;
+            mMaxNodes = maxNodes;
+            mCellCount = occupied.getCountX() * occupied.getCountY();
+            mVisited = mCellCount <= 64 ? new VisitedStates() : null;
 
             // Sort the items such that larger widgets appear first followed by 1x1 items
             Collections.sort(this.itemsToPlace);
+
+            int count = itemsToPlace.size();
+            mPlaced = new boolean[count];
+            mBestPlacement = new int[count * 4];
+            mMinCellsFrom = new int[count + 1];
+            mMinWeightPerCellFrom = new float[count + 1];
+            mMinWeightPerCellFrom[count] = Float.MAX_VALUE;
+            for (int i = count - 1; i >= 0; i--) {
+                DbEntry item = itemsToPlace.get(i);
+                int cells = 1;
+                if (item.spanX > 1 || item.spanY > 1) {
+                    // Widgets can be shrunk by one cell in each direction.
+                    cells = (item.spanX > item.minSpanX ? item.spanX - 1 : item.spanX)
+                            * (item.spanY > item.minSpanY ? item.spanY - 1 : item.spanY);
+                }
+                mMinCellsFrom[i] = mMinCellsFrom[i + 1] + cells;
+                mMinWeightPerCellFrom[i] =
+                        Math.min(mMinWeightPerCellFrom[i + 1], item.weight / cells);
+            }
         }
 
         public void find() {
-            find(0, 0, 0, new ArrayList<DbEntry>());
+            mOccupiedCount = occupied.getOccupiedCount();
+            find(0, 0, 0);
+
+            finalPlacedItems = new ArrayList<>();
+            if (mFound) {
+                for (int i = 0; i < itemsToPlace.size(); i++) {
+                    if (mBestPlacement[i * 4 + 2] > 0) {
+                        DbEntry item = itemsToPlace.get(i).copy();
+                        item.cellX = mBestPlacement[i * 4];
+                        item.cellY = mBestPlacement[i * 4 + 1];
+                        item.spanX = mBestPlacement[i * 4 + 2];
+                        item.spanY = mBestPlacement[i * 4 + 3];
+                        finalPlacedItems.add(item);
+                    }
+                }
+            }
+            if (mStopped && DEBUG) {
+                Log.d(TAG, "Placement search stopped after " + mNodes + " nodes, weight loss "
+                        + lowestWeightLoss);
+            }
+        }
+
+        /**
+         * Returns true if the search was not stopped by the node budget, that is the placement
+         * found is the optimal one.
+         */
+        boolean isComplete() {
+            return !mStopped;
+        }
+
+        int getVisitedNodes() {
+            return mNodes;
         }
 
         /**
@@ -459,22 +625,39 @@ public class GridSizeMigrationTask {
          * @param index the position in {@link #itemsToPlace} to start looking at.
          * @param weightLoss total weight loss upto this point
          * @param moveCost total move cost upto this point
-         * @param itemsPlaced all the items already placed upto this point
          */
-        public void find(int index, float weightLoss, float moveCost,
-                ArrayList<DbEntry> itemsPlaced) {
-            if ((weightLoss >= lowestWeightLoss) ||
-                    ((weightLoss == lowestWeightLoss) && (moveCost >= lowestMoveCost))) {
-                // Abort, as we already have a better solution.
+        private void find(int index, float weightLoss, float moveCost) {
+            if (mStopped) {
+                return;
+            }
+            mNodes++;
+            if (mFound && mNodes > mMaxNodes) {
+                mStopped = true;
                 return;
+            }
 
+            if (weightLoss >= lowestWeightLoss) {
+                // Abort, as we already have a better solution. A solution is only replaced by
+                // one with a lower weight loss.
+                return;
             } else if (index >= itemsToPlace.size()) {
                 // End loop.
                 lowestWeightLoss = weightLoss;
                 lowestMoveCost = moveCost;
+                savePlacement();
+                return;
+            }
 
-                // Keep a deep copy of current configuration as it can change during recursion.
-                finalPlacedItems = deepCopy(itemsPlaced);
+            // If the items left need more cells than are vacant, some of them will be lost.
+            int missingCells = mMinCellsFrom[index] - (mCellCount - mOccupiedCount);
+            if (missingCells > 0 && weightLoss + missingCells
+                    * mMinWeightPerCellFrom[index] * LOWER_BOUND_MARGIN >= lowestWeightLoss) {
+                return;
+            }
+            if (mVisited != null
+                    && !mVisited.visit(index, occupied.getPackedCells(), weightLoss)) {
+                // The same items are left to place on the same vacant cells, with a lower weight
+                // loss in a previous branch.
                 return;
             }
 
@@ -482,20 +665,17 @@ public class GridSizeMigrationTask {
             int myX = me.cellX;
             int myY = me.cellY;
 
-            // List of items to pass over if this item was placed.
-            ArrayList<DbEntry> itemsIncludingMe = new ArrayList<>(itemsPlaced.size() + 1);
-            itemsIncludingMe.addAll(itemsPlaced);
-            itemsIncludingMe.add(me);
-
             if (me.spanX > 1 || me.spanY > 1) {
                 // If the current item is a widget (and it greater than 1x1), try to place it at
                 // all possible positions. This is because a widget placed at one position can
                 // affect the placement of a different widget.
                 int myW = me.spanX;
                 int myH = me.spanY;
+                int countX = occupied.getCountX();
+                int countY = occupied.getCountY();
 
-                for (int y = 0; y < mTrgY; y++) {
-                    for (int x = 0; x < mTrgX; x++) {
+                for (int y = 0; y < countY && !mStopped; y++) {
+                    for (int x = 0; x < countX && !mStopped; x++) {
                         float newMoveCost = moveCost;
                         if (x != myX) {
                             me.cellX = x;
@@ -509,42 +689,34 @@ public class GridSizeMigrationTask {
                             newMoveCost = moveCost;
                         }
 
-                        if (isVacant(occupied, x, y, myW, myH)) {
+                        if (occupied.isRegionVacant(x, y, myW, myH)) {
                             // place at this position and continue search.
-                            markCells(occupied, me, true);
-                            find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
-                            markCells(occupied, me, false);
+                            placeAndFind(index, weightLoss, newMoveCost);
                         }
 
                         // Try resizing horizontally
-                        if (myW > me.minSpanX && isVacant(occupied, x, y, myW - 1, myH)) {
+                        if (myW > me.minSpanX && occupied.isRegionVacant(x, y, myW - 1, myH)) {
                             me.spanX --;
-                            markCells(occupied, me, true);
                             // 1 extra move cost
-                            find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
-                            markCells(occupied, me, false);
+                            placeAndFind(index, weightLoss, newMoveCost + 1);
                             me.spanX ++;
                         }
 
                         // Try resizing vertically
-                        if (myH > me.minSpanY && isVacant(occupied, x, y, myW, myH - 1)) {
+                        if (myH > me.minSpanY && occupied.isRegionVacant(x, y, myW, myH - 1)) {
                             me.spanY --;
-                            markCells(occupied, me, true);
                             // 1 extra move cost
-                            find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
-                            markCells(occupied, me, false);
+                            placeAndFind(index, weightLoss, newMoveCost + 1);
                             me.spanY ++;
                         }
 
                         // Try resizing horizontally & vertically
                         if (myH > me.minSpanY && myW > me.minSpanX &&
-                                isVacant(occupied, x, y, myW - 1, myH - 1)) {
+                                occupied.isRegionVacant(x, y, myW - 1, myH - 1)) {
                             me.spanX --;
                             me.spanY --;
-                            markCells(occupied, me, true);
                             // 2 extra move cost
-                            find(index + 1, weightLoss, newMoveCost + 2, itemsIncludingMe);
-                            markCells(occupied, me, false);
+                            placeAndFind(index, weightLoss, newMoveCost + 2);
                             me.spanX ++;
                             me.spanY ++;
                         }
@@ -556,29 +728,18 @@ public class GridSizeMigrationTask {
                 // Finally also try a solution when this item is not included. Trying it in the end
                 // causes it to get skipped in most cases due to higher weight loss, and prevents
                 // unnecessary deep copies of various configurations.
-                find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+                find(index + 1, weightLoss + me.weight, moveCost);
             } else {
                 // Since this is a 1x1 item and all the following items are also 1x1, just place
                 // it at 'the most appropriate position' and hope for the best.
                 // The most appropriate position: one with lease straight line distance
-                int newDistance = Integer.MAX_VALUE;
-                int newX = Integer.MAX_VALUE, newY = Integer.MAX_VALUE;
-
-                for (int y = 0; y < mTrgY; y++) {
-                    for (int x = 0; x < mTrgX; x++) {
-                        if (!occupied[x][y]) {
-                            int dist = ignoreMove ? 0 :
-                                ((me.cellX - x) * (me.cellX - x) + (me.cellY - y) * (me.cellY - y));
-                            if (dist < newDistance) {
-                                newX = x;
-                                newY = y;
-                                newDistance = dist;
-                            }
-                        }
-                    }
-                }
+                boolean found = ignoreMove
+                        ? occupied.findVacantCell(mTmpCell, 1, 1)
+                        : occupied.findNearestVacantCell(mTmpCell, me.cellX, me.cellY, 1, 1);
 
-                if (newX < mTrgX && newY < mTrgY) {
+                if (found) {
+                    int newX = mTmpCell[0];
+                    int newY = mTmpCell[1];
                     float newMoveCost = moveCost;
                     if (newX != myX) {
                         me.cellX = newX;
@@ -591,9 +752,7 @@ public class GridSizeMigrationTask {
                     if (ignoreMove) {
                         newMoveCost = moveCost;
                     }
-                    markCells(occupied, me, true);
-                    find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
-                    markCells(occupied, me, false);
+                    placeAndFind(index, weightLoss, newMoveCost);
                     me.cellX = myX;
                     me.cellY = myY;
 
@@ -605,17 +764,94 @@ public class GridSizeMigrationTask {
                     //      anyway be same.
                     if (index + 1 < itemsToPlace.size()
                             && itemsToPlace.get(index + 1).weight >= me.weight && !ignoreMove) {
-                        find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+                        find(index + 1, weightLoss + me.weight, moveCost);
                     }
                 } else {
                     // No more space. Jump to the end.
                     for (int i = index + 1; i < itemsToPlace.size(); i++) {
                         weightLoss += itemsToPlace.get(i).weight;
                     }
-                    find(itemsToPlace.size(), weightLoss + me.weight, moveCost, itemsPlaced);
+                    find(itemsToPlace.size(), weightLoss + me.weight, moveCost);
                 }
             }
         }
+
+        /**
+         * Marks the item at {@param index} as placed at its current position and size, continues
+         * the search with the next item, and reverts the placement.
+         */
+        private void placeAndFind(int index, float weightLoss, float moveCost) {
+            DbEntry me = itemsToPlace.get(index);
+            int cells = me.spanX * me.spanY;
+            markCells(occupied, me, true);
+            mOccupiedCount += cells;
+            mPlaced[index] = true;
+
+            find(index + 1, weightLoss, moveCost);
+
+            mPlaced[index] = false;
+            mOccupiedCount -= cells;
+            markCells(occupied, me, false);
+        }
+
+        private void savePlacement() {
+            mFound = true;
+            for (int i = 0; i < mPlaced.length; i++) {
+                DbEntry item = itemsToPlace.get(i);
+                boolean placed = mPlaced[i];
+                mBestPlacement[i * 4] = item.cellX;
+                mBestPlacement[i * 4 + 1] = item.cellY;
+                mBestPlacement[i * 4 + 2] = placed ? item.spanX : 0;
+                mBestPlacement[i * 4 + 3] = placed ? item.spanY : 0;
+            }
+        }
+    }
+
+    /**
+     * The lowest weight loss with which each state of the search was visited, a state being the
+     * index of the next item to place and the occupied cells of the grid. The number of states is
+     * bounded, states visited once the table is full are not remembered.
+     */
+    private static class VisitedStates {
+
+        private static final int CAPACITY_BITS = 14;
+        private static final int CAPACITY = 1 << CAPACITY_BITS;
+        private static final int MAX_SIZE = CAPACITY / 2;
+
+        private final long[] mCells = new long[CAPACITY];
+        private final int[] mIndices = new int[CAPACITY];
+        private final float[] mWeightLosses = new float[CAPACITY];
+        private int mSize;
+
+        VisitedStates() {
+            Arrays.fill(mIndices, -1);
+        }
+
+        /**
+         * Records a visit of the state, returns false if it was already visited with a lower or
+         * equal weight loss.
+         */
+        boolean visit(int index, long cells, float weightLoss) {
+            long hash = (cells ^ (cells >>> 29) ^ index) * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash >>> (64 - CAPACITY_BITS));
+            while (mIndices[slot] != -1) {
+                if (mIndices[slot] == index && mCells[slot] == cells) {
+                    if (weightLoss >= mWeightLosses[slot]) {
+                        return false;
+                    }
+                    mWeightLosses[slot] = weightLoss;
+                    return true;
+                }
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            if (mSize < MAX_SIZE) {
+                mIndices[slot] = index;
+                mCells[slot] = cells;
+                mWeightLosses[slot] = weightLoss;
+                mSize++;
+            }
+            return true;
+        }
     }
 
     private ArrayList<DbEntry> loadHotseatEntries() {
@@ -820,7 +1056,7 @@ public class GridSizeMigrationTask {
         }
     }
 
-    private static class DbEntry extends ItemInfo implements Comparable<DbEntry> {
+    static class DbEntry extends ItemInfo implements Comparable<DbEntry> {
 
         public float weight;
 
@@ -916,8 +1152,6 @@ public class GridSizeMigrationTask {
 
         long migrationStartTime = System.currentTimeMillis();
         try {
-            boolean dbChanged = false;
-
             // Initialize list of valid packages. This contain all the packages which are already on
             // the device and packages which are being installed. Any item which doesn't belong to
             // this set is removed.
@@ -933,47 +1167,28 @@ public class GridSizeMigrationTask {
             // Hotseat
             Point srcHotseatSize = parsePoint(prefs.getString(
                     KEY_MIGRATION_SRC_HOTSEAT_SIZE, hotseatSizeString));
+            GridSizeMigrationTask hotseatTask = null;
             if (srcHotseatSize.x != idp.numHotseatIcons ||
                     srcHotseatSize.y != idp.hotseatAllAppsRank) {
                 // Migrate hotseat.
 
-                dbChanged = new GridSizeMigrationTask(context,
+                hotseatTask = new GridSizeMigrationTask(context,
                         LauncherAppState.getInstance().getInvariantDeviceProfile(),
                         validPackages,
                         srcHotseatSize.x, srcHotseatSize.y,
-                        idp.numHotseatIcons, idp.hotseatAllAppsRank).migrateHotseat();
+                        idp.numHotseatIcons, idp.hotseatAllAppsRank);
+                hotseatTask.planHotseat();
             }
 
             // Grid size
+            // Note that the InvariantDeviceProfile defines (rows, cols) but the Points
+            // specified here are defined as (cols, rows).
             Point targetSize = new Point(idp.numColumns, idp.numRows);
             Point sourceSize = parsePoint(prefs.getString(
                     KEY_MIGRATION_SRC_WORKSPACE_SIZE, gridSizeString));
 
+            GridSizeMigrationTask workspaceTask = null;
             if (!targetSize.equals(sourceSize)) {
-
-                // The following list defines all possible grid sizes (and intermediate steps
-                // during migration). Note that at each step, dx <= 1 && dy <= 1. Any grid size
-                // which is not in this list is not migrated.
-                // Note that the InvariantDeviceProfile defines (rows, cols) but the Points
-                // specified here are defined as (cols, rows).
-                ArrayList<Point> gridSizeSteps = new ArrayList<>();
-                gridSizeSteps.add(new Point(3, 2));
-                gridSizeSteps.add(new Point(3, 3));
-                gridSizeSteps.add(new Point(4, 3));
-                gridSizeSteps.add(new Point(4, 4));
-                gridSizeSteps.add(new Point(5, 5));
-                gridSizeSteps.add(new Point(6, 5));
-                gridSizeSteps.add(new Point(6, 6));
-                gridSizeSteps.add(new Point(7, 7));
-
-                int sourceSizeIndex = gridSizeSteps.indexOf(sourceSize);
-                int targetSizeIndex = gridSizeSteps.indexOf(targetSize);
-
-                if (sourceSizeIndex <= -1 || targetSizeIndex <= -1) {
-                    throw new Exception("Unable to migrate grid size from " + sourceSize
-                            + " to " + targetSize);
-                }
-
                 // Min widget sizes
                 HashMap<String, Point> widgetMinSize = new HashMap<>();
                 for (String s : Utilities.getPrefs(context).getStringSet(KEY_MIGRATION_WIDGET_MINSIZE,
@@ -982,22 +1197,28 @@ public class GridSizeMigrationTask {
                     widgetMinSize.put(parts[0], parsePoint(parts[1]));
                 }
 
-                // Migrate the workspace grid, step by step.
-                while (targetSizeIndex < sourceSizeIndex ) {
-                    // We only need to migrate the grid if source size is greater
-                    // than the target size.
-                    Point stepTargetSize = gridSizeSteps.get(sourceSizeIndex - 1);
-                    Point stepSourceSize = gridSizeSteps.get(sourceSizeIndex);
-
-                    if (new GridSizeMigrationTask(context,
-                            LauncherAppState.getInstance().getInvariantDeviceProfile(),
-                            validPackages, widgetMinSize,
-                            stepSourceSize, stepTargetSize).migrateWorkspace()) {
-                        dbChanged = true;
-                    }
-                    sourceSizeIndex--;
-                }
+                // Migrate the workspace grid, all the intermediate steps are done in memory.
+                workspaceTask = new GridSizeMigrationTask(context,
+                        LauncherAppState.getInstance().getInvariantDeviceProfile(),
+                        validPackages, widgetMinSize, sourceSize, targetSize);
+                workspaceTask.planWorkspace();
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Migration planned in "
+                        + (System.currentTimeMillis() - migrationStartTime) + "ms");
+            }
+
+            // Write the hotseat and the workspace changes in a single transaction, so that the
+            // DB is never left with a partially migrated layout.
+            ArrayList<GridSizeMigrationTask> tasks = new ArrayList<>(2);
+            if (hotseatTask != null) {
+                tasks.add(hotseatTask);
+            }
+            if (workspaceTask != null) {
+                tasks.add(workspaceTask);
             }
+            boolean dbChanged = applyOperations(context,
+                    tasks.toArray(new GridSizeMigrationTask[tasks.size()]));
 
             if (dbChanged) {
                 // Make sure we haven't removed everything.
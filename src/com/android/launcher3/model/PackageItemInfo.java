@@ -48,6 +48,11 @@ public class PackageItemInfo extends ItemInfo {
      */
     public String titleSectionName;
 
+    /**
+     * Cached sort key of the {@link ItemInfo#title}, see {@link AppNameComparator}.
+     */
+    public AppNameComparator.TitleSortKey titleSortKey;
+
     int flags = 0;
 
     PackageItemInfo(String packageName) {
@@ -12,14 +12,18 @@ import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.util.ComponentKey;
 
+import java.text.CollationKey;
 import java.text.Collator;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 
 public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
     private final AppWidgetManagerCompat mManager;
     private final PackageManager mPackageManager;
-    private final HashMap<ComponentKey, String> mLabelCache;
+    // Collation keys of the labels, comparing them is cheaper than collating the labels
+    private final HashMap<ComponentKey, CollationKey> mLabelCache;
     private final Collator mCollator;
     private final UserHandleCompat mMainHandle;
 
@@ -38,6 +42,18 @@ public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
         mLabelCache.clear();
     }
 
+    /**
+     * Resets the stored state of the widgets and shortcuts of {@param packages}.
+     */
+    public void reset(Collection<String> packages) {
+        Iterator<ComponentKey> keys = mLabelCache.keySet().iterator();
+        while (keys.hasNext()) {
+            if (packages.contains(keys.next().componentName.getPackageName())) {
+                keys.remove();
+            }
+        }
+    }
+
     @Override
     public final int compare(Object objA, Object objB) {
         ComponentKey keyA = getComponentKey(objA);
@@ -55,17 +71,17 @@ public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
         }
 
         // Get the labels for comparison
-        String labelA = mLabelCache.get(keyA);
-        String labelB = mLabelCache.get(keyB);
+        CollationKey labelA = mLabelCache.get(keyA);
+        CollationKey labelB = mLabelCache.get(keyB);
         if (labelA == null) {
-            labelA = getLabel(objA);
+            labelA = mCollator.getCollationKey(getLabel(objA));
             mLabelCache.put(keyA, labelA);
         }
         if (labelB == null) {
-            labelB = getLabel(objB);
+            labelB = mCollator.getCollationKey(getLabel(objB));
             mLabelCache.put(keyB, labelB);
         }
-        return mCollator.compare(labelA, labelB);
+        return labelA.compareTo(labelB);
     }
 
     /**
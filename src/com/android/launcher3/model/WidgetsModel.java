@@ -5,10 +5,13 @@ import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.DeadObjectException;
 import android.os.TransactionTooLargeException;
 import android.util.Log;
+import android.util.Pair;
 
 import com.android.launcher3.AppFilter;
 import com.android.launcher3.IconCache;
@@ -20,18 +23,24 @@ import com.android.launcher3.Utilities;
 import com.android.launcher3.compat.AlphabeticIndexCompat;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.ProviderConfig;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Widgets data model that is used by the adapters of the widget views and controllers.
  *
  * <p> The widgets and shortcuts are organized using package name as its index.
+ *
+ * <p> The lists of the model are never modified once they are set, an update replaces them with
+ * new lists instead. This allows a snapshot of the model to share the lists with the model.
  */
 public class WidgetsModel {
 
@@ -39,10 +48,10 @@ public class WidgetsModel {
     private static final boolean DEBUG = false;
 
     /* List of packages that is tracked by this model. */
-    private final ArrayList<PackageItemInfo> mPackageItemInfos;
+    private ArrayList<PackageItemInfo> mPackageItemInfos;
 
     /* Map of widgets and shortcuts that are tracked per package. */
-    private final HashMap<PackageItemInfo, ArrayList<Object>> mWidgetsList;
+    private HashMap<PackageItemInfo, ArrayList<Object>> mWidgetsList;
 
     private final AppWidgetManagerCompat mAppWidgetMgr;
     private final WidgetsAndShortcutNameComparator mWidgetAndShortcutNameComparator;
@@ -66,17 +75,16 @@ public class WidgetsModel {
         mRawList = new ArrayList<>();
     }
 
-    @SuppressWarnings("unchecked")
     private WidgetsModel(WidgetsModel model) {
         mAppWidgetMgr = model.mAppWidgetMgr;
-        mPackageItemInfos = (ArrayList<PackageItemInfo>) model.mPackageItemInfos.clone();
-        mWidgetsList = (HashMap<PackageItemInfo, ArrayList<Object>>) model.mWidgetsList.clone();
+        mPackageItemInfos = model.mPackageItemInfos;
+        mWidgetsList = model.mWidgetsList;
         mWidgetAndShortcutNameComparator = model.mWidgetAndShortcutNameComparator;
         mAppNameComparator = model.mAppNameComparator;
         mIconCache = model.mIconCache;
         mAppFilter = model.mAppFilter;
         mIndexer = model.mIndexer;
-        mRawList = (ArrayList<Object>) model.mRawList.clone();
+        mRawList = model.mRawList;
     }
 
     // Access methods that may be deleted if the private fields are made package-private.
@@ -107,48 +115,254 @@ public class WidgetsModel {
     public WidgetsModel updateAndClone(Context context) {
         Utilities.assertWorkerThread();
 
+        final ArrayList<Object> widgetsAndShortcuts = new ArrayList<>();
+        // Widgets, queried one profile at a time to keep each transaction small.
+        for (UserHandleCompat user : UserManagerCompat.getInstance(context).getUserProfiles()) {
+            List<AppWidgetProviderInfo> providers = queryProviders(user);
+            if (providers != null) {
+                for (AppWidgetProviderInfo widgetInfo : providers) {
+                    widgetsAndShortcuts.add(LauncherAppWidgetProviderInfo
+                            .fromProviderInfo(context, widgetInfo));
+                }
+            } else {
+                // Keep the widgets we already know about rather than dropping all the widgets
+                // of the profile, the list is refreshed again the next time the widgets change.
+                for (Object o : mRawList) {
+                    if (o instanceof LauncherAppWidgetProviderInfo && user.equals(
+                            mAppWidgetMgr.getUser((LauncherAppWidgetProviderInfo) o))) {
+                        widgetsAndShortcuts.add(o);
+                    }
+                }
+            }
+        }
+        // Shortcuts
+        widgetsAndShortcuts.addAll(queryShortcuts(context));
+        setWidgetsAndShortcuts(widgetsAndShortcuts);
+        return clone();
+    }
+
+    /**
+     * Reloads only the widgets and shortcuts of {@param packages} for {@param user}, the entries
+     * of the other packages are kept as is.
+     */
+    public WidgetsModel updatePackages(Context context, String[] packages, UserHandleCompat user) {
+        Utilities.assertWorkerThread();
+
+        HashSet<String> packageSet = new HashSet<>();
+        Collections.addAll(packageSet, packages);
+
+        // The providers can only be queried per profile, but we still avoid reloading the
+        // package infos and sorting the widgets of the other packages.
+        List<AppWidgetProviderInfo> providers = queryProviders(user);
+        if (providers == null) {
+            return clone();
+        }
+
+        ArrayList<Object> updated = new ArrayList<>();
+        for (AppWidgetProviderInfo widgetInfo : providers) {
+            if (packageSet.contains(widgetInfo.provider.getPackageName())) {
+                updated.add(LauncherAppWidgetProviderInfo.fromProviderInfo(context, widgetInfo));
+            }
+        }
+        boolean updateShortcuts = UserHandleCompat.myUserHandle().equals(user);
+        if (updateShortcuts) {
+            for (String packageName : packages) {
+                List<ResolveInfo> shortcuts = queryShortcuts(context, packageName);
+                if (shortcuts != null) {
+                    updated.addAll(shortcuts);
+                }
+            }
+        }
+
+        ArrayList<Object> rawList = new ArrayList<>(mRawList.size() + updated.size());
+        for (Object o : mRawList) {
+            boolean replaced;
+            if (o instanceof LauncherAppWidgetProviderInfo) {
+                LauncherAppWidgetProviderInfo widgetInfo = (LauncherAppWidgetProviderInfo) o;
+                replaced = packageSet.contains(widgetInfo.provider.getPackageName())
+                        && user.equals(mAppWidgetMgr.getUser(widgetInfo));
+            } else {
+                replaced = updateShortcuts && packageSet.contains(
+                        ((ResolveInfo) o).activityInfo.packageName);
+            }
+            if (!replaced) {
+                rawList.add(o);
+            }
+        }
+        rawList.addAll(updated);
+
+        // Only the changed packages are grouped and sorted again. The entries of the other
+        // users for these packages are part of the same group, so they are grouped as well.
+        ArrayList<PackageItemInfo> packageItemInfos = new ArrayList<>(mPackageItemInfos);
+        HashMap<PackageItemInfo, ArrayList<Object>> widgetsList = new HashMap<>(mWidgetsList);
+        for (int i = packageItemInfos.size() - 1; i >= 0; i--) {
+            PackageItemInfo pInfo = packageItemInfos.get(i);
+            if (packageSet.contains(pInfo.packageName)) {
+                packageItemInfos.remove(i);
+                widgetsList.remove(pInfo);
+            }
+        }
+        mWidgetAndShortcutNameComparator.reset(packageSet);
+        ArrayList<PackageItemInfo> addedInfos = new ArrayList<>();
+        addWidgetsAndShortcuts(rawList, packageSet, addedInfos, widgetsList);
+        for (PackageItemInfo pInfo : addedInfos) {
+            int index = Collections.binarySearch(packageItemInfos, pInfo, mAppNameComparator);
+            packageItemInfos.add(index < 0 ? -index - 1 : index, pInfo);
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "updatePackages, packages#=" + packages.length
+                    + " widgetsShortcuts#=" + updated.size());
+        }
+        mRawList = rawList;
+        mPackageItemInfos = packageItemInfos;
+        mWidgetsList = widgetsList;
+        return clone();
+    }
+
+    /**
+     * Returns true if the installed widget providers are the ones of the model, apart from the
+     * providers of {@param packages}. Returns false if the providers could not be loaded.
+     */
+    public boolean providersChangedOnlyIn(Context context,
+            Set<Pair<String, UserHandleCompat>> packages) {
+        Utilities.assertWorkerThread();
+
+        for (UserHandleCompat user : UserManagerCompat.getInstance(context).getUserProfiles()) {
+            List<AppWidgetProviderInfo> providers = queryProviders(user);
+            if (providers == null) {
+                return false;
+            }
+            HashSet<ComponentName> installed = new HashSet<>();
+            for (AppWidgetProviderInfo widgetInfo : providers) {
+                if (!packages.contains(Pair.create(widgetInfo.provider.getPackageName(), user))) {
+                    installed.add(widgetInfo.provider);
+                }
+            }
+            HashSet<ComponentName> known = new HashSet<>();
+            for (Object o : mRawList) {
+                if (o instanceof LauncherAppWidgetProviderInfo) {
+                    LauncherAppWidgetProviderInfo widgetInfo = (LauncherAppWidgetProviderInfo) o;
+                    if (user.equals(mAppWidgetMgr.getUser(widgetInfo)) && !packages.contains(
+                            Pair.create(widgetInfo.provider.getPackageName(), user))) {
+                        known.add(widgetInfo.provider);
+                    }
+                }
+            }
+            if (!installed.equals(known)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the providers of {@param user}, or null if they could not be loaded.
+     */
+    private List<AppWidgetProviderInfo> queryProviders(UserHandleCompat user) {
         try {
-            final ArrayList<Object> widgetsAndShortcuts = new ArrayList<>();
-            // Widgets
-            for (AppWidgetProviderInfo widgetInfo :
-                    AppWidgetManagerCompat.getInstance(context).getAllProviders()) {
-                widgetsAndShortcuts.add(LauncherAppWidgetProviderInfo
-                        .fromProviderInfo(context, widgetInfo));
-            }
-            // Shortcuts
-            widgetsAndShortcuts.addAll(context.getPackageManager().queryIntentActivities(
-                    new Intent(Intent.ACTION_CREATE_SHORTCUT), 0));
-            setWidgetsAndShortcuts(widgetsAndShortcuts);
-        } catch (Exception e) {
-            if (!LauncherAppState.isDogfoodBuild() &&
-                    (e.getCause() instanceof TransactionTooLargeException ||
-                            e.getCause() instanceof DeadObjectException)) {
-                // the returned value may be incomplete and will not be refreshed until the next
-                // time Launcher starts.
-                // TODO: after figuring out a repro step, introduce a dirty bit to check when
-                // onResume is called to refresh the widget provider list.
+            return mAppWidgetMgr.getAllProvidersForProfile(user);
+        } catch (RuntimeException e) {
+            if (!isBinderFailure(e)) {
+                throw e;
+            }
+            // The providers of a profile can not be split further.
+            Log.w(TAG, "Failed to load the widgets of " + user, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns all the shortcuts. If they don't fit in a single transaction, the shortcuts are
+     * queried one package at a time.
+     */
+    private List<ResolveInfo> queryShortcuts(Context context) {
+        PackageManager pm = context.getPackageManager();
+        try {
+            return pm.queryIntentActivities(new Intent(Intent.ACTION_CREATE_SHORTCUT), 0);
+        } catch (RuntimeException e) {
+            if (!isBinderFailure(e)) {
+                throw e;
+            }
+            Log.w(TAG, "Failed to load all the shortcuts, loading them per package", e);
+        }
+
+        ArrayList<ResolveInfo> shortcuts = new ArrayList<>();
+        HashSet<String> failedPackages = new HashSet<>();
+        for (ApplicationInfo info : pm.getInstalledApplications(0)) {
+            List<ResolveInfo> packageShortcuts = queryShortcuts(context, info.packageName);
+            if (packageShortcuts != null) {
+                shortcuts.addAll(packageShortcuts);
             } else {
+                failedPackages.add(info.packageName);
+            }
+        }
+        if (!failedPackages.isEmpty()) {
+            // Keep the shortcuts we already know about for these packages.
+            for (Object o : mRawList) {
+                if (o instanceof ResolveInfo && failedPackages.contains(
+                        ((ResolveInfo) o).activityInfo.packageName)) {
+                    shortcuts.add((ResolveInfo) o);
+                }
+            }
+        }
+        return shortcuts;
+    }
+
+    /**
+     * Returns the shortcuts of {@param packageName}, or null if they could not be loaded.
+     */
+    private List<ResolveInfo> queryShortcuts(Context context, String packageName) {
+        try {
+            return context.getPackageManager().queryIntentActivities(
+                    new Intent(Intent.ACTION_CREATE_SHORTCUT).setPackage(packageName), 0);
+        } catch (RuntimeException e) {
+            if (!isBinderFailure(e)) {
                 throw e;
             }
+            Log.w(TAG, "Failed to load the shortcuts of " + packageName, e);
+            return null;
         }
-        return clone();
+    }
+
+    private static boolean isBinderFailure(RuntimeException e) {
+        return !LauncherAppState.isDogfoodBuild() &&
+                (e.getCause() instanceof TransactionTooLargeException ||
+                        e.getCause() instanceof DeadObjectException);
     }
 
     private void setWidgetsAndShortcuts(ArrayList<Object> rawWidgetsShortcuts) {
-        mRawList = rawWidgetsShortcuts;
         if (DEBUG) {
             Log.d(TAG, "addWidgetsAndShortcuts, widgetsShortcuts#=" + rawWidgetsShortcuts.size());
         }
 
+        ArrayList<PackageItemInfo> packageItemInfos = new ArrayList<>();
+        HashMap<PackageItemInfo, ArrayList<Object>> widgetsList = new HashMap<>();
+        mWidgetAndShortcutNameComparator.reset();
+        addWidgetsAndShortcuts(rawWidgetsShortcuts, null, packageItemInfos, widgetsList);
+
+        // sort.
+        Collections.sort(packageItemInfos, mAppNameComparator);
+
+        mRawList = rawWidgetsShortcuts;
+        mPackageItemInfos = packageItemInfos;
+        mWidgetsList = widgetsList;
+    }
+
+    /**
+     * Groups the entries of {@param rawWidgetsShortcuts} by package and sorts each group.
+     *
+     * @param packages the packages to group, or null to group all the entries
+     * @param packageItemInfos receives the {@link PackageItemInfo} of each new group
+     * @param widgetsList receives the sorted entries of each new group
+     */
+    private void addWidgetsAndShortcuts(List<Object> rawWidgetsShortcuts, HashSet<String> packages,
+            ArrayList<PackageItemInfo> packageItemInfos,
+            HashMap<PackageItemInfo, ArrayList<Object>> widgetsList) {
         // Temporary list for {@link PackageItemInfos} to avoid having to go through
         // {@link mPackageItemInfos} to locate the key to be used for {@link #mWidgetsList}
         HashMap<String, PackageItemInfo> tmpPackageItemInfos = new HashMap<>();
 
-        // clear the lists.
-        mWidgetsList.clear();
-        mPackageItemInfos.clear();
-        mWidgetAndShortcutNameComparator.reset();
-
         InvariantDeviceProfile idp = LauncherAppState.getInstance().getInvariantDeviceProfile();
 
         // add and update.
@@ -158,6 +372,10 @@ public class WidgetsModel {
             ComponentName componentName = null;
             if (o instanceof LauncherAppWidgetProviderInfo) {
                 LauncherAppWidgetProviderInfo widgetInfo = (LauncherAppWidgetProviderInfo) o;
+                if (packages != null
+                        && !packages.contains(widgetInfo.provider.getPackageName())) {
+                    continue;
+                }
 
                 // Ensure that all widgets we show can be added on a workspace of this size
                 int minSpanX = Math.min(widgetInfo.spanX, widgetInfo.minSpanX);
@@ -177,6 +395,10 @@ public class WidgetsModel {
                 }
             } else if (o instanceof ResolveInfo) {
                 ResolveInfo resolveInfo = (ResolveInfo) o;
+                if (packages != null
+                        && !packages.contains(resolveInfo.activityInfo.packageName)) {
+                    continue;
+                }
                 componentName = new ComponentName(resolveInfo.activityInfo.packageName,
                         resolveInfo.activityInfo.name);
                 packageName = resolveInfo.activityInfo.packageName;
@@ -196,7 +418,7 @@ public class WidgetsModel {
             }
 
             PackageItemInfo pInfo = tmpPackageItemInfos.get(packageName);
-            ArrayList<Object> widgetsShortcutsList = mWidgetsList.get(pInfo);
+            ArrayList<Object> widgetsShortcutsList = widgetsList.get(pInfo);
             if (widgetsShortcutsList != null) {
                 widgetsShortcutsList.add(o);
             } else {
@@ -206,21 +428,21 @@ public class WidgetsModel {
                 mIconCache.getTitleAndIconForApp(packageName, userHandle,
                         true /* userLowResIcon */, pInfo);
                 pInfo.titleSectionName = mIndexer.computeSectionName(pInfo.title);
-                mWidgetsList.put(pInfo, widgetsShortcutsList);
+                widgetsList.put(pInfo, widgetsShortcutsList);
                 tmpPackageItemInfos.put(packageName,  pInfo);
-                mPackageItemInfos.add(pInfo);
+                packageItemInfos.add(pInfo);
             }
         }
 
         // sort.
-        Collections.sort(mPackageItemInfos, mAppNameComparator);
-        for (PackageItemInfo p: mPackageItemInfos) {
-            Collections.sort(mWidgetsList.get(p), mWidgetAndShortcutNameComparator);
+        for (PackageItemInfo p: tmpPackageItemInfos.values()) {
+            Collections.sort(widgetsList.get(p), mWidgetAndShortcutNameComparator);
         }
     }
 
     /**
-     * Create a snapshot of the widgets model.
+     * Create a snapshot of the widgets model. The snapshot shares the lists of the model, which
+     * are replaced rather than modified when the model is updated.
      * <p>
      * Usage case: view binding without being modified from package updates.
      */
@@ -228,4 +450,4 @@ public class WidgetsModel {
     public WidgetsModel clone(){
         return new WidgetsModel(this);
     }
-}
\ No newline at end of file
+}
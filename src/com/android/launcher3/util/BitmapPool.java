@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A pool of mutable bitmaps which are no longer in use, bucketed by size and config, so that
+ * they can be reused for decoding (as {@link android.graphics.BitmapFactory.Options#inBitmap})
+ * or as a canvas target instead of allocating a new bitmap. The pool is bounded by the total
+ * size of the bitmaps it holds, the least recently added bitmaps are dropped first.
+ *
+ * Only bitmaps which are known to be unused by any view should be added back to the pool.
+ * All the methods are thread safe.
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private final long mMaxBytes;
+
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<>();
+    // All the pooled bitmaps, oldest first.
+    private final ArrayDeque<Bitmap> mOrder = new ArrayDeque<>();
+    private long mBytes;
+
+    private int mRequests;
+    private int mReuses;
+    private int mAllocations;
+    private int mDrops;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config, or null. The content of the bitmap
+     * is undefined.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        mRequests++;
+        ArrayDeque<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        Bitmap bitmap = bucket == null ? null : bucket.pollLast();
+        if (bitmap != null) {
+            mOrder.remove(bitmap);
+            mBytes -= bitmap.getByteCount();
+            mReuses++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a transparent bitmap of the given size and config, reusing a pooled one if possible.
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        synchronized (this) {
+            mAllocations++;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Adds {@param bitmap} to the pool. The caller should not use the bitmap afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) {
+            return;
+        }
+        int size = bitmap.getByteCount();
+        if (size > mMaxBytes / 4) {
+            mDrops++;
+            return;
+        }
+        long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        } else {
+            for (Bitmap b : bucket) {
+                if (b == bitmap) {
+                    // Already pooled
+                    return;
+                }
+            }
+        }
+        bucket.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mBytes += size;
+        trimToSizeLocked(mMaxBytes);
+    }
+
+    /**
+     * Drops all the pooled bitmaps, called when the system is low on memory.
+     */
+    public synchronized void clear() {
+        trimToSizeLocked(0);
+    }
+
+    private void trimToSizeLocked(long maxBytes) {
+        while (mBytes > maxBytes && !mOrder.isEmpty()) {
+            Bitmap oldest = mOrder.pollFirst();
+            mBuckets.get(getKey(oldest.getWidth(), oldest.getHeight(), oldest.getConfig()))
+                    .remove(oldest);
+            mBytes -= oldest.getByteCount();
+            mDrops++;
+        }
+    }
+
+    public synchronized void dumpState() {
+        Log.d(TAG, "bitmap pool size=" + mOrder.size() + " bytes=" + mBytes + " max=" + mMaxBytes
+                + " requests=" + mRequests + " reuses=" + mReuses
+                + " allocations=" + mAllocations + " drops=" + mDrops);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+/**
+ * The occupied cells of a grid, stored as one bit mask per row, so that a span is tested with a
+ * single mask operation per row instead of one check per cell. Grids are at most 64 cells wide.
+ *
+ * Snapshots share the rows with the grid they are taken from until either of them is modified,
+ * a snapshot is never affected by later changes to its source. {@link #copyFrom} instead copies
+ * the cells into the rows the grid owns, so that reused grids don't allocate. This class is not
+ * thread safe.
+ */
+public class GridOccupancy {
+
+    public static final int MAX_COUNT_X = 64;
+
+    private final int mCountX;
+    private final int mCountY;
+    // Mask of the valid bits of a row.
+    private final long mRowMask;
+
+    // Bit x of mRows[y] is set if the cell (x, y) is occupied.
+    private long[] mRows;
+    // True if mRows may be shared with another grid, it is copied before any change.
+    private boolean mShared;
+
+    public GridOccupancy(int countX, int countY) {
+        if (countX < 0 || countX > MAX_COUNT_X || countY < 0) {
+            throw new IllegalArgumentException("Invalid grid size " + countX + "x" + countY);
+        }
+        mCountX = countX;
+        mCountY = countY;
+        mRowMask = spanMask(countX);
+        mRows = new long[countY];
+    }
+
+    private GridOccupancy(GridOccupancy source) {
+        mCountX = source.mCountX;
+        mCountY = source.mCountY;
+        mRowMask = source.mRowMask;
+        mRows = source.mRows;
+        mShared = source.mShared = true;
+    }
+
+    public int getCountX() {
+        return mCountX;
+    }
+
+    public int getCountY() {
+        return mCountY;
+    }
+
+    /**
+     * Returns a copy of the grid, which shares the rows with this grid until either is modified.
+     */
+    public GridOccupancy snapshot() {
+        return new GridOccupancy(this);
+    }
+
+    /**
+     * Sets the occupied cells to those of {@param source}, which must be of the same size. The
+     * cells are copied in place, neither grid shares its rows with the other afterwards.
+     */
+    public void copyFrom(GridOccupancy source) {
+        if (source == this) {
+            return;
+        }
+        if (source.mCountX != mCountX || source.mCountY != mCountY) {
+            throw new IllegalArgumentException("Grid sizes don't match");
+        }
+        if (mShared) {
+            mRows = new long[mCountY];
+            mShared = false;
+        }
+        System.arraycopy(source.mRows, 0, mRows, 0, mCountY);
+    }
+
+    public void clear() {
+        if (mShared) {
+            mRows = new long[mCountY];
+            mShared = false;
+        } else {
+            for (int y = 0; y < mCountY; y++) {
+                mRows[y] = 0;
+            }
+        }
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
+    }
+
+    public int getOccupiedCount() {
+        int count = 0;
+        for (int y = 0; y < mCountY; y++) {
+            count += Long.bitCount(mRows[y]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the occupied cells packed row after row in a single long, only valid for grids of
+     * at most 64 cells. Grids of the same size are equal if and only if their packed cells are.
+     */
+    public long getPackedCells() {
+        long packed = 0;
+        for (int y = mCountY - 1; y >= 0; y--) {
+            packed = (packed << mCountX) | mRows[y];
+        }
+        return packed;
+    }
+
+    /**
+     * Returns true if {@param other} has the same size and the same occupied cells.
+     */
+    public boolean contentEquals(GridOccupancy other) {
+        if (other.mCountX != mCountX || other.mCountY != mCountY) {
+            return false;
+        }
+        if (other.mRows == mRows) {
+            return true;
+        }
+        for (int y = 0; y < mCountY; y++) {
+            if (other.mRows[y] != mRows[y]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the cells of the given span, clipped to the grid, as occupied or vacant.
+     */
+    public void markCells(int cellX, int cellY, int spanX, int spanY, boolean value) {
+        int startX = Math.max(cellX, 0);
+        int endX = Math.min(cellX + spanX, mCountX);
+        int startY = Math.max(cellY, 0);
+        int endY = Math.min(cellY + spanY, mCountY);
+        if (startX >= endX || startY >= endY) {
+            return;
+        }
+        ensureNotShared();
+        long mask = spanMask(endX - startX) << startX;
+        for (int y = startY; y < endY; y++) {
+            if (value) {
+                mRows[y] |= mask;
+            } else {
+                mRows[y] &= ~mask;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given span lies within the grid and none of its cells are occupied.
+     */
+    public boolean isRegionVacant(int cellX, int cellY, int spanX, int spanY) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > mCountX || cellY + spanY > mCountY) {
+            return false;
+        }
+        long mask = spanMask(spanX) << cellX;
+        for (int y = cellY; y < cellY + spanY; y++) {
+            if ((mRows[y] & mask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if {@param block} fits in the grid with its top left corner at (cellX, cellY),
+     * that is none of the cells occupied in {@param block} are occupied in this grid.
+     */
+    public boolean isRegionVacant(int cellX, int cellY, GridOccupancy block) {
+        return isRegionVacant(cellX, cellY, block.mCountX, block.mCountY, block);
+    }
+
+    /**
+     * Same as {@link #isRegionVacant(int, int, GridOccupancy)}, for the top left
+     * {@param spanX}x{@param spanY} cells of {@param block}, so that a grid can be reused for
+     * blocks of different sizes.
+     */
+    public boolean isRegionVacant(int cellX, int cellY, int spanX, int spanY,
+            GridOccupancy block) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > mCountX || cellY + spanY > mCountY
+                || spanX > block.mCountX || spanY > block.mCountY) {
+            return false;
+        }
+        long mask = spanMask(spanX);
+        for (int y = 0; y < spanY; y++) {
+            if ((mRows[cellY + y] & ((block.mRows[y] & mask) << cellX)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a mask with bit x set if the span of the given size with its top left corner at
+     * (x, cellY) lies within the grid and is vacant.
+     */
+    public long getVacantPositions(int cellY, int spanX, int spanY) {
+        if (cellY < 0 || spanX <= 0 || spanY <= 0 || spanX > mCountX
+                || cellY + spanY > mCountY) {
+            return 0;
+        }
+        long occupied = 0;
+        for (int y = cellY; y < cellY + spanY; y++) {
+            occupied |= mRows[y];
+        }
+        long vacant = ~occupied & mRowMask;
+        // Keep the cells followed by spanX - 1 vacant cells, by doubling the length of the runs
+        // checked at each step.
+        long result = vacant;
+        int checked = 1;
+        while (checked < spanX) {
+            int shift = Math.min(checked, spanX - checked);
+            result &= result >>> shift;
+            checked += shift;
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first vacant span of the given size, in row major order.
+     *
+     * @param vacantOut if not null, receives the top left cell of the span
+     * @return true if a vacant span was found
+     */
+    public boolean findVacantCell(int[] vacantOut, int spanX, int spanY) {
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            long positions = getVacantPositions(y, spanX, spanY);
+            if (positions != 0) {
+                if (vacantOut != null) {
+                    vacantOut[0] = Long.numberOfTrailingZeros(positions);
+                    vacantOut[1] = y;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the vacant span of the given size whose top left cell is the closest to
+     * (cellX, cellY). Among spans at the same distance, the first one in row major order is
+     * returned.
+     *
+     * @param vacantOut receives the top left cell of the span
+     * @return true if a vacant span was found
+     */
+    public boolean findNearestVacantCell(int[] vacantOut, int cellX, int cellY,
+            int spanX, int spanY) {
+        long bestDistance = Long.MAX_VALUE;
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            long dy = y - cellY;
+            if (dy * dy > bestDistance) {
+                if (y > cellY) {
+                    // Only further rows remain
+                    break;
+                }
+                continue;
+            }
+            long positions = getVacantPositions(y, spanX, spanY);
+            if (positions == 0) {
+                continue;
+            }
+
+            // The closest positions of the row are the last one up to cellX and the first one
+            // after it, the former wins a tie.
+            int x = -1;
+            long distance = Long.MAX_VALUE;
+            long before = cellX < 0 ? 0
+                    : (cellX >= MAX_COUNT_X - 1 ? positions : positions & ((2L << cellX) - 1));
+            if (before != 0) {
+                x = MAX_COUNT_X - 1 - Long.numberOfLeadingZeros(before);
+                distance = (long) (cellX - x) * (cellX - x);
+            }
+            long after = positions & ~before;
+            if (after != 0) {
+                int afterX = Long.numberOfTrailingZeros(after);
+                long afterDistance = (long) (afterX - cellX) * (afterX - cellX);
+                if (afterDistance < distance) {
+                    x = afterX;
+                    distance = afterDistance;
+                }
+            }
+            distance += dy * dy;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                vacantOut[0] = x;
+                vacantOut[1] = y;
+            }
+        }
+        return bestDistance != Long.MAX_VALUE;
+    }
+
+    private void ensureNotShared() {
+        if (mShared) {
+            mRows = mRows.clone();
+            mShared = false;
+        }
+    }
+
+    private static long spanMask(int span) {
+        return span <= 0 ? 0 : (span >= MAX_COUNT_X ? -1L : (1L << span) - 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < mCountY; y++) {
+            sb.append('[');
+            for (int x = 0; x < mCountX; x++) {
+                sb.append(isOccupied(x, y) ? '#' : '.');
+            }
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+}
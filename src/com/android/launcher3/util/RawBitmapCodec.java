@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes bitmaps as their raw pixels, so that reading them back is a copy instead of an image
+ * decode. The pixels are stored premultiplied, in the config of the source bitmap, after a small
+ * header. The first byte of the header can not start a PNG stream, which allows both formats to
+ * be stored in the same column.
+ */
+public class RawBitmapCodec {
+
+    private static final byte MAGIC = 0x01;
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 1;
+
+    private static final Bitmap.Config[] CONFIGS = new Bitmap.Config[] {
+            Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565, Bitmap.Config.ALPHA_8 };
+
+    /**
+     * Returns the raw representation of {@param bitmap}, or null if its config is not supported.
+     */
+    public static byte[] encode(Bitmap bitmap) {
+        int config = indexOf(bitmap.getConfig());
+        if (config < 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitmap.getByteCount());
+        buffer.put(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.put((byte) config);
+        bitmap.copyPixelsToBuffer(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Returns true if {@param data} was created by {@link #encode}.
+     */
+    public static boolean isRaw(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    /**
+     * Creates a bitmap from {@param data}, or returns null if the data is invalid. The pixels are
+     * copied into a bitmap taken from {@param pool} when it has one of the right size.
+     */
+    public static Bitmap decode(byte[] data, BitmapPool pool) {
+        if (!isRaw(data)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.get();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int config = buffer.get();
+        if (width <= 0 || height <= 0 || config < 0 || config >= CONFIGS.length) {
+            return null;
+        }
+        Bitmap bitmap = pool == null ? null : pool.get(width, height, CONFIGS[config]);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, CONFIGS[config]);
+        }
+        if (buffer.remaining() < bitmap.getByteCount()) {
+            if (pool != null) {
+                pool.put(bitmap);
+            }
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    private static int indexOf(Bitmap.Config config) {
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (CONFIGS[i] == config) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
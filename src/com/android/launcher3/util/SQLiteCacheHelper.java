@@ -9,6 +9,8 @@ import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import java.util.List;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
@@ -44,6 +46,33 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    /**
+     * Applies each of {@param values} with the matching {@param whereArgs}, in a single
+     * transaction.
+     * @see SQLiteDatabase#update(String, ContentValues, String, String[])
+     */
+    public void update(List<ContentValues> values, String whereClause, List<String[]> whereArgs) {
+        if (mIgnoreWrites || values.isEmpty()) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < values.size(); i++) {
+                    db.update(mTableName, values.get(i), whereClause, whereArgs.get(i));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteFullException e) {
+            onDiskFull(e);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+        }
+    }
+
     /**
      * @see SQLiteDatabase#delete(String, String, String[])
      */
@@ -77,6 +106,33 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    /**
+     * Inserts or replaces all the {@param rows} in a single transaction.
+     * @see SQLiteDatabase#insertWithOnConflict(String, String, ContentValues, int)
+     */
+    public void insertOrReplace(List<ContentValues> rows) {
+        if (mIgnoreWrites || rows.isEmpty()) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues values : rows) {
+                    db.insertWithOnConflict(
+                            mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteFullException e) {
+            onDiskFull(e);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+        }
+    }
+
     private void onDiskFull(SQLiteFullException e) {
         Log.e(TAG, "Disk full, all write operations will be ignored", e);
         mIgnoreWrites = true;
@@ -90,6 +146,15 @@ public abstract class SQLiteCacheHelper {
                 mTableName, columns, selection, selectionArgs, null, null, null);
     }
 
+    /**
+     * @see SQLiteDatabase#query(String, String[], String, String[], String, String, String, String)
+     */
+    public Cursor query(String[] columns, String selection, String[] selectionArgs,
+            String orderBy, String limit) {
+        return mOpenHelper.getReadableDatabase().query(
+                mTableName, columns, selection, selectionArgs, null, null, orderBy, limit);
+    }
+
     protected abstract void onCreateTable(SQLiteDatabase db);
 
     /**
@@ -73,6 +73,7 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
 
     private String mDimensionsFormatString;
     private Object mInfo;
+    private int mRow = -1;
 
     private WidgetPreviewLoader mWidgetPreviewLoader;
     private PreviewLoadRequest mActiveRequest;
@@ -164,6 +165,17 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
         mWidgetPreviewLoader = loader;
     }
 
+    /**
+     * Sets the adapter row of this cell, used to prioritize loading the preview.
+     */
+    public void setRow(int row) {
+        mRow = row;
+    }
+
+    public int getRow() {
+        return mRow;
+    }
+
     public int[] getPreviewSize() {
         int[] maxSize = new int[2];
 
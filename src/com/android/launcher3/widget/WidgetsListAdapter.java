@@ -150,6 +150,7 @@ public class WidgetsListAdapter extends Adapter<WidgetsRowViewHolder> {
                 widget.setTag(pasi);
                 widget.applyFromResolveInfo(mLauncher.getPackageManager(), info, mWidgetPreviewLoader);
             }
+            widget.setRow(pos);
             widget.ensurePreview();
             widget.setVisibility(View.VISIBLE);
         }
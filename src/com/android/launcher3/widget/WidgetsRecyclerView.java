@@ -23,6 +23,7 @@ import android.support.v7.widget.LinearLayoutManager;
 import android.util.AttributeSet;
 import android.view.View;
 import com.android.launcher3.BaseRecyclerView;
+import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.R;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.model.WidgetsModel;
@@ -138,6 +139,11 @@ public class WidgetsRecyclerView extends BaseRecyclerView {
         }
 
         synchronizeScrollBarThumbOffsetToViewScroll(mScrollPosState, rowCount);
+
+        // Load the previews of the visible rows, and of the rows scrolled into view next, first.
+        int lastVisibleRow = getChildPosition(getChildAt(getChildCount() - 1));
+        LauncherAppState.getInstance().getWidgetCache().setVisibleRows(
+                mScrollPosState.rowIndex, lastVisibleRow, dy);
     }
 
     /**
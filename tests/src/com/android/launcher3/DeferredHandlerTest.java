@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3;
+
+import android.os.Looper;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link DeferredHandler#flush}.
+ */
+@SmallTest
+public class DeferredHandlerTest extends TestCase {
+
+    private DeferredHandler mHandler;
+    private ArrayList<String> mRun;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mHandler = new DeferredHandler();
+        mRun = new ArrayList<>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandler.cancelAll();
+        super.tearDown();
+    }
+
+    public void testFlush_runsInOrder() {
+        mHandler.post(new Record("a"));
+        mHandler.post(new Record("b"));
+        mHandler.postAtFrontOfQueue(new Record("c"));
+
+        mHandler.flush();
+        assertEquals(Arrays.asList("c", "a", "b"), mRun);
+    }
+
+    public void testFlush_duringChunkedBind() {
+        // Same as the workspace items bind, which binds a chunk and re-queues itself at the
+        // front of the queue for the next one.
+        mHandler.post(new ChunkedBind(3));
+        mHandler.post(new Record("finish"));
+
+        mHandler.flush();
+        assertEquals(Arrays.asList("chunk 0", "chunk 1", "chunk 2", "finish"), mRun);
+
+        // Nothing is left to run after the flush.
+        mHandler.flush();
+        assertEquals(4, mRun.size());
+    }
+
+    public void testFlush_runsRunnablesPostedDuringFlush() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRun.add("a");
+                mHandler.post(new Record("c"));
+            }
+        });
+        mHandler.post(new Record("b"));
+
+        mHandler.flush();
+        assertEquals(Arrays.asList("a", "b", "c"), mRun);
+    }
+
+    private class Record implements Runnable {
+        private final String mName;
+
+        Record(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            mRun.add(mName);
+        }
+    }
+
+    private class ChunkedBind implements Runnable {
+        private final int mChunkCount;
+        private int mNextChunk;
+
+        ChunkedBind(int chunkCount) {
+            mChunkCount = chunkCount;
+        }
+
+        @Override
+        public void run() {
+            mRun.add("chunk " + mNextChunk++);
+            if (mNextChunk < mChunkCount) {
+                mHandler.postAtFrontOfQueue(this);
+            }
+        }
+    }
+}
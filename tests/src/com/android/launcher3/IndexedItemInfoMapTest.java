@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.util.GridOccupancy;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the screen index of {@link IndexedItemInfoMap}.
+ */
+@SmallTest
+public class IndexedItemInfoMapTest extends TestCase {
+
+    private static final int COUNT_X = 4;
+    private static final int COUNT_Y = 5;
+
+    private IndexedItemInfoMap mItems;
+    private int mNextId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mItems = new IndexedItemInfoMap();
+    }
+
+    public void testScreenOccupancy() {
+        add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 0, 0, 2, 1);
+        add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 2, 1, 1, 1, 1);
+        add(LauncherSettings.Favorites.CONTAINER_HOTSEAT, 1, 3, 3, 1, 1);
+
+        GridOccupancy occupied = getOccupancy(1);
+        assertTrue(occupied.isOccupied(0, 0));
+        assertTrue(occupied.isOccupied(1, 0));
+        assertEquals(2, occupied.getOccupiedCount());
+        assertEquals(1, getOccupancy(2).getOccupiedCount());
+        assertEquals(0, getOccupancy(3).getOccupiedCount());
+    }
+
+    public void testScreenOccupancy_returnsCopy() {
+        add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 0, 0, 1, 1);
+
+        getOccupancy(1).markCells(1, 1, 1, 1, true);
+        assertEquals(1, getOccupancy(1).getOccupiedCount());
+    }
+
+    public void testScreenOccupancy_rebuiltAfterReindex() {
+        ItemInfo item = add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 0, 0, 1, 1);
+        assertTrue(getOccupancy(1).isOccupied(0, 0));
+
+        // Moved on the same screen
+        item.cellX = 2;
+        item.cellY = 3;
+        mItems.reindex(item);
+        GridOccupancy occupied = getOccupancy(1);
+        assertFalse(occupied.isOccupied(0, 0));
+        assertTrue(occupied.isOccupied(2, 3));
+
+        // Moved to another screen
+        item.screenId = 2;
+        mItems.reindex(item);
+        assertEquals(0, getOccupancy(1).getOccupiedCount());
+        assertTrue(getOccupancy(2).isOccupied(2, 3));
+
+        // Moved to the hotseat
+        item.container = LauncherSettings.Favorites.CONTAINER_HOTSEAT;
+        mItems.reindex(item);
+        assertEquals(0, getOccupancy(2).getOccupiedCount());
+    }
+
+    public void testScreenOccupancy_rebuiltAfterRemove() {
+        ItemInfo first = add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 0, 0, 1, 1);
+        ItemInfo second = add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 1, 0, 1, 1);
+        assertEquals(2, getOccupancy(1).getOccupiedCount());
+
+        mItems.remove(first.id);
+        GridOccupancy occupied = getOccupancy(1);
+        assertFalse(occupied.isOccupied(0, 0));
+        assertTrue(occupied.isOccupied(1, 0));
+
+        mItems.removeAt(mItems.indexOfKey(second.id));
+        assertEquals(0, getOccupancy(1).getOccupiedCount());
+
+        add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 3, 4, 1, 1);
+        mItems.clear();
+        assertEquals(0, getOccupancy(1).getOccupiedCount());
+    }
+
+    public void testScreenOccupancy_rebuiltAfterPut() {
+        add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 0, 0, 1, 1);
+        assertEquals(1, getOccupancy(1).getOccupiedCount());
+
+        add(LauncherSettings.Favorites.CONTAINER_DESKTOP, 1, 1, 1, 2, 2);
+        assertEquals(5, getOccupancy(1).getOccupiedCount());
+    }
+
+    private GridOccupancy getOccupancy(long screenId) {
+        return mItems.getScreenOccupancy(screenId, COUNT_X, COUNT_Y);
+    }
+
+    private ItemInfo add(long container, long screenId, int cellX, int cellY,
+            int spanX, int spanY) {
+        ItemInfo item = new ItemInfo();
+        item.id = mNextId++;
+        item.container = container;
+        item.screenId = screenId;
+        item.cellX = cellX;
+        item.cellY = cellY;
+        item.spanX = spanX;
+        item.spanY = spanY;
+        mItems.put(item.id, item);
+        return item;
+    }
+}
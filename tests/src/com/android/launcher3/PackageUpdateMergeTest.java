@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.LauncherModel.PackageUpdate;
+import com.android.launcher3.compat.UserHandleCompat;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests for {@link LauncherModel#mergePackageUpdates}.
+ */
+@SmallTest
+public class PackageUpdateMergeTest extends TestCase {
+
+    private static final int ADD = PackageUpdate.OP_ADD;
+    private static final int UPDATE = PackageUpdate.OP_UPDATE;
+    private static final int REMOVE = PackageUpdate.OP_REMOVE;
+    private static final int SUSPEND = PackageUpdate.OP_SUSPEND;
+    private static final int UNSUSPEND = PackageUpdate.OP_UNSUSPEND;
+    private static final int AVAILABILITY = PackageUpdate.OP_USER_AVAILABILITY_CHANGE;
+
+    private UserHandleCompat mUser;
+    private ArrayList<PackageUpdate> mUpdates;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUser = UserHandleCompat.myUserHandle();
+        mUpdates = new ArrayList<>();
+    }
+
+    public void testRepeatedOpDropped() {
+        add(UPDATE, "a");
+        add(UPDATE, "a");
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(1, merged.size());
+        assertUpdate(merged.get(0), UPDATE, "a");
+    }
+
+    public void testPackagesWithSameOpMerged() {
+        add(UPDATE, "a");
+        add(ADD, "c");
+        add(UPDATE, "b");
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(2, merged.size());
+        assertUpdate(merged.get(0), UPDATE, "a", "b");
+        assertUpdate(merged.get(1), ADD, "c");
+    }
+
+    public void testOpsOfPackageKeptInOrder() {
+        add(REMOVE, "a");
+        add(ADD, "a");
+        add(UPDATE, "b");
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(3, merged.size());
+        assertUpdate(merged.get(0), REMOVE, "a");
+        assertUpdate(merged.get(1), UPDATE, "b");
+        assertUpdate(merged.get(2), ADD, "a");
+    }
+
+    public void testOnlyLastSuspendOpKept() {
+        add(SUSPEND, "a");
+        add(UNSUSPEND, "a");
+        add(SUSPEND, "a");
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(1, merged.size());
+        assertUpdate(merged.get(0), SUSPEND, "a");
+    }
+
+    public void testAvailabilityChangeKeepsArrivalOrder() {
+        add(UPDATE, "a");
+        add(AVAILABILITY);
+        add(UPDATE, "b");
+        add(UPDATE, "a");
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(3, merged.size());
+        assertUpdate(merged.get(0), UPDATE, "a");
+        assertUpdate(merged.get(1), AVAILABILITY);
+        assertUpdate(merged.get(2), UPDATE, "b", "a");
+    }
+
+    public void testAvailabilityChangeFirst() {
+        add(AVAILABILITY);
+        add(REMOVE, "a");
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(2, merged.size());
+        assertUpdate(merged.get(0), AVAILABILITY);
+        assertUpdate(merged.get(1), REMOVE, "a");
+    }
+
+    public void testRepeatedAvailabilityChangeDropped() {
+        add(AVAILABILITY);
+        add(AVAILABILITY);
+        add(UPDATE, "a");
+        add(AVAILABILITY);
+
+        ArrayList<PackageUpdate> merged = LauncherModel.mergePackageUpdates(mUpdates);
+        assertEquals(3, merged.size());
+        assertUpdate(merged.get(0), AVAILABILITY);
+        assertUpdate(merged.get(1), UPDATE, "a");
+        assertUpdate(merged.get(2), AVAILABILITY);
+    }
+
+    private void add(int op, String... packages) {
+        mUpdates.add(new PackageUpdate(op, packages, mUser));
+    }
+
+    private void assertUpdate(PackageUpdate update, int op, String... packages) {
+        assertEquals(op, update.mOp);
+        assertEquals(mUser, update.mUser);
+        assertEquals(new HashSet<>(Arrays.asList(packages)),
+                new HashSet<>(Arrays.asList(update.mPackages)));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Pair;
+
+import com.android.launcher3.LauncherModel.WorkspacePlacement;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests for {@link LauncherModel.WorkspacePlacement}.
+ */
+@SmallTest
+public class WorkspacePlacementTest extends TestCase {
+
+    private static final int COUNT_X = 4;
+    private static final int COUNT_Y = 5;
+
+    private IndexedItemInfoMap mItems;
+    private ArrayList<Long> mScreens;
+    private ArrayList<Long> mAddedScreens;
+    private long mNextScreenId;
+    private int mNextId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mItems = new IndexedItemInfoMap();
+        mScreens = new ArrayList<>(Arrays.asList(0L, 1L, 2L));
+        mAddedScreens = new ArrayList<>();
+        mNextScreenId = 10;
+    }
+
+    public void testFindSpace_batchGetsDistinctCells() {
+        add(1, 0, 0, 2, 2);
+        WorkspacePlacement placement = newPlacement();
+
+        int count = 2 * COUNT_X * COUNT_Y - 4;
+        HashSet<String> cells = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            Pair<Long, int[]> coords = placement.findSpace(1, 1);
+            assertTrue(coords.first == 1 || coords.first == 2);
+            int[] cell = coords.second;
+            if (coords.first == 1) {
+                // The existing item is kept free
+                assertFalse(cell[0] < 2 && cell[1] < 2);
+            }
+            assertTrue(cells.add(coords.first + ":" + cell[0] + "," + cell[1]));
+        }
+        assertEquals(count, cells.size());
+        assertTrue(mAddedScreens.isEmpty());
+    }
+
+    public void testFindSpace_skipsFullScreens() {
+        add(1, 0, 0, COUNT_X, COUNT_Y);
+        add(2, 0, 0, COUNT_X, COUNT_Y - 1);
+        WorkspacePlacement placement = newPlacement();
+
+        Pair<Long, int[]> coords = placement.findSpace(1, 1);
+        assertEquals(2L, (long) coords.first);
+        assertEquals(0, coords.second[0]);
+        assertEquals(COUNT_Y - 1, coords.second[1]);
+
+        // A span which does not fit on the remaining row goes to a new screen, and smaller
+        // items still fill the row.
+        coords = placement.findSpace(2, 2);
+        assertEquals(10L, (long) coords.first);
+        coords = placement.findSpace(1, 1);
+        assertEquals(2L, (long) coords.first);
+        assertEquals(1, coords.second[0]);
+    }
+
+    public void testFindSpace_addsScreenWhenAllFull() {
+        add(1, 0, 0, COUNT_X, COUNT_Y);
+        add(2, 0, 0, COUNT_X, COUNT_Y);
+        WorkspacePlacement placement = newPlacement();
+
+        Pair<Long, int[]> coords = placement.findSpace(1, 1);
+        assertEquals(10L, (long) coords.first);
+        assertEquals(0, coords.second[0]);
+        assertEquals(0, coords.second[1]);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 10L), mScreens);
+        assertEquals(Arrays.asList(10L), mAddedScreens);
+
+        // The new screen is used for the next items.
+        coords = placement.findSpace(1, 1);
+        assertEquals(10L, (long) coords.first);
+        assertEquals(1, coords.second[0]);
+        assertEquals(Arrays.asList(10L), mAddedScreens);
+    }
+
+    public void testFindSpace_keepsFirstScreenFree() {
+        WorkspacePlacement placement = newPlacement();
+        for (int i = 0; i < COUNT_X * COUNT_Y; i++) {
+            assertEquals(1L, (long) placement.findSpace(1, 1).first);
+        }
+        assertEquals(2L, (long) placement.findSpace(1, 1).first);
+    }
+
+    private WorkspacePlacement newPlacement() {
+        return new WorkspacePlacement(mItems, mScreens, mAddedScreens, COUNT_X, COUNT_Y) {
+            @Override
+            long generateNewScreenId() {
+                return mNextScreenId++;
+            }
+        };
+    }
+
+    private void add(long screenId, int cellX, int cellY, int spanX, int spanY) {
+        ItemInfo item = new ItemInfo();
+        item.id = mNextId++;
+        item.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+        item.screenId = screenId;
+        item.cellX = cellX;
+        item.cellY = cellY;
+        item.spanX = spanX;
+        item.spanY = spanY;
+        mItems.put(item.id, item);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.content.ComponentName;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Tests for {@link AppSearchIndex}, checked against matching every title word by word.
+ */
+@SmallTest
+public class AppSearchIndexTest extends TestCase {
+
+    private static final String[] WORDS = {"Google", "Maps", "Camera", "Calendar", "Clock",
+            "Play", "Store", "Music", "Movies", "Photos", "Files", "Notes", "Mail", "Messages"};
+
+    private AppSearchIndex mIndex;
+    // The titles of the indexed apps
+    private HashMap<ComponentKey, String> mTitles;
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new AppSearchIndex();
+        mTitles = new HashMap<>();
+        mRandom = new Random(1);
+    }
+
+    public void testSearch_matchesWordPrefixes() {
+        ComponentKey maps = add(0, "Google Maps");
+        ComponentKey play = add(1, "Play Store");
+        add(2, "Camera");
+
+        assertResult(search("ma"), maps);
+        assertResult(search("s"), play);
+        assertResult(search("google ma"), maps);
+        assertResult(search("ps"));
+        assertEquals(3, search("").size());
+    }
+
+    public void testAddOrUpdate_reindexesRenamedApp() {
+        ComponentKey app = add(0, "Google Maps");
+        int version = mIndex.getVersion();
+
+        add(0, "Google Maps");
+        assertEquals(version, mIndex.getVersion());
+
+        add(0, "Play Store");
+        assertTrue(version != mIndex.getVersion());
+        assertResult(search("maps"));
+        assertResult(search("store"), app);
+        assertEquals(1, mIndex.getEntries().length);
+    }
+
+    public void testRemove() {
+        ComponentKey maps = add(0, "Google Maps");
+        ComponentKey mail = add(1, "Google Mail");
+
+        remove(maps);
+        assertResult(search("google"), mail);
+        assertResult(search("maps"));
+        assertEquals(1, mIndex.getEntries().length);
+
+        remove(mail);
+        assertResult(search("google"));
+        assertEquals(0, mIndex.getEntries().length);
+    }
+
+    public void testIncrementalUpdates_sameAsFullSearch() {
+        for (int i = 0; i < 500; i++) {
+            int id = mRandom.nextInt(100);
+            if (mRandom.nextInt(4) == 0) {
+                remove(getKey(id));
+            } else {
+                add(id, randomTitle());
+            }
+            String[] queryWords = AppSearchIndex.splitQuery(randomQuery());
+            assertEquals(getMatches(queryWords), toKeys(mIndex.search(queryWords)));
+        }
+    }
+
+    public void testRefine_sameAsFullSearch() {
+        for (int i = 0; i < 100; i++) {
+            add(i, randomTitle());
+        }
+        for (int i = 0; i < 100; i++) {
+            String query = randomQuery();
+            String[] previousWords = AppSearchIndex.splitQuery(query.substring(0, 1));
+            ArrayList<AppSearchIndex.Entry> previousMatches = mIndex.search(previousWords);
+            for (int end = 2; end <= query.length(); end++) {
+                String[] queryWords = AppSearchIndex.splitQuery(query.substring(0, end));
+                if (!AppSearchIndex.isRefinement(previousWords, queryWords)) {
+                    previousMatches = mIndex.search(queryWords);
+                } else {
+                    previousMatches = AppSearchIndex.refine(previousMatches, queryWords);
+                    assertEquals(toKeys(mIndex.search(queryWords)), toKeys(previousMatches));
+                }
+                previousWords = queryWords;
+            }
+        }
+    }
+
+    public void testIsRefinement() {
+        assertTrue(AppSearchIndex.isRefinement(new String[] {"go"}, new String[] {"goo"}));
+        assertTrue(AppSearchIndex.isRefinement(new String[] {"go"}, new String[] {"go", "m"}));
+        assertFalse(AppSearchIndex.isRefinement(new String[] {"goo"}, new String[] {"go"}));
+        assertFalse(AppSearchIndex.isRefinement(new String[] {"go", "m"}, new String[] {"gom"}));
+    }
+
+    private ComponentKey getKey(int id) {
+        return new ComponentKey(new ComponentName("com.android.test", "Activity" + id),
+                UserHandleCompat.myUserHandle());
+    }
+
+    private ComponentKey add(int id, String title) {
+        ComponentKey key = getKey(id);
+        mIndex.addOrUpdate(key, title, title.substring(0, 1));
+        mTitles.put(key, title);
+        return key;
+    }
+
+    private void remove(ComponentKey key) {
+        mIndex.remove(key);
+        mTitles.remove(key);
+    }
+
+    private ArrayList<AppSearchIndex.Entry> search(String query) {
+        return mIndex.search(AppSearchIndex.splitQuery(query));
+    }
+
+    private String randomTitle() {
+        return WORDS[mRandom.nextInt(WORDS.length)] + " " + WORDS[mRandom.nextInt(WORDS.length)];
+    }
+
+    private String randomQuery() {
+        String word = WORDS[mRandom.nextInt(WORDS.length)].toLowerCase();
+        String query = word.substring(0, 1 + mRandom.nextInt(word.length()));
+        if (mRandom.nextBoolean()) {
+            word = WORDS[mRandom.nextInt(WORDS.length)].toLowerCase();
+            query += " " + word.substring(0, 1 + mRandom.nextInt(word.length()));
+        }
+        return query;
+    }
+
+    /**
+     * Returns the apps having, for each query word, a title word starting with it.
+     */
+    private HashSet<ComponentKey> getMatches(String[] queryWords) {
+        HashSet<ComponentKey> matches = new HashSet<>();
+        for (ComponentKey key : mTitles.keySet()) {
+            String[] titleWords = mTitles.get(key).toLowerCase().split(" ");
+            boolean matchesAll = true;
+            for (String queryWord : queryWords) {
+                boolean found = false;
+                for (String titleWord : titleWords) {
+                    found |= titleWord.startsWith(queryWord);
+                }
+                matchesAll &= found;
+            }
+            if (matchesAll) {
+                matches.add(key);
+            }
+        }
+        return matches;
+    }
+
+    private static HashSet<ComponentKey> toKeys(ArrayList<AppSearchIndex.Entry> entries) {
+        HashSet<ComponentKey> keys = new HashSet<>();
+        for (AppSearchIndex.Entry entry : entries) {
+            assertTrue(keys.add(entry.key));
+        }
+        return keys;
+    }
+
+    private static void assertResult(ArrayList<AppSearchIndex.Entry> result,
+            ComponentKey... expected) {
+        assertEquals(expected.length, result.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], result.get(i).key);
+        }
+    }
+}
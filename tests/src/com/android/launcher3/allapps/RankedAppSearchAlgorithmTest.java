@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.content.ComponentName;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the match types and the scoring of {@link RankedAppSearchAlgorithm}.
+ */
+@SmallTest
+public class RankedAppSearchAlgorithmTest extends TestCase {
+
+    private static final String TAG = "RankedAppSearchAlgorithmTest";
+
+    private static final String[] WORDS = {"Google", "Maps", "Camera", "Calendar", "Clock",
+            "Play", "Store", "Music", "Movies", "Photos", "Files", "Notes", "Mail", "Messages",
+            "Café", "Settings", "Weather", "YouTube", "Drive", "Keep"};
+
+    // Maximum time to match a query against 1,000 apps.
+    private static final long MAX_SEARCH_TIME_NS = 1000000;
+
+    private AppSearchIndex mIndex;
+    private RankedAppSearchAlgorithm mAlgorithm;
+    private int mNextId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new AppSearchIndex();
+        mAlgorithm = new RankedAppSearchAlgorithm(mIndex);
+    }
+
+    public void testPrefix_titleStartRankedFirst() {
+        ComponentKey googleMaps = add("Google Maps");
+        ComponentKey maps = add("Maps");
+        add("Camera");
+
+        assertEquals(Arrays.asList(maps, googleMaps), search("ma"));
+        assertEquals(Arrays.asList(googleMaps), search("google m"));
+    }
+
+    public void testInitials() {
+        ComponentKey googleMaps = add("Google Maps");
+        ComponentKey youTube = add("YouTube");
+        ComponentKey gmail = add("Gmail");
+        add("Camera");
+
+        // A title prefix is ranked above the initials.
+        assertEquals(Arrays.asList(gmail, googleMaps), search("gm"));
+        assertEquals(Arrays.asList(googleMaps), search("g m"));
+        assertEquals(Arrays.asList(youTube), search("yt"));
+    }
+
+    public void testEditDistance() {
+        ComponentKey calendar = add("Calendar");
+        ComponentKey settings = add("Settings");
+        add("Clock");
+
+        assertEquals(Arrays.asList(calendar), search("calandar"));
+        assertEquals(Arrays.asList(settings), search("setings"));
+        // Two typos are allowed in long query words only
+        assertEquals(Arrays.asList(calendar), search("kalendr"));
+        assertTrue(search("kxlxndr").isEmpty());
+        // No typo is allowed in short query words
+        assertTrue(search("cxl").isEmpty());
+    }
+
+    public void testEditDistance_rankedBelowPrefix() {
+        ComponentKey calendar = add("Calendar");
+        ComponentKey calender = add("Calender");
+
+        assertEquals(Arrays.asList(calender, calendar), search("calende"));
+    }
+
+    public void testAccents() {
+        ComponentKey cafe = add("Café");
+        ComponentKey cafeteria = add("Cafeteria");
+
+        // Matching without the accents is ranked below an exact prefix.
+        assertEquals(Arrays.asList(cafeteria, cafe), search("cafe"));
+        assertEquals(Arrays.asList(cafe, cafeteria), search("café"));
+    }
+
+    public void testSectionName() {
+        ComponentKey beijing = add("北京地铁", "B");
+        add("Camera");
+
+        assertEquals(Arrays.asList(beijing), search("b"));
+        assertTrue(search("x").isEmpty());
+    }
+
+    @LargeTest
+    public void testSearchBenchmark_1000Apps() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            add(WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                    + " " + i);
+        }
+        String[] queries = {"g", "go", "goo", "gm", "ca", "calandar", "setings", "play st",
+                "youtube", "zz"};
+
+        // Warm up
+        for (int i = 0; i < 10; i++) {
+            for (String query : queries) {
+                search(query);
+            }
+        }
+
+        for (String query : queries) {
+            long[] times = new long[21];
+            for (int i = 0; i < times.length; i++) {
+                long start = System.nanoTime();
+                search(query);
+                times[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+            long median = times[times.length / 2];
+            Log.d(TAG, String.format("\"%s\" in 1000 apps: %.3fms", query, median / 1e6));
+            assertTrue("\"" + query + "\" took " + median + "ns", median < MAX_SEARCH_TIME_NS);
+        }
+    }
+
+    private ComponentKey add(String title) {
+        return add(title, title.substring(0, 1));
+    }
+
+    private ComponentKey add(String title, String sectionName) {
+        ComponentKey key = new ComponentKey(
+                new ComponentName("com.android.test", "Activity" + mNextId++),
+                UserHandleCompat.myUserHandle());
+        mIndex.addOrUpdate(key, title, sectionName);
+        return key;
+    }
+
+    private ArrayList<ComponentKey> search(String query) {
+        return mAlgorithm.getTitleMatchResult(query, null);
+    }
+}
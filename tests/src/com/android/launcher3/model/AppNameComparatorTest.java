@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.model;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.compat.UserHandleCompat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Tests the sort keys of {@link AppNameComparator}, and compares the time to sort the items by
+ * their cached sort keys with the time to collate their titles.
+ */
+@LargeTest
+public class AppNameComparatorTest extends AndroidTestCase {
+
+    private static final String TAG = "AppNameComparatorTest";
+
+    private static final String[] WORDS = {"Google", "Maps", "Camera", "Calendar", "Éclair",
+            "photo", "Zebra", "Music", "Play", "Store", "Ça", "Öl", "1Weather", "#hashtag",
+            "Notes", "note", "Clock", "clock", "Files", "Ärzte"};
+
+    private AppNameComparator mComparator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mComparator = new AppNameComparator(getContext());
+    }
+
+    public void testSortKeys_sameOrderAsTitles() {
+        ArrayList<ItemInfo> items = createItems(500);
+        ArrayList<ItemInfo> expected = new ArrayList<>(items);
+        Collections.sort(expected, new TitleComparator());
+
+        Collections.sort(items, mComparator.getAppInfoComparator());
+        assertSameTitles(expected, items);
+    }
+
+    public void testSortKeys_updatedOnTitleChange() {
+        ArrayList<ItemInfo> items = createItems(50);
+        Collections.sort(items, mComparator.getAppInfoComparator());
+
+        // Rename the first item so that it sorts last
+        items.get(0).title = "zzz";
+        ArrayList<ItemInfo> expected = new ArrayList<>(items);
+        Collections.sort(expected, new TitleComparator());
+
+        Collections.sort(items, mComparator.getAppInfoComparator());
+        assertSameTitles(expected, items);
+        assertEquals("zzz", items.get(items.size() - 1).title.toString());
+    }
+
+    public void testSortBenchmark() {
+        for (int count : new int[] {500, 1000, 2000}) {
+            ArrayList<ItemInfo> items = createItems(count);
+
+            ArrayList<ItemInfo> sorted = new ArrayList<>(items);
+            long start = System.nanoTime();
+            Collections.sort(sorted, new TitleComparator());
+            long collatorTime = System.nanoTime() - start;
+
+            // The first sort computes the keys, the following ones reuse them
+            sorted = new ArrayList<>(items);
+            start = System.nanoTime();
+            Collections.sort(sorted, mComparator.getAppInfoComparator());
+            long coldKeyTime = System.nanoTime() - start;
+
+            sorted = new ArrayList<>(items);
+            start = System.nanoTime();
+            Collections.sort(sorted, mComparator.getAppInfoComparator());
+            long warmKeyTime = System.nanoTime() - start;
+
+            Log.d(TAG, String.format("%d items: collator %.2fms, sort keys %.2fms (%.2fms cached)",
+                    count, collatorTime / 1e6, coldKeyTime / 1e6, warmKeyTime / 1e6));
+        }
+    }
+
+    private ArrayList<ItemInfo> createItems(int count) {
+        Random random = new Random(count);
+        ArrayList<ItemInfo> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PackageItemInfo info = new PackageItemInfo("com.android.test" + i);
+            info.title = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            info.user = UserHandleCompat.myUserHandle();
+            items.add(info);
+        }
+        return items;
+    }
+
+    private void assertSameTitles(ArrayList<ItemInfo> expected, ArrayList<ItemInfo> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).title.toString(), actual.get(i).title.toString());
+        }
+    }
+
+    /**
+     * Orders the items by collating their titles on each comparison.
+     */
+    private class TitleComparator implements Comparator<ItemInfo> {
+        @Override
+        public int compare(ItemInfo lhs, ItemInfo rhs) {
+            return mComparator.compareTitles(lhs.title.toString(), rhs.title.toString());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Point;
 import android.test.ProviderTestCase2;
+import android.util.Log;
 
 import com.android.launcher3.InvariantDeviceProfile;
 import com.android.launcher3.LauncherAppState;
@@ -22,6 +23,8 @@ import java.util.HashSet;
  */
 public class GridSizeMigrationTaskTest extends ProviderTestCase2<TestLauncherProvider> {
 
+    private static final String TAG = "GridSizeMigrationTaskTest";
+
     private static final long DESKTOP = LauncherSettings.Favorites.CONTAINER_DESKTOP;
     private static final long HOTSEAT = LauncherSettings.Favorites.CONTAINER_HOTSEAT;
 
@@ -207,6 +210,47 @@ public class GridSizeMigrationTaskTest extends ProviderTestCase2<TestLauncherPro
         }});
     }
 
+    public void testWorkspace_grow_keeps_layout() throws Exception {
+        long[][][] ids = createGrid(new int[][][]{{
+                {  0,  0, -1},
+                {  3,  1,  0},
+                { -1,  2,  1},
+        }});
+
+        new GridSizeMigrationTask(getMockContext(), mIdp, mValidPackages, new HashMap<String, Point>(),
+                new Point(3, 3), new Point(5, 4)).migrateWorkspace();
+
+        // Nothing needs to move on a larger grid.
+        verifyWorkspace(ids);
+    }
+
+    public void testWorkspace_multi_step_shrink() throws Exception {
+        // Three screens full of items, on a 7x7 grid.
+        int[][][] types = createFullGrid(3, 7, 7);
+        createGrid(types);
+
+        long startTime = System.currentTimeMillis();
+        new GridSizeMigrationTask(getMockContext(), mIdp, mValidPackages, new HashMap<String, Point>(),
+                new Point(7, 7), new Point(4, 4)).migrateWorkspace();
+        Log.d(TAG, "7x7 to 4x4 migration of " + (3 * 7 * 7) + " items took "
+                + (System.currentTimeMillis() - startTime) + "ms");
+
+        // All the items are kept and spread over new screens.
+        int screenCount = verifyWorkspaceFits(4, 4, 3 * 7 * 7);
+        assertTrue(screenCount >= (3 * 7 * 7 + 15) / 16);
+    }
+
+    public void testWorkspace_grow_and_shrink() throws Exception {
+        // Two screens full of items on a 3x5 grid, migrated to a 5x3 grid.
+        createGrid(createFullGrid(2, 3, 5));
+
+        new GridSizeMigrationTask(getMockContext(), mIdp, mValidPackages, new HashMap<String, Point>(),
+                new Point(3, 5), new Point(5, 3)).migrateWorkspace();
+
+        // The added columns make room for the items of the removed rows.
+        assertEquals(2, verifyWorkspaceFits(5, 3, 2 * 3 * 5));
+    }
+
     /**
      * Initializes the DB with dummy elements to represent the provided grid structure.
      * @param typeArray A 3d array of item types. {@see #addItem(int, long, long, int, int)} for
@@ -282,6 +326,48 @@ public class GridSizeMigrationTaskTest extends ProviderTestCase2<TestLauncherPro
         c.close();
     }
 
+    /**
+     * Returns the item types of {@param screenCount} screens of {@param countX}x{@param countY}
+     * items, mixing apps, shortcuts and folders.
+     */
+    private static int[][][] createFullGrid(int screenCount, int countX, int countY) {
+        int[][][] types = new int[screenCount][countY][countX];
+        for (int i = 0; i < screenCount; i++) {
+            for (int y = 0; y < countY; y++) {
+                for (int x = 0; x < countX; x++) {
+                    types[i][y][x] = (x + y + i) % 3;
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Verifies that {@param itemCount} workspace items are left, all within a grid of
+     * {@param countX}x{@param countY}, on existing screens and without overlapping.
+     * @return the number of screens.
+     */
+    private int verifyWorkspaceFits(int countX, int countY, int itemCount) {
+        ArrayList<Long> allScreens = LauncherModel.loadWorkspaceScreensDb(getMockContext());
+        HashSet<String> occupied = new HashSet<>();
+
+        Cursor c = getMockContentResolver().query(LauncherSettings.Favorites.CONTENT_URI,
+                new String[]{LauncherSettings.Favorites.SCREEN, LauncherSettings.Favorites.CELLX,
+                        LauncherSettings.Favorites.CELLY},
+                "container=-100", null, null, null);
+        assertEquals(itemCount, c.getCount());
+        while (c.moveToNext()) {
+            long screenId = c.getLong(0);
+            int x = c.getInt(1);
+            int y = c.getInt(2);
+            assertTrue(allScreens.contains(screenId));
+            assertTrue(x >= 0 && x < countX && y >= 0 && y < countY);
+            assertTrue(occupied.add(screenId + ":" + x + ":" + y));
+        }
+        c.close();
+        return allScreens.size();
+    }
+
     /**
      * Adds a dummy item in the DB.
      * @param type {@link #APPLICATION} or {@link #SHORTCUT} or >= 2 for
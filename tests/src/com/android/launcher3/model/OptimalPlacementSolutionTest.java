@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.launcher3.LauncherSettings.Favorites;
+import com.android.launcher3.model.GridSizeMigrationTask.DbEntry;
+import com.android.launcher3.model.GridSizeMigrationTask.OptimalPlacementSolution;
+import com.android.launcher3.util.GridOccupancy;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the time taken and the quality of the placements found by
+ * {@link OptimalPlacementSolution} when removing a row and a column of typical layouts.
+ */
+@LargeTest
+public class OptimalPlacementSolutionTest extends AndroidTestCase {
+
+    private static final String TAG = "OptimalPlacementSolutionTest";
+
+    /**
+     * Workspace layouts, one string per row. Each letter is an item covering all the cells with
+     * that letter: lower case letters are icons or fixed size widgets, upper case letters are
+     * widgets which can be resized down to 1x1.
+     */
+    private static final String[][] LAYOUTS = new String[][] {
+            // Phone home screen: clock widget and icons
+            {
+                    "CCCC.",
+                    "CCCC.",
+                    "ab.cd",
+                    "efghi",
+                    "jk.lm",
+            },
+            // Phone screen full of widgets
+            {
+                    "CCCCa",
+                    "CCCCb",
+                    "DDEEc",
+                    "DDEEd",
+                    "FFFFF",
+            },
+            // Phone screen full of icons
+            {
+                    "abcde",
+                    "fghij",
+                    "klmno",
+                    "pqrst",
+                    "uvwxy",
+            },
+            // Small grid with a fixed size widget
+            {
+                    "aabc",
+                    "aade",
+                    "BBBf",
+                    "ghij",
+            },
+            // Tablet screen
+            {
+                    "AAAABB",
+                    "AAAABB",
+                    "CCCDDa",
+                    "CCCDDb",
+                    "EEFFGc",
+                    "EEFFGd",
+            },
+            // Tablet screen of small widgets
+            {
+                    "AABBCC",
+                    "DEFGHI",
+                    "DEFGHI",
+                    "JJKKLL",
+                    "MNOPQR",
+                    "MNOPQR",
+            },
+    };
+
+    public void testCorpus() {
+        int solved = 0;
+        int stopped = 0;
+        int nodes = 0;
+        float weightLoss = 0;
+        float optimalWeightLoss = 0;
+        long time = 0;
+        long optimalTime = 0;
+
+        for (String[] layout : LAYOUTS) {
+            int countX = layout[0].length();
+            int countY = layout.length;
+            for (int col = 0; col < countX; col++) {
+                for (int row = 0; row < countY; row++) {
+                    long start = System.nanoTime();
+                    OptimalPlacementSolution optimal =
+                            removeRowAndColumn(layout, col, row, Integer.MAX_VALUE);
+                    optimalTime += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    OptimalPlacementSolution placement = removeRowAndColumn(layout, col, row,
+                            OptimalPlacementSolution.DEFAULT_MAX_NODES);
+                    time += System.nanoTime() - start;
+
+                    assertTrue(optimal.isComplete());
+                    assertTrue(placement.lowestWeightLoss >= optimal.lowestWeightLoss);
+                    if (placement.isComplete()) {
+                        assertEquals(optimal.lowestWeightLoss, placement.lowestWeightLoss);
+                    } else {
+                        stopped++;
+                    }
+                    solved++;
+                    nodes += placement.getVisitedNodes();
+                    weightLoss += placement.lowestWeightLoss;
+                    optimalWeightLoss += optimal.lowestWeightLoss;
+                }
+            }
+        }
+
+        Log.d(TAG, String.format("%d placements in %.2fms (%.2fms without budget), %d nodes, "
+                + "%d stopped by the budget, weight loss %.2f (optimal %.2f)",
+                solved, time / 1e6, optimalTime / 1e6, nodes, stopped,
+                weightLoss, optimalWeightLoss));
+    }
+
+    public void testBudget_returnsBestPlacementFound() {
+        String[] layout = LAYOUTS[LAYOUTS.length - 1];
+        OptimalPlacementSolution optimal = removeRowAndColumn(layout, 2, 1, Integer.MAX_VALUE);
+        OptimalPlacementSolution placement = removeRowAndColumn(layout, 2, 1, 50);
+
+        assertFalse(placement.isComplete());
+        assertTrue(placement.getVisitedNodes() <= 51);
+        assertTrue(placement.lowestWeightLoss >= optimal.lowestWeightLoss);
+        assertTrue(placement.lowestWeightLoss < Float.MAX_VALUE);
+    }
+
+    /**
+     * Removes a row and a column from {@param layout}, as the migration does, and places the
+     * items which were on them with a budget of {@param maxNodes} nodes. Verifies that the
+     * placement is valid.
+     */
+    private OptimalPlacementSolution removeRowAndColumn(String[] layout, int col, int row,
+            int maxNodes) {
+        int countX = layout[0].length() - 1;
+        int countY = layout.length - 1;
+        GridOccupancy occupied = new GridOccupancy(countX, countY);
+        ArrayList<DbEntry> kept = new ArrayList<>();
+        ArrayList<DbEntry> removed = new ArrayList<>();
+        for (DbEntry item : parseLayout(layout)) {
+            if ((item.cellX <= col && (item.spanX + item.cellX) > col)
+                    || (item.cellY <= row && (item.spanY + item.cellY) > row)) {
+                removed.add(item);
+                if (item.cellX >= col) item.cellX --;
+                if (item.cellY >= row) item.cellY --;
+            } else {
+                if (item.cellX > col) item.cellX --;
+                if (item.cellY > row) item.cellY --;
+                kept.add(item);
+                occupied.markCells(item.cellX, item.cellY, item.spanX, item.spanY, true);
+            }
+        }
+
+        OptimalPlacementSolution placement =
+                new OptimalPlacementSolution(occupied, removed, false, maxNodes);
+        placement.find();
+
+        // The placed items fit in the vacant cells
+        GridOccupancy check = new GridOccupancy(countX, countY);
+        kept.addAll(placement.finalPlacedItems);
+        for (DbEntry item : kept) {
+            assertTrue(check.isRegionVacant(item.cellX, item.cellY, item.spanX, item.spanY));
+            assertTrue(item.spanX >= item.minSpanX && item.spanY >= item.minSpanY);
+            check.markCells(item.cellX, item.cellY, item.spanX, item.spanY, true);
+        }
+        return placement;
+    }
+
+    private static ArrayList<DbEntry> parseLayout(String[] layout) {
+        ArrayList<DbEntry> items = new ArrayList<>();
+        for (int y = 0; y < layout.length; y++) {
+            for (int x = 0; x < layout[y].length(); x++) {
+                char c = layout[y].charAt(x);
+                if (c == '.' || isCovered(items, x, y)) {
+                    continue;
+                }
+                DbEntry item = new DbEntry();
+                item.id = items.size();
+                item.cellX = x;
+                item.cellY = y;
+                while (item.cellX + item.spanX < layout[y].length()
+                        && layout[y].charAt(item.cellX + item.spanX) == c) {
+                    item.spanX++;
+                }
+                while (item.cellY + item.spanY < layout.length
+                        && layout[item.cellY + item.spanY].charAt(x) == c) {
+                    item.spanY++;
+                }
+                if (item.spanX > 1 || item.spanY > 1) {
+                    item.itemType = Favorites.ITEM_TYPE_APPWIDGET;
+                    item.weight = Math.max(2, 0.6f * item.spanX * item.spanY);
+                    boolean resizable = Character.isUpperCase(c);
+                    item.minSpanX = resizable ? 1 : item.spanX;
+                    item.minSpanY = resizable ? 1 : item.spanY;
+                } else {
+                    item.itemType = Favorites.ITEM_TYPE_APPLICATION;
+                    item.weight = 0.8f;
+                }
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static boolean isCovered(ArrayList<DbEntry> items, int x, int y) {
+        for (DbEntry item : items) {
+            if (x >= item.cellX && x < item.cellX + item.spanX
+                    && y >= item.cellY && y < item.cellY + item.spanY) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
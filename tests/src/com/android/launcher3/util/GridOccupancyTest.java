@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link GridOccupancy}, checked against a plain boolean[][] grid.
+ */
+@SmallTest
+public class GridOccupancyTest extends TestCase {
+
+    // The grid must not be slower than a boolean[][] grid, with some margin for timing noise.
+    private static final int MAX_BENCHMARK_RATIO = 2;
+
+    private static final int COUNT_X = 5;
+    private static final int COUNT_Y = 6;
+
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRandom = new Random(1);
+    }
+
+    public void testMarkCells() {
+        GridOccupancy grid = new GridOccupancy(COUNT_X, COUNT_Y);
+        grid.markCells(1, 1, 2, 3, true);
+        assertTrue(grid.isOccupied(1, 1));
+        assertTrue(grid.isOccupied(2, 3));
+        assertFalse(grid.isOccupied(3, 1));
+        assertFalse(grid.isOccupied(1, 4));
+
+        // Spans are clipped to the grid
+        grid.markCells(4, 5, 3, 3, true);
+        assertTrue(grid.isOccupied(4, 5));
+
+        grid.markCells(2, 2, 1, 1, false);
+        assertFalse(grid.isOccupied(2, 2));
+        assertTrue(grid.isOccupied(1, 2));
+
+        grid.clear();
+        assertTrue(grid.isRegionVacant(0, 0, COUNT_X, COUNT_Y));
+    }
+
+    public void testIsRegionVacant() {
+        for (int i = 0; i < 200; i++) {
+            boolean[][] expected = randomGrid(0.3f);
+            GridOccupancy grid = toOccupancy(expected);
+            for (int x = -1; x <= COUNT_X; x++) {
+                for (int y = -1; y <= COUNT_Y; y++) {
+                    for (int spanX = 1; spanX <= 3; spanX++) {
+                        for (int spanY = 1; spanY <= 3; spanY++) {
+                            assertEquals(isVacant(expected, x, y, spanX, spanY),
+                                    grid.isRegionVacant(x, y, spanX, spanY));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testIsRegionVacant_block() {
+        GridOccupancy grid = new GridOccupancy(COUNT_X, COUNT_Y);
+        grid.markCells(1, 0, 1, 1, true);
+
+        // An L shaped block, only its empty corner overlaps the occupied cell.
+        GridOccupancy block = new GridOccupancy(2, 2);
+        block.markCells(0, 0, 1, 2, true);
+        block.markCells(1, 1, 1, 1, true);
+        assertTrue(grid.isRegionVacant(0, 0, block));
+        assertFalse(grid.isRegionVacant(1, 0, block));
+        assertFalse(grid.isRegionVacant(COUNT_X - 1, 0, block));
+
+        // Only the top left cells of a larger block are checked.
+        GridOccupancy largeBlock = new GridOccupancy(COUNT_X, COUNT_Y);
+        largeBlock.markCells(0, 0, 1, 2, true);
+        largeBlock.markCells(1, 1, 1, 1, true);
+        largeBlock.markCells(3, 3, 1, 1, true);
+        assertTrue(grid.isRegionVacant(0, 0, 2, 2, largeBlock));
+        assertFalse(grid.isRegionVacant(1, 0, 2, 2, largeBlock));
+        assertFalse(grid.isRegionVacant(COUNT_X - 1, 0, 2, 2, largeBlock));
+        assertFalse(grid.isRegionVacant(0, 0, COUNT_X + 1, 1, largeBlock));
+    }
+
+    public void testContentEquals() {
+        GridOccupancy grid = new GridOccupancy(COUNT_X, COUNT_Y);
+        grid.markCells(1, 1, 2, 2, true);
+        GridOccupancy copy = new GridOccupancy(COUNT_X, COUNT_Y);
+        copy.copyFrom(grid);
+        assertTrue(copy.contentEquals(grid));
+
+        grid.markCells(0, 0, 1, 1, true);
+        assertFalse(copy.contentEquals(grid));
+        copy.markCells(0, 0, 1, 1, true);
+        assertTrue(copy.contentEquals(grid));
+        assertFalse(copy.contentEquals(new GridOccupancy(COUNT_X, COUNT_Y + 1)));
+    }
+
+    public void testFindVacantCell() {
+        int[] expectedCell = new int[2];
+        int[] cell = new int[2];
+        for (int i = 0; i < 200; i++) {
+            boolean[][] expected = randomGrid(0.5f);
+            GridOccupancy grid = toOccupancy(expected);
+            for (int spanX = 1; spanX <= COUNT_X + 1; spanX++) {
+                for (int spanY = 1; spanY <= 3; spanY++) {
+                    boolean found = findVacantCell(expected, expectedCell, spanX, spanY);
+                    assertEquals(found, grid.findVacantCell(cell, spanX, spanY));
+                    if (found) {
+                        assertEquals(expectedCell[0], cell[0]);
+                        assertEquals(expectedCell[1], cell[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testFindNearestVacantCell() {
+        int[] expectedCell = new int[2];
+        int[] cell = new int[2];
+        for (int i = 0; i < 200; i++) {
+            boolean[][] expected = randomGrid(0.6f);
+            GridOccupancy grid = toOccupancy(expected);
+            for (int x = -1; x <= COUNT_X; x++) {
+                for (int y = -1; y <= COUNT_Y; y++) {
+                    for (int span = 1; span <= 2; span++) {
+                        boolean found = findNearestVacantCell(expected, expectedCell, x, y,
+                                span, span);
+                        assertEquals(found, grid.findNearestVacantCell(cell, x, y, span, span));
+                        if (found) {
+                            assertEquals(expectedCell[0], cell[0]);
+                            assertEquals(expectedCell[1], cell[1]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSnapshot() {
+        GridOccupancy grid = new GridOccupancy(COUNT_X, COUNT_Y);
+        grid.markCells(0, 0, 1, 1, true);
+
+        GridOccupancy snapshot = grid.snapshot();
+        grid.markCells(1, 1, 1, 1, true);
+        snapshot.markCells(2, 2, 1, 1, true);
+        assertTrue(snapshot.isOccupied(0, 0));
+        assertFalse(snapshot.isOccupied(1, 1));
+        assertFalse(grid.isOccupied(2, 2));
+
+        GridOccupancy copy = new GridOccupancy(COUNT_X, COUNT_Y);
+        copy.copyFrom(grid);
+        grid.clear();
+        assertTrue(copy.isOccupied(0, 0));
+        assertTrue(copy.isOccupied(1, 1));
+        assertFalse(grid.isOccupied(0, 0));
+    }
+
+    public void testCopyFrom_copiesInPlace() {
+        GridOccupancy grid = new GridOccupancy(COUNT_X, COUNT_Y);
+        grid.markCells(0, 0, 1, 1, true);
+        GridOccupancy copy = new GridOccupancy(COUNT_X, COUNT_Y);
+        GridOccupancy snapshot = copy.snapshot();
+
+        copy.copyFrom(grid);
+        copy.markCells(1, 1, 1, 1, true);
+        grid.markCells(2, 2, 1, 1, true);
+        assertTrue(copy.isOccupied(0, 0));
+        assertFalse(copy.isOccupied(2, 2));
+        assertFalse(grid.isOccupied(1, 1));
+        assertEquals(0, snapshot.getOccupiedCount());
+
+        try {
+            copy.copyFrom(new GridOccupancy(COUNT_X, COUNT_Y + 1));
+            fail("Copied a grid of a different size");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testWideGrid() {
+        GridOccupancy grid = new GridOccupancy(GridOccupancy.MAX_COUNT_X, 2);
+        grid.markCells(0, 0, GridOccupancy.MAX_COUNT_X - 1, 1, true);
+        int[] cell = new int[2];
+        assertTrue(grid.findVacantCell(cell, 1, 1));
+        assertEquals(GridOccupancy.MAX_COUNT_X - 1, cell[0]);
+        assertEquals(0, cell[1]);
+        assertFalse(grid.findVacantCell(cell, 2, 2));
+        assertTrue(grid.findNearestVacantCell(cell, 100, 0, 3, 1));
+        assertEquals(GridOccupancy.MAX_COUNT_X - 3, cell[0]);
+        assertEquals(1, cell[1]);
+    }
+
+    /**
+     * Compares the results and the time spent by the grid and by a boolean[][] grid on the
+     * queries made while reordering items during a drag, and while placing items during a grid
+     * migration.
+     */
+    public void testBenchmark() {
+        final int rounds = 2000;
+        boolean[][][] layouts = new boolean[64][][];
+        for (int i = 0; i < layouts.length; i++) {
+            layouts[i] = randomGrid(0.4f);
+        }
+
+        // Drag reorder: copy the current occupancy to the temp occupancy, move a few items, and
+        // look for the nearest vacant area of the dragged item.
+        int[] cell = new int[2];
+        int checksum = 0;
+        boolean[][] tmpArray = new boolean[COUNT_X][COUNT_Y];
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (boolean[][] layout : layouts) {
+                boolean[][] tmp = tmpArray;
+                for (int x = 0; x < COUNT_X; x++) {
+                    System.arraycopy(layout[x], 0, tmp[x], 0, COUNT_Y);
+                }
+                for (int y = 0; y < COUNT_Y; y += 2) {
+                    mark(tmp, y % COUNT_X, y, 2, 1, false);
+                    if (findNearestVacantCell(tmp, cell, 2, y, 2, 2)) {
+                        checksum += cell[0] + cell[1];
+                    }
+                    mark(tmp, y % COUNT_X, y, 2, 1, true);
+                }
+            }
+        }
+        long arrayReorder = System.nanoTime() - start;
+
+        GridOccupancy[] grids = new GridOccupancy[layouts.length];
+        for (int i = 0; i < layouts.length; i++) {
+            grids[i] = toOccupancy(layouts[i]);
+        }
+        GridOccupancy tmp = new GridOccupancy(COUNT_X, COUNT_Y);
+        int gridChecksum = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (GridOccupancy grid : grids) {
+                tmp.copyFrom(grid);
+                for (int y = 0; y < COUNT_Y; y += 2) {
+                    tmp.markCells(y % COUNT_X, y, 2, 1, false);
+                    if (tmp.findNearestVacantCell(cell, 2, y, 2, 2)) {
+                        gridChecksum += cell[0] + cell[1];
+                    }
+                    tmp.markCells(y % COUNT_X, y, 2, 1, true);
+                }
+            }
+        }
+        long gridReorder = System.nanoTime() - start;
+        assertEquals(checksum, gridChecksum);
+
+        // Migration: test every position of a widget and fill the remaining space with icons.
+        checksum = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds / 10; r++) {
+            for (boolean[][] layout : layouts) {
+                for (int x = 0; x < COUNT_X; x++) {
+                    for (int y = 0; y < COUNT_Y; y++) {
+                        if (isVacant(layout, x, y, 2, 2)) {
+                            boolean[][] filled = new boolean[COUNT_X][];
+                            for (int i = 0; i < COUNT_X; i++) {
+                                filled[i] = layout[i].clone();
+                            }
+                            mark(filled, x, y, 2, 2, true);
+                            while (findVacantCell(filled, cell, 1, 1)) {
+                                mark(filled, cell[0], cell[1], 1, 1, true);
+                                checksum++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        long arrayMigration = System.nanoTime() - start;
+
+        gridChecksum = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds / 10; r++) {
+            for (GridOccupancy layout : grids) {
+                for (int x = 0; x < COUNT_X; x++) {
+                    for (int y = 0; y < COUNT_Y; y++) {
+                        if (layout.isRegionVacant(x, y, 2, 2)) {
+                            GridOccupancy filled = layout.snapshot();
+                            filled.markCells(x, y, 2, 2, true);
+                            while (filled.findVacantCell(cell, 1, 1)) {
+                                filled.markCells(cell[0], cell[1], 1, 1, true);
+                                gridChecksum++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        long gridMigration = System.nanoTime() - start;
+        assertEquals(checksum, gridChecksum);
+
+        assertFaster("reorder", gridReorder, arrayReorder);
+        assertFaster("migration", gridMigration, arrayMigration);
+    }
+
+    private static void assertFaster(String name, long gridNs, long arrayNs) {
+        String message = String.format("%s: boolean[][] %.2fms, grid %.2fms", name,
+                arrayNs / 1e6, gridNs / 1e6);
+        assertTrue(message, gridNs <= MAX_BENCHMARK_RATIO * arrayNs);
+    }
+
+    private boolean[][] randomGrid(float density) {
+        boolean[][] grid = new boolean[COUNT_X][COUNT_Y];
+        for (int x = 0; x < COUNT_X; x++) {
+            for (int y = 0; y < COUNT_Y; y++) {
+                grid[x][y] = mRandom.nextFloat() < density;
+            }
+        }
+        return grid;
+    }
+
+    private static GridOccupancy toOccupancy(boolean[][] occupied) {
+        GridOccupancy grid = new GridOccupancy(COUNT_X, COUNT_Y);
+        for (int x = 0; x < COUNT_X; x++) {
+            for (int y = 0; y < COUNT_Y; y++) {
+                grid.markCells(x, y, 1, 1, occupied[x][y]);
+            }
+        }
+        return grid;
+    }
+
+    private static void mark(boolean[][] occupied, int cellX, int cellY, int spanX, int spanY,
+            boolean value) {
+        for (int x = cellX; x < cellX + spanX && x < COUNT_X; x++) {
+            for (int y = cellY; y < cellY + spanY && y < COUNT_Y; y++) {
+                occupied[x][y] = value;
+            }
+        }
+    }
+
+    private static boolean isVacant(boolean[][] occupied, int cellX, int cellY,
+            int spanX, int spanY) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > COUNT_X || cellY + spanY > COUNT_Y) {
+            return false;
+        }
+        for (int x = cellX; x < cellX + spanX; x++) {
+            for (int y = cellY; y < cellY + spanY; y++) {
+                if (occupied[x][y]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean findVacantCell(boolean[][] occupied, int[] out, int spanX, int spanY) {
+        for (int y = 0; y + spanY <= COUNT_Y; y++) {
+            for (int x = 0; x + spanX <= COUNT_X; x++) {
+                if (isVacant(occupied, x, y, spanX, spanY)) {
+                    out[0] = x;
+                    out[1] = y;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean findNearestVacantCell(boolean[][] occupied, int[] out,
+            int cellX, int cellY, int spanX, int spanY) {
+        int bestDistance = Integer.MAX_VALUE;
+        for (int y = 0; y + spanY <= COUNT_Y; y++) {
+            for (int x = 0; x + spanX <= COUNT_X; x++) {
+                if (isVacant(occupied, x, y, spanX, spanY)) {
+                    int distance = (x - cellX) * (x - cellX) + (y - cellY) * (y - cellY);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        out[0] = x;
+                        out[1] = y;
+                    }
+                }
+            }
+        }
+        return bestDistance != Integer.MAX_VALUE;
+    }
+}